@@ -0,0 +1,358 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.JobListener;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.impl.matchers.EverythingMatcher;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.listeners.SchedulerListenerSupport;
+import org.weakref.jmx.JmxException;
+import org.weakref.jmx.MBeanExporter;
+import org.weakref.jmx.Managed;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Exports MBeans for jobs that are added at runtime, e.g. by {@link AdHocQuartzJob} or {@link RescheduledQuartzJob},
+ * as long as they have triggers left. The first <code>ness.quartz.jmx-adhoc-cap</code> jobs get an MBean of their
+ * own, all of them are aggregated in one MBean per job class.
+ */
+class AdHocJmxExporter extends SchedulerListenerSupport implements JobListener
+{
+    private static final Log LOG = Log.findLog();
+
+    static final String NAME = "ness-quartz-adhoc-jmx";
+
+    private final QuartzJmxTrigger jmxTrigger;
+    private final MBeanExporter mbeanExporter;
+    private final Scheduler scheduler;
+    private final int cap;
+
+    private final ConcurrentMap<JobKey, AdHocJobClass> jobs = Maps.newConcurrentMap();
+    private final ConcurrentMap<JobKey, String> jobBeans = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, AdHocJobClass> classBeans = Maps.newConcurrentMap();
+    private final AtomicInteger jobBeanCount = new AtomicInteger();
+    private final Set<JobKey> boundJobs = Sets.newSetFromMap(Maps.<JobKey, Boolean>newConcurrentMap());
+
+    AdHocJmxExporter(final QuartzJmxTrigger jmxTrigger, final MBeanExporter mbeanExporter, final Scheduler scheduler, final int cap)
+    {
+        this.jmxTrigger = jmxTrigger;
+        this.mbeanExporter = mbeanExporter;
+        this.scheduler = scheduler;
+        this.cap = cap;
+    }
+
+    /**
+     * Registers the listeners and exports the jobs that already exist, e.g. in a persistent job store.
+     */
+    void start()
+        throws SchedulerException
+    {
+        scheduler.getListenerManager().addSchedulerListener(this);
+        scheduler.getListenerManager().addJobListener(this, EverythingMatcher.allJobs());
+
+        for (final JobKey jobKey : scheduler.getJobKeys(GroupMatcher.jobGroupStartsWith(""))) {
+            final JobDetail jobDetail = scheduler.getJobDetail(jobKey);
+            if (jobDetail != null && !scheduler.getTriggersOfJob(jobKey).isEmpty()) {
+                jobAdded(jobDetail);
+            }
+        }
+    }
+
+    void stop()
+        throws SchedulerException
+    {
+        scheduler.getListenerManager().removeSchedulerListener(this);
+        scheduler.getListenerManager().removeJobListener(NAME);
+
+        for (final String beanName : jobBeans.values()) {
+            unexport(beanName);
+        }
+        for (final String className : classBeans.keySet()) {
+            unexport(getClassBeanName(className));
+        }
+        jobs.clear();
+        jobBeans.clear();
+        classBeans.clear();
+        jobBeanCount.set(0);
+    }
+
+    AdHocJobClass getJobClass(final String className)
+    {
+        return classBeans.get(className);
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public void jobAdded(final JobDetail jobDetail)
+    {
+        final JobKey jobKey = jobDetail.getKey();
+        if (jobDetail.getJobDataMap().containsKey(QuartzJobBinder.BOUND_JOB_KEY)) {
+            boundJobs.add(jobKey);
+            return;
+        }
+
+        final AdHocJobClass jobClass = getOrCreateClassBean(jobDetail.getJobClass().getName());
+        if (jobs.putIfAbsent(jobKey, jobClass) != null) {
+            return;
+        }
+        jobClass.queued.incrementAndGet();
+
+        if (jobBeanCount.incrementAndGet() > cap) {
+            jobBeanCount.decrementAndGet();
+            return;
+        }
+
+        final String beanName = "ness.quartz.job:type=adhoc, name=" + ObjectName.quote(jobKey.toString());
+        try {
+            mbeanExporter.export(beanName, jmxTrigger.newJobBean(jobKey));
+            jobBeans.put(jobKey, beanName);
+        }
+        catch (JmxException je) {
+            jobBeanCount.decrementAndGet();
+            LOG.warn("While exporting %s: %s", beanName, je.getCause());
+        }
+    }
+
+    /**
+     * Jobs that only got a new trigger (e.g. through {@link RescheduledQuartzJob}) were not necessarily seen before.
+     */
+    @Override
+    public void jobScheduled(final Trigger trigger)
+    {
+        final JobKey jobKey = trigger.getJobKey();
+        if (jobKey == null || jobs.containsKey(jobKey) || boundJobs.contains(jobKey)) {
+            return;
+        }
+
+        try {
+            // The trigger may have fired and finished already, then the job is done.
+            final Trigger storedTrigger = scheduler.getTrigger(trigger.getKey());
+            if (storedTrigger == null || storedTrigger.getNextFireTime() == null) {
+                return;
+            }
+            final JobDetail jobDetail = scheduler.getJobDetail(jobKey);
+            if (jobDetail != null) {
+                jobAdded(jobDetail);
+            }
+        }
+        catch (SchedulerException se) {
+            LOG.warn(se, "Could not load job %s", jobKey);
+        }
+    }
+
+    @Override
+    public void jobDeleted(final JobKey jobKey)
+    {
+        boundJobs.remove(jobKey);
+
+        final AdHocJobClass jobClass = jobs.remove(jobKey);
+        if (jobClass == null) {
+            return;
+        }
+        jobClass.queued.decrementAndGet();
+
+        final String beanName = jobBeans.remove(jobKey);
+        if (beanName != null) {
+            unexport(beanName);
+            jobBeanCount.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void jobToBeExecuted(final JobExecutionContext context)
+    {
+        final AdHocJobClass jobClass = jobs.get(context.getJobDetail().getKey());
+        if (jobClass != null) {
+            jobClass.running.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void jobExecutionVetoed(final JobExecutionContext context)
+    {
+    }
+
+    @Override
+    public void jobWasExecuted(final JobExecutionContext context, final JobExecutionException jobException)
+    {
+        final AdHocJobClass jobClass = jobs.get(context.getJobDetail().getKey());
+        if (jobClass != null) {
+            jobClass.running.decrementAndGet();
+            jobClass.executions.incrementAndGet();
+            if (jobException != null) {
+                jobClass.failures.incrementAndGet();
+            }
+            jobClass.runtimes.add(context.getJobRunTime());
+
+            final Trigger trigger = context.getTrigger();
+            if (trigger.getNextFireTime() == null) {
+                removeIfDone(trigger);
+            }
+        }
+    }
+
+    @Override
+    public void triggerFinalized(final Trigger trigger)
+    {
+        if (trigger.getJobKey() != null && jobs.containsKey(trigger.getJobKey())) {
+            removeIfDone(trigger);
+        }
+    }
+
+    /**
+     * Ad-hoc jobs are stored durably, so they stay around after their last fire. A job without any
+     * other trigger is done and no longer counted; it comes back when it gets scheduled again.
+     */
+    private void removeIfDone(final Trigger trigger)
+    {
+        final JobKey jobKey = trigger.getJobKey();
+        try {
+            for (final Trigger jobTrigger : scheduler.getTriggersOfJob(jobKey)) {
+                if (!jobTrigger.getKey().equals(trigger.getKey())) {
+                    return;
+                }
+            }
+            jobDeleted(jobKey);
+        }
+        catch (SchedulerException se) {
+            LOG.warn(se, "Could not check job %s", jobKey);
+        }
+    }
+
+    private AdHocJobClass getOrCreateClassBean(final String className)
+    {
+        AdHocJobClass jobClass = classBeans.get(className);
+        if (jobClass == null) {
+            final AdHocJobClass newJobClass = new AdHocJobClass(className);
+            jobClass = classBeans.putIfAbsent(className, newJobClass);
+            if (jobClass == null) {
+                jobClass = newJobClass;
+                try {
+                    mbeanExporter.export(getClassBeanName(className), jobClass);
+                }
+                catch (JmxException je) {
+                    LOG.warn("While exporting %s: %s", getClassBeanName(className), je.getCause());
+                }
+            }
+        }
+        return jobClass;
+    }
+
+    private void unexport(final String beanName)
+    {
+        try {
+            mbeanExporter.unexport(beanName);
+        }
+        catch (JmxException je) {
+            LOG.trace("While unexporting %s: %s", beanName, je.getCause());
+        }
+    }
+
+    static String getClassBeanName(final String className)
+    {
+        return "ness.quartz.job:type=adhoc-class, name=" + className;
+    }
+
+    /**
+     * Aggregated view of all ad-hoc jobs of a job class.
+     */
+    public static class AdHocJobClass
+    {
+        private final String className;
+
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private final AtomicLong executions = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final MinuteWindow runtimes = new MinuteWindow();
+
+        AdHocJobClass(final String className)
+        {
+            this.className = className;
+        }
+
+        @Managed
+        public String getJobClass()
+        {
+            return className;
+        }
+
+        @Managed(description="ad-hoc jobs of this class that are waiting to fire or running")
+        public int getQueued()
+        {
+            return queued.get();
+        }
+
+        @Managed
+        public int getRunning()
+        {
+            return running.get();
+        }
+
+        @Managed
+        public long getExecutions()
+        {
+            return executions.get();
+        }
+
+        @Managed
+        public long getFailures()
+        {
+            return failures.get();
+        }
+
+        @Managed(description="executions that finished within the last minute")
+        public long getThroughputPerMinute()
+        {
+            return runtimes.getCount();
+        }
+
+        @Managed(description="average runtime in ms of the executions of the last minute")
+        public long getAverageRuntimeMillis()
+        {
+            final long count = runtimes.getCount();
+            return count == 0 ? 0L : runtimes.getSum() / count;
+        }
+
+        @Managed(description="maximum runtime in ms of the executions of the last minute")
+        public long getMaxRuntimeMillis()
+        {
+            return runtimes.getMax();
+        }
+    }
+}
@@ -18,11 +18,18 @@ package com.nesscomputing.quartz;
 import java.io.Serializable;
 
 import org.quartz.Job;
+import org.quartz.JobDetail;
 import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
 
+import com.google.common.base.Preconditions;
+
 public final class AdHocQuartzJob extends QuartzJob<AdHocQuartzJob>
 {
+    private Object parameters = null;
+    private JobParameterCodec<Object> codec = null;
+    private String traceContext = null;
+
     public static AdHocQuartzJob forClass(final Class<? extends Job> jobClass)
     {
         return new AdHocQuartzJob(jobClass);
@@ -39,9 +46,63 @@ public final class AdHocQuartzJob extends QuartzJob<AdHocQuartzJob>
         return this;
     }
 
+    /**
+     * Attaches a parameter object for a {@link ParameterizedJob}. If the job store does not support
+     * persistence, the object is handed to the job as is, otherwise it must be serializable.
+     */
+    public AdHocQuartzJob parameters(final Object parameters)
+    {
+        return parameters(parameters, null);
+    }
+
+    /**
+     * Attaches a parameter object for a {@link ParameterizedJob}. The codec is only used if the
+     * job store supports persistence.
+     */
+    @SuppressWarnings("unchecked")
+    public <P> AdHocQuartzJob parameters(final P parameters, final JobParameterCodec<P> codec)
+    {
+        Preconditions.checkArgument(parameters != null, "parameters must not be null!");
+        this.parameters = parameters;
+        this.codec = (JobParameterCodec<Object>) codec;
+        return this;
+    }
+
+    /**
+     * Sets the trace context (e.g. of the request that submits the job) that the span of the
+     * execution continues. Without it, a job submitted from another job continues the trace of
+     * that job.
+     */
+    public AdHocQuartzJob traceContext(final String traceContext)
+    {
+        this.traceContext = traceContext;
+        return this;
+    }
+
+    /**
+     * Returns an independent copy of this job, e.g. to submit it under a different name.
+     */
+    AdHocQuartzJob copy()
+    {
+        final AdHocQuartzJob copy = new AdHocQuartzJob(getJobClass());
+        copy.copySettings(this);
+        copy.parameters = parameters;
+        copy.codec = codec;
+        copy.traceContext = traceContext;
+        return copy;
+    }
+
     public void submit(final Scheduler scheduler)
         throws SchedulerException
     {
-        scheduler.scheduleJob(getJobDetail(), getTrigger());
+        final JobDetail jobDetail = getJobDetail();
+        if (parameters != null) {
+            JobParameters.store(jobDetail.getJobDataMap(), parameters, codec, scheduler.getMetaData().isJobStoreSupportsPersistence());
+        }
+        final String context = traceContext == null ? QuartzJobWrapper.currentTraceContext() : traceContext;
+        if (context != null) {
+            jobDetail.getJobDataMap().put(QuartzJobWrapper.TRACE_CONTEXT_KEY, context);
+        }
+        scheduler.scheduleJob(jobDetail, getTrigger());
     }
 }
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import org.quartz.JobExecutionContext;
+
+/**
+ * Signals a running job that it should stop. Every job run through the {@link GuiceJobFactory} finds a
+ * token in its execution context and can poll it, whether it implements InterruptableJob or not.
+ */
+public final class CancellationToken
+{
+    static final String CONTEXT_KEY = "ness.quartz.cancellation-token";
+
+    /**
+     * Why a job was cancelled.
+     */
+    public enum Reason
+    {
+        INTERRUPTED, TIMED_OUT;
+    }
+
+    private volatile Reason reason = null;
+
+    /**
+     * Returns the token of the job in the given context. Jobs that were not created by the GuiceJobFactory
+     * get a token that is never cancelled.
+     */
+    public static CancellationToken forContext(final JobExecutionContext context)
+    {
+        final Object token = context.get(CONTEXT_KEY);
+        return token instanceof CancellationToken ? (CancellationToken) token : new CancellationToken();
+    }
+
+    CancellationToken()
+    {
+    }
+
+    public boolean isCancelled()
+    {
+        return reason != null;
+    }
+
+    /**
+     * Returns the reason for the cancellation or null.
+     */
+    public Reason getReason()
+    {
+        return reason;
+    }
+
+    void cancel(final Reason reason)
+    {
+        if (this.reason == null) {
+            this.reason = reason;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return reason == null ? "active" : "cancelled: " + reason;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.io.Serializable;
+
+import org.quartz.JobExecutionContext;
+import org.quartz.SchedulerException;
+
+/**
+ * Keeps the cursor of an {@link IncrementalQuartzJob} between chunks and between fires. The default
+ * keeps it in the job data of the job; bind an implementation in Guice to use a different store.
+ */
+public interface CheckpointStore
+{
+    /**
+     * Returns the last saved cursor of the job or null.
+     */
+    Serializable load(JobExecutionContext context) throws SchedulerException;
+
+    void save(JobExecutionContext context, Serializable cursor) throws SchedulerException;
+
+    void clear(JobExecutionContext context) throws SchedulerException;
+}
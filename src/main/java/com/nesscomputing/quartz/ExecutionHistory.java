@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import static java.lang.String.format;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.joda.time.format.ISODateTimeFormat;
+import org.quartz.JobKey;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+import com.google.inject.Inject;
+
+/**
+ * Keeps the last executions of every job in a fixed size ring buffer. The number of jobs that are tracked
+ * is bounded as well, the least recently executed jobs are dropped first.
+ */
+public class ExecutionHistory
+{
+    /**
+     * How an execution ended.
+     */
+    public enum Outcome
+    {
+        SUCCESS, FAILED, CANCELLED, TIMED_OUT, DEFERRED;
+    }
+
+    private final int size;
+    private final String nodeId;
+    private final LoadingCache<JobKey, Ring> rings;
+
+    @Inject
+    ExecutionHistory(final NessQuartzConfig nessQuartzConfig)
+    {
+        this.size = nessQuartzConfig.getHistorySize();
+        this.nodeId = Objects.firstNonNull(nessQuartzConfig.getNodeId(), FireSmoothing.LOCAL_NODE_ID);
+        this.rings = CacheBuilder.newBuilder()
+            .maximumSize(nessQuartzConfig.getHistoryJobs())
+            .build(new CacheLoader<JobKey, Ring>() {
+                @Override
+                public Ring load(final JobKey jobKey) {
+                    return new Ring(size);
+                }
+            });
+    }
+
+    void record(final JobKey jobKey, final Date scheduledFireTime, final Date fireTime, final long durationMillis, final Outcome outcome, final Throwable error)
+    {
+        if (size <= 0) {
+            return;
+        }
+        rings.getUnchecked(jobKey).add(new Execution(scheduledFireTime, fireTime, durationMillis, outcome, nodeId, error == null ? null : error.toString()));
+    }
+
+    /**
+     * Returns the recorded executions of a job, newest first.
+     */
+    public List<Execution> getExecutions(final JobKey jobKey)
+    {
+        final Ring ring = rings.getIfPresent(jobKey);
+        return ring == null ? Collections.<Execution>emptyList() : ring.snapshot();
+    }
+
+    public void clear(final JobKey jobKey)
+    {
+        rings.invalidate(jobKey);
+    }
+
+    /**
+     * Lock-free ring buffer. Writers claim a slot with a single increment; a reader may see a slot that
+     * is overwritten while it reads, which only means it sees a newer execution.
+     */
+    private static final class Ring
+    {
+        private final AtomicReferenceArray<Execution> slots;
+        private final AtomicLong next = new AtomicLong();
+
+        Ring(final int capacity)
+        {
+            this.slots = new AtomicReferenceArray<Execution>(capacity);
+        }
+
+        void add(final Execution execution)
+        {
+            slots.set((int) (next.getAndIncrement() % slots.length()), execution);
+        }
+
+        List<Execution> snapshot()
+        {
+            final long last = next.get();
+            final List<Execution> executions = Lists.newArrayListWithCapacity(slots.length());
+            for (long i = last - 1; i >= 0 && i >= last - slots.length(); i--) {
+                final Execution execution = slots.get((int) (i % slots.length()));
+                if (execution != null) {
+                    executions.add(execution);
+                }
+            }
+            return executions;
+        }
+    }
+
+    /**
+     * A single execution of a job.
+     */
+    public static final class Execution
+    {
+        private final Date scheduledFireTime;
+        private final Date fireTime;
+        private final long durationMillis;
+        private final Outcome outcome;
+        private final String nodeId;
+        private final String error;
+
+        Execution(final Date scheduledFireTime, final Date fireTime, final long durationMillis, final Outcome outcome, final String nodeId, final String error)
+        {
+            this.scheduledFireTime = scheduledFireTime;
+            this.fireTime = fireTime;
+            this.durationMillis = durationMillis;
+            this.outcome = outcome;
+            this.nodeId = nodeId;
+            this.error = error;
+        }
+
+        public Date getScheduledFireTime()
+        {
+            return scheduledFireTime;
+        }
+
+        public Date getFireTime()
+        {
+            return fireTime;
+        }
+
+        public long getDurationMillis()
+        {
+            return durationMillis;
+        }
+
+        public Outcome getOutcome()
+        {
+            return outcome;
+        }
+
+        public String getNodeId()
+        {
+            return nodeId;
+        }
+
+        public String getError()
+        {
+            return error;
+        }
+
+        @Override
+        public String toString()
+        {
+            return format("%s: scheduled=%s, started=%s, duration=%dms, node=%s%s",
+                          outcome,
+                          scheduledFireTime == null ? "-" : ISODateTimeFormat.dateTime().print(scheduledFireTime.getTime()),
+                          fireTime == null ? "-" : ISODateTimeFormat.dateTime().print(fireTime.getTime()),
+                          durationMillis,
+                          nodeId,
+                          error == null ? "" : ", error=" + error);
+        }
+    }
+}
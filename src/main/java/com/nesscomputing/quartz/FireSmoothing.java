@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Spreads the fire times of jobs so that jobs scheduled for the same time do not all fire together,
+ * neither on one node nor across nodes.
+ */
+final class FireSmoothing
+{
+    static final String LOCAL_NODE_ID = findLocalNodeId();
+
+    private FireSmoothing()
+    {
+    }
+
+    /**
+     * Returns a deterministic offset between 0 and jitterMillis (exclusive) for a job on a node.
+     */
+    static long getOffset(final String jobName, final String nodeId, final long jitterMillis)
+    {
+        if (jitterMillis <= 0L) {
+            return 0L;
+        }
+
+        final long hash = Hashing.murmur3_128().newHasher()
+            .putString(jobName, Charsets.UTF_8)
+            .putChar('@')
+            .putString(nodeId == null ? LOCAL_NODE_ID : nodeId, Charsets.UTF_8)
+            .hash().asLong();
+
+        return (hash & Long.MAX_VALUE) % jitterMillis;
+    }
+
+    /**
+     * Returns a time zone whose wall clock lags the base zone by the given offset. A cron
+     * expression evaluated in this zone fires offsetMillis later than in the base zone.
+     */
+    static TimeZone shift(final TimeZone base, final long offsetMillis)
+    {
+        return offsetMillis == 0L ? base : new ShiftedTimeZone(base, (int) offsetMillis);
+    }
+
+    private static String findLocalNodeId()
+    {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException uhe) {
+            return "localhost";
+        }
+    }
+
+    /**
+     * Keeps the id of the base zone, so a job store that only persists the zone id falls back to
+     * the unshifted schedule.
+     */
+    static final class ShiftedTimeZone extends TimeZone
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final TimeZone base;
+        private final int shift;
+
+        ShiftedTimeZone(final TimeZone base, final int shift)
+        {
+            this.base = base;
+            this.shift = shift;
+            setID(base.getID());
+        }
+
+        @Override
+        public int getOffset(final int era, final int year, final int month, final int day, final int dayOfWeek, final int milliseconds)
+        {
+            return base.getOffset(era, year, month, day, dayOfWeek, milliseconds) - shift;
+        }
+
+        @Override
+        public int getOffset(final long date)
+        {
+            return base.getOffset(date) - shift;
+        }
+
+        @Override
+        public void setRawOffset(final int offsetMillis)
+        {
+            base.setRawOffset(offsetMillis + shift);
+        }
+
+        @Override
+        public int getRawOffset()
+        {
+            return base.getRawOffset() - shift;
+        }
+
+        @Override
+        public int getDSTSavings()
+        {
+            return base.getDSTSavings();
+        }
+
+        @Override
+        public boolean useDaylightTime()
+        {
+            return base.useDaylightTime();
+        }
+
+        @Override
+        public boolean inDaylightTime(final Date date)
+        {
+            return base.inDaylightTime(date);
+        }
+    }
+
+    /**
+     * Counts how many jobs fire within the same second and reports the size of each cluster with
+     * the first fire of a later second, or when the monitor is flushed.
+     */
+    static final class ClusterMonitor
+    {
+        private static final int SLOTS = 64;
+        private static final int COUNT_BITS = 20;
+        private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+
+        private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+        private final AtomicLong reportedSecond = new AtomicLong();
+        private final QuartzMetrics.Histogram clusterSize;
+
+        ClusterMonitor(final QuartzMetrics.Histogram clusterSize)
+        {
+            this.clusterSize = clusterSize;
+        }
+
+        void fired(final long scheduledFireTime)
+        {
+            final long second = scheduledFireTime / 1000L;
+            count(second);
+
+            // Only one thread per second sweeps the finished clusters.
+            final long reported = reportedSecond.get();
+            if (second > reported && reportedSecond.compareAndSet(reported, second)) {
+                report(second);
+            }
+        }
+
+        /**
+         * Reports all clusters, including the one of the current second.
+         */
+        void flush()
+        {
+            report(Long.MAX_VALUE);
+        }
+
+        private void count(final long second)
+        {
+            final int slot = (int) (second % SLOTS);
+
+            while (true) {
+                final long value = slots.get(slot);
+                final long slotSecond = value >>> COUNT_BITS;
+
+                if (slotSecond == second) {
+                    if ((value & COUNT_MASK) == COUNT_MASK || slots.compareAndSet(slot, value, value + 1)) {
+                        return;
+                    }
+                }
+                else if (slotSecond < second) {
+                    if (slots.compareAndSet(slot, value, (second << COUNT_BITS) | 1L)) {
+                        if (value != 0L) {
+                            clusterSize.update(value & COUNT_MASK);
+                        }
+                        return;
+                    }
+                }
+                else {
+                    // A very late fire, the slot has already moved on.
+                    clusterSize.update(1L);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Reports and clears all clusters of seconds before the given one.
+         */
+        private void report(final long second)
+        {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                final long value = slots.get(slot);
+                if (value != 0L && (value >>> COUNT_BITS) < second && slots.compareAndSet(slot, value, 0L)) {
+                    clusterSize.update(value & COUNT_MASK);
+                }
+            }
+        }
+    }
+}
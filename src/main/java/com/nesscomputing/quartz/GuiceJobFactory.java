@@ -15,7 +15,15 @@
  */
 package com.nesscomputing.quartz;
 
+import static java.lang.String.format;
+
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import javax.annotation.Nullable;
 
 import org.quartz.Job;
 import org.quartz.JobDetail;
@@ -27,9 +35,9 @@ import org.quartz.spi.TriggerFiredBundle;
 
 import com.google.common.base.Objects;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Injector;
-import com.yammer.metrics.core.MetricsRegistry;
 
 /**
  * Implementation of a Quartz JobFactory using Guice to get the jobs to run. This allows for injection on
@@ -37,22 +45,70 @@ import com.yammer.metrics.core.MetricsRegistry;
  */
 public class GuiceJobFactory implements JobFactory
 {
+    /** Group of the statistics that jobs added at runtime are aggregated into, one per job class. */
+    static final String AD_HOC_GROUP = "ness.quartz.adhoc";
+
     private static final ConcurrentMap<JobKey, QuartzJobStatistics> jobStatistics = Maps.newConcurrentMap();
 
     private final Injector injector;
+    private final NessQuartzConfig nessQuartzConfig;
+    private final ExecutionHistory executionHistory;
+    private final RunningJobsIndex runningJobsIndex;
+    private final SlowExecutionProfiler slowExecutionProfiler;
+    private final JobFlightRecorder jobFlightRecorder;
 
-    private MetricsRegistry metricsRegistry = null;
+    private final QuartzMetrics quartzMetrics;
+    private final FireSmoothing.ClusterMonitor clusterMonitor;
+    private final RateLimit.Buckets rateLimits = new RateLimit.Buckets();
+    private final ScheduledThreadPoolExecutor timeoutExecutor;
+    private ForkJoinPool forkJoinPool = null;
+    private JobTracer jobTracer = JobTracer.NOOP;
 
     @Inject
-    GuiceJobFactory(final Injector injector)
+    GuiceJobFactory(final Injector injector,
+                    final NessQuartzConfig nessQuartzConfig,
+                    final ExecutionHistory executionHistory,
+                    final RunningJobsIndex runningJobsIndex,
+                    final SlowExecutionProfiler slowExecutionProfiler,
+                    final JobFlightRecorder jobFlightRecorder,
+                    final ResolvedQuartzMetrics quartzMetrics)
     {
         this.injector = injector;
+        this.nessQuartzConfig = nessQuartzConfig;
+        this.executionHistory = executionHistory;
+        this.runningJobsIndex = runningJobsIndex;
+        this.slowExecutionProfiler = slowExecutionProfiler;
+        this.jobFlightRecorder = jobFlightRecorder;
+        this.quartzMetrics = quartzMetrics;
+        this.clusterMonitor = new FireSmoothing.ClusterMonitor(quartzMetrics.histogram("ness.quartz.scheduler", "statistics", "fire-cluster-size"));
+
+        // The thread is only started by the first job with a timeout.
+        this.timeoutExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("ness-quartz-timeout").setDaemon(true).build());
+        this.timeoutExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Returns the statistics of the bound jobs that have been executed so far and of the classes of the
+     * jobs that were added at runtime.
+     */
+    static Map<JobKey, QuartzJobStatistics> getJobStatistics()
+    {
+        return Collections.unmodifiableMap(jobStatistics);
+    }
+
+    /**
+     * Returns the statistics of a bound job or of a class of jobs added at runtime (in the {@link #AD_HOC_GROUP} group).
+     */
+    @Nullable
+    static QuartzJobStatistics getJobStatistics(final JobKey jobKey)
+    {
+        return jobStatistics.get(jobKey);
     }
 
     @Inject(optional=true)
-    void injectMetricsRegistry(final MetricsRegistry metricsRegistry)
+    void injectJobTracer(final JobTracer jobTracer)
     {
-        this.metricsRegistry = metricsRegistry;
+        this.jobTracer = jobTracer;
     }
 
     @Override
@@ -61,20 +117,86 @@ public class GuiceJobFactory implements JobFactory
         final JobDetail jobDetail = bundle.getJobDetail();
 
         final Class<? extends Job> jobClass = jobDetail.getJobClass();
+        final Object flightEvent = jobFlightRecorder.beginInstantiation();
         final Job job =  injector.getInstance(jobClass);
+        jobFlightRecorder.commitInstantiation(flightEvent, jobDetail.getKey(), jobClass);
+
+        if (job instanceof ParameterizedJob) {
+            setParameters((ParameterizedJob<?>) job, jobDetail);
+        }
+
+        if (job instanceof ParallelQuartzJob) {
+            ((ParallelQuartzJob<?, ?>) job).setForkJoinPool(getForkJoinPool());
+        }
+
+        if (bundle.getScheduledFireTime() != null) {
+            clusterMonitor.fired(bundle.getScheduledFireTime().getTime());
+        }
+
+        final QuartzJobStatistics stats = getStatistics(jobDetail);
+
+        if (job instanceof ParallelQuartzJob) {
+            ((ParallelQuartzJob<?, ?>) job).setStatistics(stats);
+        }
+
+        return new QuartzJobWrapper(job, stats, executionHistory, runningJobsIndex, jobTracer, slowExecutionProfiler, jobFlightRecorder, rateLimits, timeoutExecutor);
+    }
 
-        if (metricsRegistry == null) {
-            return job;
+    /**
+     * Reports the last fire clusters and shuts down the timeout thread and the pool of the parallel
+     * jobs. Called once the scheduler has been shut down, chunks that are still running are completed.
+     */
+    synchronized void shutdown()
+    {
+        clusterMonitor.flush();
+        timeoutExecutor.shutdownNow();
+        if (forkJoinPool != null) {
+            forkJoinPool.shutdown();
         }
+    }
+
+    /**
+     * Bound jobs keep statistics of their own. Jobs added at runtime (e.g. ad-hoc jobs with generated
+     * names) would fill the registry and allocate histograms for every execution, so they only record
+     * into the statistics of their job class.
+     */
+    private QuartzJobStatistics getStatistics(final JobDetail jobDetail)
+    {
+        final String jobClassName = jobDetail.getJobClass().getName();
+        if (jobDetail.getJobDataMap().containsKey(QuartzJobBinder.BOUND_JOB_KEY)) {
+            return getRegisteredStatistics(jobDetail.getKey(), jobClassName, true);
+        }
+        return getRegisteredStatistics(new JobKey(jobClassName, AD_HOC_GROUP), jobClassName, false);
+    }
 
-        final JobKey jobKey = jobDetail.getKey();
+    private QuartzJobStatistics getRegisteredStatistics(final JobKey jobKey, final String jobClassName, final boolean bound)
+    {
         QuartzJobStatistics stats = jobStatistics.get(jobKey);
         if (stats == null) {
-            stats = new QuartzJobStatistics(metricsRegistry, jobKey);
-            final QuartzJobStatistics newStats = jobStatistics.putIfAbsent(jobKey, stats);
-            stats = Objects.firstNonNull(newStats, stats);
+            stats = new QuartzJobStatistics(quartzMetrics, jobKey, jobClassName, bound);
+            stats = Objects.firstNonNull(jobStatistics.putIfAbsent(jobKey, stats), stats);
         }
+        return stats;
+    }
 
-        return new QuartzJobWrapper(job, stats);
+    private synchronized ForkJoinPool getForkJoinPool()
+    {
+        if (forkJoinPool == null) {
+            final int parallelism = nessQuartzConfig.getParallelism();
+            forkJoinPool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        }
+        return forkJoinPool;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void setParameters(final ParameterizedJob<?> job, final JobDetail jobDetail) throws SchedulerException
+    {
+        final Object parameters = JobParameters.retrieve(jobDetail.getJobDataMap(), injector);
+        try {
+            ((ParameterizedJob<Object>) job).setParameters(parameters);
+        }
+        catch (ClassCastException cce) {
+            throw new SchedulerException(format("Job %s does not accept parameters of type %s", jobDetail.getKey(), parameters.getClass().getName()), cce);
+        }
     }
 }
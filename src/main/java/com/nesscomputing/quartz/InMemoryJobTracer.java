@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import static java.lang.String.format;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.quartz.JobKey;
+import org.quartz.TriggerKey;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Keeps all finished spans in memory, mostly useful for tests. Trace contexts use the W3C
+ * <tt>traceparent</tt> format (<tt>00-&lt;trace id&gt;-&lt;span id&gt;-01</tt>), a parent context
+ * in any other format starts a new trace.
+ */
+public class InMemoryJobTracer implements JobTracer
+{
+    private static final Pattern TRACE_PARENT = Pattern.compile("00-([0-9a-f]{32})-([0-9a-f]{16})-[0-9a-f]{2}");
+
+    private final List<RecordedSpan> spans = new CopyOnWriteArrayList<RecordedSpan>();
+
+    /**
+     * Returns a context for a new trace, e.g. to simulate the request that submits a job.
+     */
+    public static String newRootContext()
+    {
+        return toContext(newId(2), newId(1));
+    }
+
+    @Override
+    public Span startSpan(final JobKey jobKey, final TriggerKey triggerKey, final String parentContext, final long queueDelayMillis)
+    {
+        String traceId = null;
+        String parentSpanId = null;
+        if (parentContext != null) {
+            final Matcher matcher = TRACE_PARENT.matcher(parentContext);
+            if (matcher.matches()) {
+                traceId = matcher.group(1);
+                parentSpanId = matcher.group(2);
+            }
+        }
+        return new RecordedSpan(traceId == null ? newId(2) : traceId, newId(1), parentSpanId, jobKey, triggerKey, queueDelayMillis);
+    }
+
+    /**
+     * Returns the finished spans, oldest first.
+     */
+    public List<RecordedSpan> getSpans()
+    {
+        return ImmutableList.copyOf(spans);
+    }
+
+    public void clear()
+    {
+        spans.clear();
+    }
+
+    private static String newId(final int longs)
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < longs; i++) {
+            sb.append(format("%016x", ThreadLocalRandom.current().nextLong()));
+        }
+        return sb.toString();
+    }
+
+    private static String toContext(final String traceId, final String spanId)
+    {
+        return "00-" + traceId + "-" + spanId + "-01";
+    }
+
+    public final class RecordedSpan implements Span
+    {
+        private final String traceId;
+        private final String spanId;
+        private final String parentSpanId;
+        private final JobKey jobKey;
+        private final TriggerKey triggerKey;
+        private final long queueDelayMillis;
+        private final long startNanos = System.nanoTime();
+
+        private volatile ExecutionHistory.Outcome outcome = null;
+        private volatile Throwable error = null;
+        private volatile long durationMillis = -1L;
+
+        private RecordedSpan(final String traceId, final String spanId, final String parentSpanId, final JobKey jobKey, final TriggerKey triggerKey, final long queueDelayMillis)
+        {
+            this.traceId = traceId;
+            this.spanId = spanId;
+            this.parentSpanId = parentSpanId;
+            this.jobKey = jobKey;
+            this.triggerKey = triggerKey;
+            this.queueDelayMillis = queueDelayMillis;
+        }
+
+        @Override
+        public String getContext()
+        {
+            return toContext(traceId, spanId);
+        }
+
+        @Override
+        public void end(final ExecutionHistory.Outcome outcome, final Throwable error)
+        {
+            this.outcome = outcome;
+            this.error = error;
+            this.durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            spans.add(this);
+        }
+
+        public String getTraceId()
+        {
+            return traceId;
+        }
+
+        public String getSpanId()
+        {
+            return spanId;
+        }
+
+        @Nullable
+        public String getParentSpanId()
+        {
+            return parentSpanId;
+        }
+
+        public JobKey getJobKey()
+        {
+            return jobKey;
+        }
+
+        public TriggerKey getTriggerKey()
+        {
+            return triggerKey;
+        }
+
+        public long getQueueDelayMillis()
+        {
+            return queueDelayMillis;
+        }
+
+        public ExecutionHistory.Outcome getOutcome()
+        {
+            return outcome;
+        }
+
+        @Nullable
+        public Throwable getError()
+        {
+            return error;
+        }
+
+        public long getDurationMillis()
+        {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return format("%s %s/%s (parent %s): %s after %dms, queued %dms", jobKey, traceId, spanId, parentSpanId, outcome, durationMillis, queueDelayMillis);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import static java.lang.String.format;
+
+import java.io.Serializable;
+
+import javax.annotation.Nullable;
+
+import org.quartz.InterruptableJob;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.SchedulerException;
+import org.quartz.UnableToInterruptJobException;
+
+import com.google.common.base.Objects;
+import com.google.inject.Inject;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Base class for jobs that work through their input in bounded chunks. After every chunk, the cursor
+ * is saved in a {@link CheckpointStore}, and the next fire resumes from the last saved cursor. An
+ * interrupt or a drain stops the job after the current chunk, so at most one chunk is processed again.
+ *
+ * {@link #processChunk} returns the cursor after the chunk. Returning null ends the input and clears
+ * the checkpoint, the next fire starts from the beginning. Returning the unchanged cursor ends the run
+ * but keeps the checkpoint, which suits inputs that grow over time.
+ *
+ * @param <C> Type of the cursor.
+ */
+public abstract class IncrementalQuartzJob<C extends Serializable> implements InterruptableJob, DrainAware
+{
+    private static final Log LOG = Log.findLog();
+
+    private CheckpointStore checkpointStore = new JobDataCheckpointStore();
+
+    private volatile boolean interrupted = false;
+
+    @Inject(optional=true)
+    void setCheckpointStore(final CheckpointStore checkpointStore)
+    {
+        this.checkpointStore = checkpointStore;
+    }
+
+    /**
+     * Processes the next chunk of at most {@link #getChunkSize()} elements after the cursor, which is
+     * null on the first run.
+     */
+    @Nullable
+    protected abstract C processChunk(JobExecutionContext context, @Nullable C cursor, int chunkSize) throws Exception;
+
+    protected int getChunkSize()
+    {
+        return 1000;
+    }
+
+    protected boolean isInterrupted()
+    {
+        return interrupted;
+    }
+
+    @Override
+    public void execute(final JobExecutionContext context) throws JobExecutionException
+    {
+        try {
+            @SuppressWarnings("unchecked")
+            C cursor = (C) checkpointStore.load(context);
+            if (cursor != null) {
+                LOG.debug("Resuming job %s at %s", context.getJobDetail().getKey(), cursor);
+            }
+
+            while (!interrupted) {
+                final C nextCursor = processChunk(context, cursor, getChunkSize());
+                if (nextCursor == null) {
+                    checkpointStore.clear(context);
+                    return;
+                }
+                if (Objects.equal(cursor, nextCursor)) {
+                    return;
+                }
+                checkpointStore.save(context, nextCursor);
+                cursor = nextCursor;
+            }
+            LOG.info("Job %s interrupted, stopped at %s", context.getJobDetail().getKey(), cursor);
+        }
+        catch (JobExecutionException jee) {
+            throw jee;
+        }
+        catch (SchedulerException se) {
+            throw new JobExecutionException(format("Could not access checkpoint of job %s", context.getJobDetail().getKey()), se);
+        }
+        catch (Exception e) {
+            throw new JobExecutionException(e);
+        }
+    }
+
+    @Override
+    public void interrupt() throws UnableToInterruptJobException
+    {
+        interrupted = true;
+    }
+
+    @Override
+    public void drain()
+    {
+        interrupted = true;
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.io.Serializable;
+
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.SchedulerException;
+
+/**
+ * Stores the cursor in the job data and writes the job back to the job store. The cursor survives
+ * a restart only if the job store does; jobs bound through Guice are rebuilt from their
+ * configuration at startup and lose it.
+ */
+class JobDataCheckpointStore implements CheckpointStore
+{
+    static final String CURSOR_KEY = "ness.quartz.cursor";
+
+    @Override
+    public Serializable load(final JobExecutionContext context)
+    {
+        return (Serializable) context.getJobDetail().getJobDataMap().get(CURSOR_KEY);
+    }
+
+    @Override
+    public void save(final JobExecutionContext context, final Serializable cursor) throws SchedulerException
+    {
+        final JobDetail jobDetail = context.getJobDetail();
+        jobDetail.getJobDataMap().put(CURSOR_KEY, cursor);
+        context.getScheduler().addJob(jobDetail, true);
+    }
+
+    @Override
+    public void clear(final JobExecutionContext context) throws SchedulerException
+    {
+        final JobDetail jobDetail = context.getJobDetail();
+        if (jobDetail.getJobDataMap().remove(CURSOR_KEY) != null) {
+            context.getScheduler().addJob(jobDetail, true);
+        }
+    }
+}
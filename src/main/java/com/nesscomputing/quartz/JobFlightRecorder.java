@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.quartz.JobKey;
+import org.quartz.Trigger;
+import org.quartz.TriggerKey;
+import org.quartz.listeners.SchedulerListenerSupport;
+
+import com.google.common.collect.ImmutableList;
+import com.google.inject.Inject;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Emits Java Flight Recorder events for job instantiation, execution and scheduling, so job activity
+ * lines up with GC pauses and other JVM events in a recording.
+ *
+ * The event types are defined at runtime through <tt>jdk.jfr.EventFactory</tt>, so this works on any
+ * JVM and does nothing if JFR is not there or <code>ness.quartz.jfr-events</code> is off. With JFR
+ * present but not recording, every call costs one check whether the event type is enabled.
+ */
+class JobFlightRecorder
+{
+    private static final Log LOG = Log.findLog();
+
+    static final String INSTANTIATION_EVENT = "ness.quartz.JobInstantiation";
+    static final String EXECUTION_EVENT = "ness.quartz.JobExecution";
+    static final String SCHEDULING_EVENT = "ness.quartz.JobScheduling";
+
+    private final boolean enabled;
+
+    @Inject
+    JobFlightRecorder(final NessQuartzConfig nessQuartzConfig)
+    {
+        this.enabled = nessQuartzConfig.isJfrEvents() && EventTypes.INSTANTIATION != null;
+    }
+
+    boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Returns an event that was begun or null if it will not be recorded.
+     */
+    @Nullable
+    Object beginInstantiation()
+    {
+        return enabled ? EventTypes.INSTANTIATION.begin() : null;
+    }
+
+    void commitInstantiation(@Nullable final Object event, final JobKey jobKey, final Class<?> jobClass)
+    {
+        if (event != null) {
+            EventTypes.INSTANTIATION.commit(event, jobKey.toString(), jobClass.getName());
+        }
+    }
+
+    @Nullable
+    Object beginExecution()
+    {
+        return enabled ? EventTypes.EXECUTION.begin() : null;
+    }
+
+    void commitExecution(@Nullable final Object event, final JobKey jobKey, final TriggerKey triggerKey, @Nullable final Date scheduledFireTime, final Date fireTime, final ExecutionHistory.Outcome outcome)
+    {
+        if (event != null) {
+            EventTypes.EXECUTION.commit(event, jobKey.toString(), triggerKey.toString(), toMillis(scheduledFireTime), toMillis(fireTime), outcome.name());
+        }
+    }
+
+    /**
+     * Returns a listener that records an event whenever a trigger is scheduled, whichever way it was
+     * submitted, or null if events are off.
+     */
+    @Nullable
+    SchedulerListenerSupport getSchedulingListener()
+    {
+        if (!enabled) {
+            return null;
+        }
+
+        return new SchedulerListenerSupport() {
+            @Override
+            public void jobScheduled(final Trigger trigger)
+            {
+                final Object event = EventTypes.SCHEDULING.begin();
+                if (event != null) {
+                    EventTypes.SCHEDULING.commit(event, String.valueOf(trigger.getJobKey()), trigger.getKey().toString(), toMillis(trigger.getNextFireTime()), trigger.getPriority());
+                }
+            }
+        };
+    }
+
+    private static long toMillis(final Date date)
+    {
+        return date == null ? 0L : date.getTime();
+    }
+
+    /**
+     * Event types are registered once per JVM, no matter how many schedulers exist.
+     */
+    private static final class EventTypes
+    {
+        static final FlightEventType INSTANTIATION;
+        static final FlightEventType EXECUTION;
+        static final FlightEventType SCHEDULING;
+
+        static {
+            FlightEventType instantiation = null;
+            FlightEventType execution = null;
+            FlightEventType scheduling = null;
+            try {
+                final FieldBuilder fields = new FieldBuilder();
+                instantiation = new FlightEventType(INSTANTIATION_EVENT, "Job Instantiation", ImmutableList.of(
+                    fields.field(String.class, "jobKey", "Job Key"),
+                    fields.field(String.class, "jobClass", "Job Class")));
+                execution = new FlightEventType(EXECUTION_EVENT, "Job Execution", ImmutableList.of(
+                    fields.field(String.class, "jobKey", "Job Key"),
+                    fields.field(String.class, "triggerKey", "Trigger Key"),
+                    fields.timestamp("scheduledFireTime", "Scheduled Fire Time"),
+                    fields.timestamp("fireTime", "Fire Time"),
+                    fields.field(String.class, "outcome", "Outcome")));
+                scheduling = new FlightEventType(SCHEDULING_EVENT, "Job Scheduling", ImmutableList.of(
+                    fields.field(String.class, "jobKey", "Job Key"),
+                    fields.field(String.class, "triggerKey", "Trigger Key"),
+                    fields.timestamp("nextFireTime", "Next Fire Time"),
+                    fields.field(int.class, "priority", "Priority")));
+            }
+            catch (ClassNotFoundException cnfe) {
+                LOG.debug("No Java Flight Recorder in this JVM, job events are off");
+            }
+            catch (ReflectiveOperationException roe) {
+                LOG.warn(roe, "Could not define Java Flight Recorder events, job events are off");
+            }
+
+            INSTANTIATION = instantiation;
+            EXECUTION = execution;
+            SCHEDULING = scheduling;
+        }
+    }
+
+    /**
+     * Builds <tt>jdk.jfr.ValueDescriptor</tt>s for event fields.
+     */
+    private static final class FieldBuilder
+    {
+        private final Constructor<?> valueDescriptor;
+        private final Class<? extends Annotation> labelType;
+        private final Class<? extends Annotation> timestampType;
+        private final Constructor<?> annotationElement;
+
+        FieldBuilder() throws ReflectiveOperationException
+        {
+            final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            this.valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor").getConstructor(Class.class, String.class, List.class);
+            this.annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            this.labelType = Class.forName("jdk.jfr.Label").asSubclass(Annotation.class);
+            this.timestampType = Class.forName("jdk.jfr.Timestamp").asSubclass(Annotation.class);
+        }
+
+        Object field(final Class<?> type, final String name, final String label) throws ReflectiveOperationException
+        {
+            return valueDescriptor.newInstance(type, name, ImmutableList.of(annotationElement.newInstance(labelType, label)));
+        }
+
+        Object timestamp(final String name, final String label) throws ReflectiveOperationException
+        {
+            return valueDescriptor.newInstance(long.class, name, ImmutableList.of(annotationElement.newInstance(labelType, label),
+                                                                                  annotationElement.newInstance(timestampType, "MILLISECONDS_SINCE_EPOCH")));
+        }
+    }
+
+    /**
+     * An event type defined through <tt>jdk.jfr.EventFactory</tt>. Events are created, begun and
+     * committed through reflection.
+     */
+    private static final class FlightEventType
+    {
+        private final Object factory;
+        private final Object eventType;
+        private final Method isEnabled;
+        private final Method newEvent;
+        private final Method begin;
+        private final Method end;
+        private final Method set;
+        private final Method commit;
+
+        FlightEventType(final String name, final String label, final List<Object> fields) throws ReflectiveOperationException
+        {
+            final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            final Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            final List<Object> annotations = ImmutableList.of(
+                annotationElement.newInstance(Class.forName("jdk.jfr.Name"), name),
+                annotationElement.newInstance(Class.forName("jdk.jfr.Label"), label),
+                annotationElement.newInstance(Class.forName("jdk.jfr.Category"), new String [] { "Ness", "Quartz" }));
+
+            final Class<?> factoryClass = Class.forName("jdk.jfr.EventFactory");
+            final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+
+            this.factory = factoryClass.getMethod("create", List.class, List.class).invoke(null, annotations, fields);
+            this.eventType = factoryClass.getMethod("getEventType").invoke(factory);
+            this.isEnabled = eventType.getClass().getMethod("isEnabled");
+            this.newEvent = factoryClass.getMethod("newEvent");
+            this.begin = eventClass.getMethod("begin");
+            this.end = eventClass.getMethod("end");
+            this.set = eventClass.getMethod("set", int.class, Object.class);
+            this.commit = eventClass.getMethod("commit");
+        }
+
+        Object begin()
+        {
+            try {
+                if (!((Boolean) isEnabled.invoke(eventType))) {
+                    return null;
+                }
+                final Object event = newEvent.invoke(factory);
+                begin.invoke(event);
+                return event;
+            }
+            catch (ReflectiveOperationException roe) {
+                LOG.trace(roe, "Could not begin event");
+                return null;
+            }
+        }
+
+        void commit(final Object event, final Object... values)
+        {
+            try {
+                end.invoke(event);
+                for (int i = 0; i < values.length; i++) {
+                    set.invoke(event, i, values[i]);
+                }
+                commit.invoke(event);
+            }
+            catch (ReflectiveOperationException roe) {
+                LOG.trace(roe, "Could not commit event");
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.io.Serializable;
+
+/**
+ * Converts job parameters into a form that a persistent job store can hold. The codec is only
+ * used if the job store of the scheduler supports persistence. On the executing side, the codec
+ * is retrieved from Guice.
+ */
+public interface JobParameterCodec<P>
+{
+    Serializable encode(P parameters);
+
+    P decode(Serializable encoded);
+}
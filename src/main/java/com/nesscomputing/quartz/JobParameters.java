@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import static java.lang.String.format;
+
+import java.io.Serializable;
+
+import org.quartz.JobDataMap;
+import org.quartz.SchedulerException;
+
+import com.google.inject.Injector;
+
+/**
+ * Stores and retrieves typed job parameters in a job data map.
+ */
+final class JobParameters
+{
+    static final String PARAMETERS_KEY = "ness.quartz.parameters";
+    static final String CODEC_KEY = "ness.quartz.parameters.codec";
+
+    private JobParameters()
+    {
+    }
+
+    static <P> void store(final JobDataMap jobDataMap, final P parameters, final JobParameterCodec<P> codec, final boolean persistent)
+        throws SchedulerException
+    {
+        if (!persistent) {
+            // The RAM job store only makes shallow copies of the job data map, so the job gets the very same object.
+            jobDataMap.put(PARAMETERS_KEY, parameters);
+        }
+        else if (codec != null) {
+            jobDataMap.put(PARAMETERS_KEY, codec.encode(parameters));
+            jobDataMap.put(CODEC_KEY, codec.getClass().getName());
+        }
+        else if (parameters instanceof Serializable) {
+            jobDataMap.put(PARAMETERS_KEY, parameters);
+        }
+        else {
+            throw new SchedulerException(format("Parameters of type %s are not serializable and no codec was given!", parameters.getClass().getName()));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Object retrieve(final JobDataMap jobDataMap, final Injector injector)
+        throws SchedulerException
+    {
+        final Object parameters = jobDataMap.get(PARAMETERS_KEY);
+        final String codecName = jobDataMap.getString(CODEC_KEY);
+
+        if (parameters == null || codecName == null) {
+            return parameters;
+        }
+
+        try {
+            final Class<? extends JobParameterCodec<Object>> codecClass = (Class<? extends JobParameterCodec<Object>>) Class.forName(codecName).asSubclass(JobParameterCodec.class);
+            return injector.getInstance(codecClass).decode((Serializable) parameters);
+        }
+        catch (ClassNotFoundException cnfe) {
+            throw new SchedulerException(format("Could not load parameter codec %s", codecName), cnfe);
+        }
+    }
+}
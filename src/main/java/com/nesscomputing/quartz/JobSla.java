@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import javax.annotation.Nullable;
+
+import org.quartz.JobDataMap;
+
+import com.google.common.base.Objects;
+
+/**
+ * The service level a job declares: how late it may start, how long it may run and how long it may go
+ * without a successful execution. Like rate limits, the limits are carried in the job data, a limit
+ * of zero is not checked.
+ */
+final class JobSla
+{
+    static final String MAX_START_LAG_KEY = "ness.quartz.sla.max-start-lag";
+    static final String MAX_RUNTIME_KEY = "ness.quartz.sla.max-runtime";
+    static final String MAX_SUCCESS_GAP_KEY = "ness.quartz.sla.max-success-gap";
+
+    private final long maxStartLagMillis;
+    private final long maxRuntimeMillis;
+    private final long maxSuccessGapMillis;
+
+    private JobSla(final long maxStartLagMillis, final long maxRuntimeMillis, final long maxSuccessGapMillis)
+    {
+        this.maxStartLagMillis = maxStartLagMillis;
+        this.maxRuntimeMillis = maxRuntimeMillis;
+        this.maxSuccessGapMillis = maxSuccessGapMillis;
+    }
+
+    /**
+     * Returns the SLA in the job data, or null if the job has none.
+     */
+    @Nullable
+    static JobSla fromJobData(final JobDataMap jobDataMap)
+    {
+        final JobSla sla = new JobSla(getMillis(jobDataMap, MAX_START_LAG_KEY),
+                                      getMillis(jobDataMap, MAX_RUNTIME_KEY),
+                                      getMillis(jobDataMap, MAX_SUCCESS_GAP_KEY));
+        return sla.maxStartLagMillis > 0L || sla.maxRuntimeMillis > 0L || sla.maxSuccessGapMillis > 0L ? sla : null;
+    }
+
+    private static long getMillis(final JobDataMap jobDataMap, final String key)
+    {
+        return jobDataMap.containsKey(key) ? jobDataMap.getLong(key) : 0L;
+    }
+
+    long getMaxStartLagMillis()
+    {
+        return maxStartLagMillis;
+    }
+
+    long getMaxRuntimeMillis()
+    {
+        return maxRuntimeMillis;
+    }
+
+    long getMaxSuccessGapMillis()
+    {
+        return maxSuccessGapMillis;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Objects.toStringHelper(this)
+            .add("maxStartLag", maxStartLagMillis)
+            .add("maxRuntime", maxRuntimeMillis)
+            .add("maxSuccessGap", maxSuccessGapMillis)
+            .toString();
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import javax.annotation.Nullable;
+
+import org.quartz.JobKey;
+import org.quartz.TriggerKey;
+
+/**
+ * Opens a span around every job execution. The default does nothing; bind an implementation in Guice
+ * to hand the spans to a tracing system.
+ */
+public interface JobTracer
+{
+    JobTracer NOOP = new JobTracer() {
+        @Override
+        public Span startSpan(final JobKey jobKey, final TriggerKey triggerKey, final String parentContext, final long queueDelayMillis)
+        {
+            return Span.NOOP;
+        }
+    };
+
+    /**
+     * Starts the span of an execution.
+     *
+     * @param parentContext the trace context the job was submitted with or null.
+     * @param queueDelayMillis time between the scheduled and the actual fire time.
+     */
+    Span startSpan(JobKey jobKey, TriggerKey triggerKey, @Nullable String parentContext, long queueDelayMillis);
+
+    interface Span
+    {
+        Span NOOP = new Span() {
+            @Override
+            public String getContext()
+            {
+                return null;
+            }
+
+            @Override
+            public void end(final ExecutionHistory.Outcome outcome, final Throwable error)
+            {
+            }
+        };
+
+        /**
+         * Returns the trace context that ad-hoc jobs submitted from within the execution carry along, or null.
+         */
+        @Nullable
+        String getContext();
+
+        void end(ExecutionHistory.Outcome outcome, @Nullable Throwable error);
+    }
+}
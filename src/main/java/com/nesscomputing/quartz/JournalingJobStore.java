@@ -0,0 +1,994 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.quartz.Calendar;
+import org.quartz.JobDetail;
+import org.quartz.JobKey;
+import org.quartz.JobPersistenceException;
+import org.quartz.ObjectAlreadyExistsException;
+import org.quartz.SchedulerConfigException;
+import org.quartz.Trigger;
+import org.quartz.TriggerKey;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.simpl.RAMJobStore;
+import org.quartz.spi.ClassLoadHelper;
+import org.quartz.spi.OperableTrigger;
+import org.quartz.spi.SchedulerSignaler;
+import org.quartz.spi.TriggerFiredResult;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nesscomputing.logging.Log;
+
+/**
+ * RAM job store that records all schedule changes in an append-only, memory mapped journal and
+ * replays them when the scheduler is created. Jobs that were bound through a {@link QuartzJobBinder}
+ * are not journaled, because they are registered again on every start. Replacing the trigger of a
+ * bound job (e.g. through {@link RescheduledQuartzJob}) is journaled as an override of the bound
+ * trigger, which takes the place of the bound trigger whenever the job is registered again.
+ *
+ * Writes go into the mapped journal and are forced to disk by a background thread every
+ * <tt>commitInterval</tt> milliseconds (group commit). Every <tt>snapshotInterval</tt> milliseconds
+ * or whenever the journal is full, the content of the store is written into a compacted snapshot
+ * and the journal is reset.
+ *
+ * Use it by setting
+ *
+ * <pre>
+ * org.quartz.jobStore.class = com.nesscomputing.quartz.JournalingJobStore
+ * org.quartz.jobStore.journalDirectory = /var/lib/myservice/quartz
+ * </pre>
+ *
+ * New fire times of triggers are journaled by the commit thread, so after a crash a repeating
+ * trigger may fire once more for a fire time that was reached during the last commit interval.
+ * Trigger pause states are not journaled, paused triggers are resumed after a restart.
+ */
+public class JournalingJobStore extends RAMJobStore
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final String JOURNAL_FILE = "journal.dat";
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 8 + 1;
+
+    private static final byte STORE_JOB = 1;
+    private static final byte REMOVE_JOB = 2;
+    private static final byte STORE_TRIGGER = 3;
+    private static final byte REMOVE_TRIGGER = 4;
+    private static final byte REPLACE_TRIGGER = 5;
+    private static final byte STORE_CALENDAR = 6;
+    private static final byte REMOVE_CALENDAR = 7;
+    private static final byte CLEAR = 8;
+    private static final byte OVERRIDE_TRIGGER = 9;
+    private static final byte REMOVE_OVERRIDE = 10;
+
+    private String journalDirectory = null;
+    private long journalSize = 64L * 1024L * 1024L;
+    private long commitInterval = 100L;
+    private long snapshotInterval = TimeUnit.MINUTES.toMillis(10);
+
+    private final Set<JobKey> boundJobs = Sets.newHashSet();
+    private final Set<TriggerKey> firedTriggerKeys = Sets.newLinkedHashSet();
+    private final Set<TriggerKey> inFlightTriggers = Sets.newHashSet();
+    // Replacements of bound triggers, by the key of the bound trigger.
+    private final Map<TriggerKey, OperableTrigger> overrides = Maps.newHashMap();
+    // Keys of the replacements that are in the store, mapped to the key of the bound trigger.
+    private final Map<TriggerKey, TriggerKey> overrideKeys = Maps.newHashMap();
+    private final ThreadLocal<int []> depth = new ThreadLocal<int []>() {
+        @Override
+        protected int [] initialValue() {
+            return new int [1];
+        }
+    };
+
+    private RandomAccessFile journalFile = null;
+    private MappedByteBuffer journal = null;
+    private ScheduledExecutorService executor = null;
+    private long generation = 0L;
+    private boolean replaying = false;
+    private boolean corrupt = false;
+    private volatile boolean dirty = false;
+
+    public void setJournalDirectory(final String journalDirectory)
+    {
+        this.journalDirectory = journalDirectory;
+    }
+
+    public void setJournalSize(final long journalSize)
+    {
+        this.journalSize = journalSize;
+    }
+
+    public void setCommitInterval(final long commitInterval)
+    {
+        this.commitInterval = commitInterval;
+    }
+
+    public void setSnapshotInterval(final long snapshotInterval)
+    {
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    @Override
+    public void initialize(final ClassLoadHelper loadHelper, final SchedulerSignaler schedulerSignaler)
+    {
+        super.initialize(loadHelper, schedulerSignaler);
+
+        if (journalDirectory == null) {
+            throw new IllegalStateException("No journal directory configured (org.quartz.jobStore.journalDirectory)!");
+        }
+
+        try {
+            final File directory = new File(journalDirectory);
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new SchedulerConfigException("Could not create journal directory " + directory);
+            }
+
+            synchronized (lock) {
+                final long startTime = System.nanoTime();
+                replaying = true;
+                try {
+                    final int snapshotCount = loadSnapshot(new File(directory, SNAPSHOT_FILE));
+                    openJournal(new File(directory, JOURNAL_FILE));
+                    final int journalCount = replayJournal();
+                    LOG.info("Restored %d jobs from snapshot and %d journal records in %d ms", snapshotCount, journalCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+                }
+                finally {
+                    replaying = false;
+                }
+
+                if (corrupt) {
+                    // Start a new generation, so that no record behind the corrupt one can ever be replayed.
+                    compact(true);
+                }
+            }
+        }
+        catch (Exception e) {
+            throw new IllegalStateException("Could not restore journal from " + journalDirectory, e);
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("ness-quartz-journal-%d").setDaemon(true).build());
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                commit();
+            }
+        }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                }
+                catch (JobPersistenceException jpe) {
+                    LOG.error(jpe, "Could not write snapshot");
+                }
+            }
+        }, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void shutdown()
+    {
+        super.shutdown();
+
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+
+        synchronized (lock) {
+            if (journal != null) {
+                journalFiredTriggers();
+                journal.force();
+                journal = null;
+            }
+            if (journalFile != null) {
+                try {
+                    journalFile.close();
+                }
+                catch (IOException ioe) {
+                    LOG.warn(ioe, "While closing journal");
+                }
+                journalFile = null;
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsPersistence()
+    {
+        // Everything that is not bound is serialized into the journal, so job parameters must be serializable.
+        return true;
+    }
+
+    @Override
+    public void storeJob(final JobDetail newJob, final boolean replaceExisting) throws ObjectAlreadyExistsException
+    {
+        synchronized (lock) {
+            final byte [] data;
+            try {
+                data = isOutermost() && !isBound(newJob) ? prepare(newJob) : null;
+            }
+            catch (JobPersistenceException jpe) {
+                // RAMJobStore#storeJob can not throw a JobPersistenceException.
+                throw new IllegalStateException(jpe);
+            }
+
+            enter();
+            try {
+                super.storeJob(newJob, replaceExisting);
+            }
+            finally {
+                leave();
+            }
+
+            if (isBound(newJob)) {
+                boundJobs.add(newJob.getKey());
+            }
+            else if (data != null) {
+                writeUnchecked(STORE_JOB, data);
+            }
+        }
+    }
+
+    @Override
+    public void storeTrigger(final OperableTrigger newTrigger, final boolean replaceExisting) throws JobPersistenceException
+    {
+        synchronized (lock) {
+            final byte [] data = isOutermost() && !boundJobs.contains(newTrigger.getJobKey()) ? prepare(newTrigger) : null;
+
+            enter();
+            try {
+                super.storeTrigger(newTrigger, replaceExisting);
+            }
+            finally {
+                leave();
+            }
+
+            if (data != null) {
+                forgetFired(newTrigger.getKey());
+                writeUnchecked(STORE_TRIGGER, data);
+            }
+            else if (isOutermost() && overrides.containsKey(newTrigger.getKey())) {
+                applyOverride(newTrigger.getKey());
+            }
+        }
+    }
+
+    @Override
+    public void storeJobAndTrigger(final JobDetail newJob, final OperableTrigger newTrigger) throws JobPersistenceException
+    {
+        storeJobsAndTriggers(ImmutableMap.<JobDetail, List<Trigger>>of(newJob, ImmutableList.<Trigger>of(newTrigger)), false);
+    }
+
+    @Override
+    public boolean removeJob(final JobKey jobKey)
+    {
+        synchronized (lock) {
+            final boolean result;
+            enter();
+            try {
+                result = super.removeJob(jobKey);
+            }
+            finally {
+                leave();
+            }
+
+            if (result && isOutermost()) {
+                if (!boundJobs.remove(jobKey)) {
+                    appendUnchecked(REMOVE_JOB, jobKey);
+                }
+                else {
+                    removeOverrides(jobKey);
+                }
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public boolean removeTrigger(final TriggerKey triggerKey)
+    {
+        synchronized (lock) {
+            final OperableTrigger trigger = retrieveTrigger(triggerKey);
+            final boolean result;
+            enter();
+            try {
+                result = super.removeTrigger(triggerKey);
+            }
+            finally {
+                leave();
+            }
+
+            forgetFired(triggerKey);
+            if (result && isOutermost()) {
+                if (!boundJobs.contains(trigger.getJobKey())) {
+                    appendUnchecked(REMOVE_TRIGGER, triggerKey);
+                }
+                else if (overrideKeys.containsKey(triggerKey)) {
+                    // The job falls back to its bound trigger on the next start.
+                    final TriggerKey boundKey = overrideKeys.remove(triggerKey);
+                    overrides.remove(boundKey);
+                    appendUnchecked(REMOVE_OVERRIDE, boundKey);
+                }
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public boolean replaceTrigger(final TriggerKey triggerKey, final OperableTrigger newTrigger) throws JobPersistenceException
+    {
+        synchronized (lock) {
+            // A bound job is registered again on every start, so the replacement is journaled as an override of its bound trigger.
+            final boolean bound = boundJobs.contains(newTrigger.getJobKey());
+            final TriggerKey boundKey = bound ? Objects.firstNonNull(overrideKeys.get(triggerKey), triggerKey) : triggerKey;
+            final byte [] data = isOutermost() ? prepare(new Object [] { boundKey, newTrigger }) : null;
+            final boolean result;
+            enter();
+            try {
+                result = super.replaceTrigger(triggerKey, newTrigger);
+            }
+            finally {
+                leave();
+            }
+
+            forgetFired(triggerKey);
+            if (result && data != null) {
+                forgetFired(newTrigger.getKey());
+                if (bound) {
+                    overrideKeys.remove(triggerKey);
+                    overrideKeys.put(newTrigger.getKey(), boundKey);
+                    overrides.put(boundKey, (OperableTrigger) newTrigger.clone());
+                    writeUnchecked(OVERRIDE_TRIGGER, data);
+                }
+                else {
+                    writeUnchecked(REPLACE_TRIGGER, data);
+                }
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public boolean removeJobs(final List<JobKey> jobKeys) throws JobPersistenceException
+    {
+        boolean allFound = true;
+        synchronized (lock) {
+            for (final JobKey jobKey : jobKeys) {
+                allFound = removeJob(jobKey) && allFound;
+            }
+        }
+        return allFound;
+    }
+
+    @Override
+    public boolean removeTriggers(final List<TriggerKey> triggerKeys) throws JobPersistenceException
+    {
+        boolean allFound = true;
+        synchronized (lock) {
+            for (final TriggerKey triggerKey : triggerKeys) {
+                allFound = removeTrigger(triggerKey) && allFound;
+            }
+        }
+        return allFound;
+    }
+
+    @Override
+    public void storeJobsAndTriggers(final Map<JobDetail, List<Trigger>> triggersAndJobs, final boolean replace) throws JobPersistenceException
+    {
+        synchronized (lock) {
+            // Serialize everything before the store is touched, so a failure does not leave a job without its triggers.
+            final List<PendingRecord> records = Lists.newArrayList();
+            if (isOutermost()) {
+                for (final Map.Entry<JobDetail, List<Trigger>> entry : triggersAndJobs.entrySet()) {
+                    final JobDetail jobDetail = entry.getKey();
+                    if (isBound(jobDetail) || boundJobs.contains(jobDetail.getKey())) {
+                        continue;
+                    }
+                    records.add(new PendingRecord(STORE_JOB, prepare(jobDetail), null));
+                    for (final Trigger trigger : entry.getValue()) {
+                        records.add(new PendingRecord(STORE_TRIGGER, prepare(trigger), trigger.getKey()));
+                    }
+                }
+            }
+
+            enter();
+            try {
+                super.storeJobsAndTriggers(triggersAndJobs, replace);
+            }
+            finally {
+                leave();
+            }
+
+            for (final PendingRecord record : records) {
+                if (record.triggerKey != null) {
+                    forgetFired(record.triggerKey);
+                }
+                writeUnchecked(record.type, record.data);
+            }
+
+            if (isOutermost() && !overrides.isEmpty()) {
+                for (final Map.Entry<JobDetail, List<Trigger>> entry : triggersAndJobs.entrySet()) {
+                    for (final Trigger trigger : entry.getValue()) {
+                        if (boundJobs.contains(entry.getKey().getKey()) && overrides.containsKey(trigger.getKey())) {
+                            applyOverride(trigger.getKey());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void storeCalendar(final String name, final Calendar calendar, final boolean replaceExisting, final boolean updateTriggers) throws ObjectAlreadyExistsException
+    {
+        synchronized (lock) {
+            enter();
+            try {
+                super.storeCalendar(name, calendar, replaceExisting, updateTriggers);
+            }
+            finally {
+                leave();
+            }
+            if (isOutermost()) {
+                appendUnchecked(STORE_CALENDAR, new Object [] { name, calendar });
+            }
+        }
+    }
+
+    @Override
+    public boolean removeCalendar(final String calName) throws JobPersistenceException
+    {
+        synchronized (lock) {
+            final boolean result;
+            enter();
+            try {
+                result = super.removeCalendar(calName);
+            }
+            finally {
+                leave();
+            }
+            if (result && isOutermost()) {
+                append(REMOVE_CALENDAR, calName);
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public void clearAllSchedulingData() throws JobPersistenceException
+    {
+        synchronized (lock) {
+            enter();
+            try {
+                super.clearAllSchedulingData();
+            }
+            finally {
+                leave();
+            }
+            boundJobs.clear();
+            firedTriggerKeys.clear();
+            inFlightTriggers.clear();
+            overrides.clear();
+            overrideKeys.clear();
+            if (isOutermost()) {
+                append(CLEAR, null);
+            }
+        }
+    }
+
+    @Override
+    public List<TriggerFiredResult> triggersFired(final List<OperableTrigger> firedTriggers)
+    {
+        synchronized (lock) {
+            final List<TriggerFiredResult> results = super.triggersFired(firedTriggers);
+
+            // Remember the triggers with new fire times, the commit thread journals them outside the lock.
+            for (final TriggerFiredResult result : results) {
+                if (result.getTriggerFiredBundle() != null) {
+                    final OperableTrigger trigger = result.getTriggerFiredBundle().getTrigger();
+                    if (trigger.getNextFireTime() != null && (!boundJobs.contains(trigger.getJobKey()) || overrideKeys.containsKey(trigger.getKey()))) {
+                        firedTriggerKeys.add(trigger.getKey());
+                    }
+                }
+            }
+            return results;
+        }
+    }
+
+    /**
+     * Writes the current content of the store into a snapshot and resets the journal.
+     */
+    void compact() throws JobPersistenceException
+    {
+        compact(false);
+    }
+
+    private void compact(final boolean force) throws JobPersistenceException
+    {
+        synchronized (lock) {
+            if (journal == null || (journal.position() == HEADER_SIZE && !force)) {
+                return;
+            }
+
+            final long startTime = System.nanoTime();
+            final File snapshotFile = new File(journalDirectory, SNAPSHOT_FILE);
+            final File tempFile = new File(journalDirectory, SNAPSHOT_FILE + ".tmp");
+            int count = 0;
+
+            try {
+                final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 65536));
+                try {
+                    final List<String> calendarNames = getCalendarNames();
+                    out.writeInt(calendarNames.size());
+                    for (final String calendarName : calendarNames) {
+                        out.writeObject(calendarName);
+                        out.writeObject(retrieveCalendar(calendarName));
+                    }
+
+                    for (final JobKey jobKey : getJobKeys(GroupMatcher.jobGroupStartsWith(""))) {
+                        if (boundJobs.contains(jobKey)) {
+                            continue;
+                        }
+                        out.writeBoolean(true);
+                        out.writeObject(retrieveJob(jobKey));
+                        out.writeObject(getTriggersForJob(jobKey));
+                        count++;
+                    }
+                    out.writeBoolean(false);
+
+                    // Overrides of bound triggers, with the latest fire times of those that are in the store.
+                    final Map<TriggerKey, OperableTrigger> currentOverrides = Maps.newHashMap(overrides);
+                    for (final Map.Entry<TriggerKey, TriggerKey> entry : overrideKeys.entrySet()) {
+                        final OperableTrigger trigger = retrieveTrigger(entry.getKey());
+                        if (trigger != null) {
+                            currentOverrides.put(entry.getValue(), trigger);
+                        }
+                    }
+                    out.writeObject(currentOverrides);
+                }
+                finally {
+                    out.close();
+                }
+
+                Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException ioe) {
+                throw new JobPersistenceException("Could not write snapshot " + snapshotFile, ioe);
+            }
+
+            // The snapshot has the latest fire times of all triggers.
+            firedTriggerKeys.clear();
+            inFlightTriggers.clear();
+            resetJournal(generation + 1);
+            LOG.debug("Wrote snapshot of %d jobs in %d ms", count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        }
+    }
+
+    /**
+     * Forces all pending journal writes to disk.
+     */
+    void commit()
+    {
+        journalFiredTriggers();
+
+        if (dirty) {
+            dirty = false;
+            final MappedByteBuffer buffer = journal;
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Journals the fire times of all triggers that fired since the last commit. The triggers are serialized
+     * outside the store lock; a trigger that was changed in the meantime is not written, because its newer
+     * state is already in the journal.
+     */
+    private void journalFiredTriggers()
+    {
+        final Map<TriggerKey, Object> payloads = Maps.newLinkedHashMap();
+        synchronized (lock) {
+            if (firedTriggerKeys.isEmpty()) {
+                return;
+            }
+            for (final TriggerKey triggerKey : firedTriggerKeys) {
+                final OperableTrigger trigger = retrieveTrigger(triggerKey);
+                if (trigger != null) {
+                    final TriggerKey boundKey = overrideKeys.get(triggerKey);
+                    payloads.put(triggerKey, boundKey == null ? trigger : new Object [] { boundKey, trigger });
+                    inFlightTriggers.add(triggerKey);
+                }
+            }
+            firedTriggerKeys.clear();
+        }
+
+        final List<PendingRecord> records = Lists.newArrayList();
+        for (final Map.Entry<TriggerKey, Object> payload : payloads.entrySet()) {
+            try {
+                final byte type = payload.getValue() instanceof OperableTrigger ? STORE_TRIGGER : OVERRIDE_TRIGGER;
+                records.add(new PendingRecord(type, prepare(payload.getValue()), payload.getKey()));
+            }
+            catch (JobPersistenceException jpe) {
+                LOG.error(jpe, "Could not journal fire time of %s", payload.getKey());
+            }
+        }
+
+        synchronized (lock) {
+            if (journal == null) {
+                return;
+            }
+            for (final PendingRecord record : records) {
+                if (inFlightTriggers.remove(record.triggerKey)) {
+                    writeUnchecked(record.type, record.data);
+                }
+            }
+            inFlightTriggers.clear();
+        }
+    }
+
+    private void forgetFired(final TriggerKey triggerKey)
+    {
+        firedTriggerKeys.remove(triggerKey);
+        inFlightTriggers.remove(triggerKey);
+    }
+
+    /**
+     * Replaces a bound trigger that was just stored with its override.
+     */
+    private void applyOverride(final TriggerKey boundKey) throws JobPersistenceException
+    {
+        OperableTrigger override = overrides.get(boundKey);
+
+        // If the job was bound again while its override is still in the store, that one has the latest fire times.
+        TriggerKey currentKey = null;
+        for (final Map.Entry<TriggerKey, TriggerKey> entry : overrideKeys.entrySet()) {
+            if (entry.getValue().equals(boundKey) && !entry.getKey().equals(boundKey)) {
+                currentKey = entry.getKey();
+            }
+        }
+
+        enter();
+        try {
+            if (currentKey != null) {
+                override = Objects.firstNonNull(retrieveTrigger(currentKey), override);
+                overrideKeys.remove(currentKey);
+                forgetFired(currentKey);
+                super.removeTrigger(currentKey);
+            }
+            super.replaceTrigger(boundKey, override);
+        }
+        finally {
+            leave();
+        }
+
+        overrideKeys.put(override.getKey(), boundKey);
+        LOG.debug("Replaced bound trigger %s with %s", boundKey, override.getKey());
+    }
+
+    private void removeOverrides(final JobKey jobKey)
+    {
+        for (final Iterator<Map.Entry<TriggerKey, OperableTrigger>> it = overrides.entrySet().iterator(); it.hasNext(); ) {
+            final Map.Entry<TriggerKey, OperableTrigger> entry = it.next();
+            if (entry.getValue().getJobKey().equals(jobKey)) {
+                it.remove();
+                overrideKeys.values().remove(entry.getKey());
+                appendUnchecked(REMOVE_OVERRIDE, entry.getKey());
+            }
+        }
+    }
+
+    private static boolean isBound(final JobDetail jobDetail)
+    {
+        return jobDetail.getJobDataMap().containsKey(QuartzJobBinder.BOUND_JOB_KEY);
+    }
+
+    private void enter()
+    {
+        depth.get()[0]++;
+    }
+
+    private void leave()
+    {
+        depth.get()[0]--;
+    }
+
+    private boolean isOutermost()
+    {
+        return !replaying && depth.get()[0] == 0;
+    }
+
+    private void appendUnchecked(final byte type, final Object payload)
+    {
+        try {
+            append(type, payload);
+        }
+        catch (JobPersistenceException jpe) {
+            LOG.error(jpe, "Could not journal change");
+        }
+    }
+
+    private void writeUnchecked(final byte type, final byte [] data)
+    {
+        try {
+            write(type, data);
+        }
+        catch (JobPersistenceException jpe) {
+            LOG.error(jpe, "Could not journal change");
+        }
+    }
+
+    private void append(final byte type, final Object payload) throws JobPersistenceException
+    {
+        write(type, prepare(payload));
+    }
+
+    /**
+     * Serializes a journal record and makes sure that it can be written at all.
+     */
+    private byte [] prepare(final Object payload) throws JobPersistenceException
+    {
+        final byte [] data = serialize(payload);
+        if (RECORD_HEADER_SIZE + data.length > journalSize - HEADER_SIZE) {
+            throw new JobPersistenceException("Journal record of " + (RECORD_HEADER_SIZE + data.length) + " bytes does not fit into journal!");
+        }
+        return data;
+    }
+
+    private void write(final byte type, final byte [] data) throws JobPersistenceException
+    {
+        final int recordSize = RECORD_HEADER_SIZE + data.length;
+
+        if (journal.remaining() < recordSize) {
+            compact();
+            if (journal.remaining() < recordSize) {
+                throw new JobPersistenceException("Journal record of " + recordSize + " bytes does not fit into journal!");
+            }
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(data);
+
+        final int start = journal.position();
+        journal.position(start + 4);
+        journal.putInt((int) crc.getValue());
+        journal.putLong(generation);
+        journal.put(type);
+        journal.put(data);
+        // Write the length last, so a torn write never looks like a complete record.
+        journal.putInt(start, data.length);
+        dirty = true;
+    }
+
+    private int replayJournal() throws IOException, ClassNotFoundException, JobPersistenceException
+    {
+        int count = 0;
+        while (journal.remaining() >= RECORD_HEADER_SIZE) {
+            final int start = journal.position();
+            final int length = journal.getInt();
+            final int crcValue = journal.getInt();
+            final long recordGeneration = journal.getLong();
+            final byte type = journal.get();
+
+            if (length <= 0 || recordGeneration != generation || length > journal.remaining()) {
+                journal.position(start);
+                break;
+            }
+
+            final byte [] data = new byte [length];
+            journal.get(data);
+
+            final CRC32 crc = new CRC32();
+            crc.update(type);
+            crc.update(data);
+            if ((int) crc.getValue() != crcValue) {
+                LOG.warn("Journal record at %d is corrupt, ignoring the rest of the journal!", start);
+                journal.position(start);
+                corrupt = true;
+                break;
+            }
+
+            apply(type, deserialize(data));
+            count++;
+        }
+
+        return count;
+    }
+
+    private void apply(final byte type, final Object payload) throws JobPersistenceException
+    {
+        switch (type) {
+            case STORE_JOB:
+                storeJob((JobDetail) payload, true);
+                break;
+            case REMOVE_JOB:
+                removeJob((JobKey) payload);
+                break;
+            case STORE_TRIGGER:
+                storeTrigger((OperableTrigger) payload, true);
+                break;
+            case REMOVE_TRIGGER:
+                removeTrigger((TriggerKey) payload);
+                break;
+            case REPLACE_TRIGGER:
+                final Object [] replace = (Object []) payload;
+                if (!replaceTrigger((TriggerKey) replace[0], (OperableTrigger) replace[1])) {
+                    storeTrigger((OperableTrigger) replace[1], true);
+                }
+                break;
+            case STORE_CALENDAR:
+                final Object [] calendar = (Object []) payload;
+                storeCalendar((String) calendar[0], (Calendar) calendar[1], true, true);
+                break;
+            case REMOVE_CALENDAR:
+                removeCalendar((String) payload);
+                break;
+            case CLEAR:
+                clearAllSchedulingData();
+                break;
+            case OVERRIDE_TRIGGER:
+                // Applied when the bound job is registered again.
+                final Object [] override = (Object []) payload;
+                overrides.put((TriggerKey) override[0], (OperableTrigger) override[1]);
+                break;
+            case REMOVE_OVERRIDE:
+                overrides.remove(payload);
+                break;
+            default:
+                LOG.warn("Ignoring unknown journal record type %d", type);
+                break;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private int loadSnapshot(final File snapshotFile) throws IOException, ClassNotFoundException, JobPersistenceException
+    {
+        if (!snapshotFile.exists()) {
+            return 0;
+        }
+
+        int count = 0;
+        final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(snapshotFile), 65536));
+        try {
+            final int calendarCount = in.readInt();
+            for (int i = 0; i < calendarCount; i++) {
+                storeCalendar((String) in.readObject(), (Calendar) in.readObject(), true, false);
+            }
+
+            while (in.readBoolean()) {
+                storeJob((JobDetail) in.readObject(), true);
+                for (final OperableTrigger trigger : (List<OperableTrigger>) in.readObject()) {
+                    storeTrigger(trigger, true);
+                }
+                count++;
+            }
+
+            try {
+                overrides.putAll((Map<TriggerKey, OperableTrigger>) in.readObject());
+            }
+            catch (EOFException eofe) {
+                // Snapshot was written without overrides.
+            }
+        }
+        finally {
+            in.close();
+        }
+        return count;
+    }
+
+    private void openJournal(final File file) throws IOException
+    {
+        final boolean exists = file.exists() && file.length() >= HEADER_SIZE;
+
+        journalFile = new RandomAccessFile(file, "rw");
+        journal = journalFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(journalSize, journalFile.length()));
+
+        if (exists) {
+            generation = journal.getLong(0);
+            journal.position(HEADER_SIZE);
+        }
+        else {
+            resetJournal(0L);
+        }
+    }
+
+    private void resetJournal(final long newGeneration)
+    {
+        generation = newGeneration;
+        journal.putLong(0, generation);
+        journal.putInt(HEADER_SIZE, 0);
+        journal.position(HEADER_SIZE);
+        journal.force();
+        dirty = false;
+    }
+
+    private static final class PendingRecord
+    {
+        private final byte type;
+        private final byte [] data;
+        private final TriggerKey triggerKey;
+
+        PendingRecord(final byte type, final byte [] data, final TriggerKey triggerKey)
+        {
+            this.type = type;
+            this.data = data;
+            this.triggerKey = triggerKey;
+        }
+    }
+
+    private static byte [] serialize(final Object payload) throws JobPersistenceException
+    {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+            final ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(payload);
+            out.close();
+            return bytes.toByteArray();
+        }
+        catch (IOException ioe) {
+            throw new JobPersistenceException("Could not serialize journal record", ioe);
+        }
+    }
+
+    private static Object deserialize(final byte [] data) throws IOException, ClassNotFoundException
+    {
+        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return in.readObject();
+        }
+        finally {
+            in.close();
+        }
+    }
+}
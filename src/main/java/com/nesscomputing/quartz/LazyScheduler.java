@@ -0,0 +1,217 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Stands in for the Quartz scheduler until it is actually needed. The real scheduler is created
+ * on the first call that needs it or when the wakeup time set with {@link #arm(long)} has passed,
+ * whatever comes first.
+ */
+final class LazyScheduler implements InvocationHandler
+{
+    private static final Log LOG = Log.findLog();
+
+    private final Callable<Scheduler> schedulerFactory;
+    private final Scheduler proxy;
+    private final List<Runnable> materializationListeners = Lists.newArrayList();
+
+    private volatile Scheduler delegate = null;
+    private volatile boolean shutdown = false;
+    private ScheduledExecutorService wakeupExecutor = null;
+
+    LazyScheduler(final Callable<Scheduler> schedulerFactory)
+    {
+        this.schedulerFactory = schedulerFactory;
+        this.proxy = (Scheduler) Proxy.newProxyInstance(Scheduler.class.getClassLoader(), new Class<?> [] { Scheduler.class }, this);
+    }
+
+    /**
+     * Runs the callback as soon as the scheduler has been created. If the scheduler is not
+     * lazy or already exists, the callback is run right away.
+     */
+    static void whenMaterialized(final Scheduler scheduler, final Runnable callback)
+    {
+        if (Proxy.isProxyClass(scheduler.getClass()) && Proxy.getInvocationHandler(scheduler) instanceof LazyScheduler) {
+            ((LazyScheduler) Proxy.getInvocationHandler(scheduler)).addMaterializationListener(callback);
+        }
+        else {
+            callback.run();
+        }
+    }
+
+    /**
+     * Returns true if the scheduler has been created.
+     */
+    static boolean isMaterialized(final Scheduler scheduler)
+    {
+        if (Proxy.isProxyClass(scheduler.getClass()) && Proxy.getInvocationHandler(scheduler) instanceof LazyScheduler) {
+            return ((LazyScheduler) Proxy.getInvocationHandler(scheduler)).isMaterialized();
+        }
+        return true;
+    }
+
+    Scheduler getProxy()
+    {
+        return proxy;
+    }
+
+    boolean isMaterialized()
+    {
+        return delegate != null;
+    }
+
+    /**
+     * Creates the scheduler after the given time unless something else needed it before.
+     */
+    synchronized void arm(final long delayMillis)
+    {
+        if (delegate != null || shutdown || delayMillis == Long.MAX_VALUE) {
+            return;
+        }
+
+        final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("ness-quartz-lazy-start").setDaemon(true).build());
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        wakeupExecutor = executor;
+        wakeupExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    get();
+                }
+                catch (SchedulerException se) {
+                    LOG.error(se, "Could not create Quartz Scheduler");
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+
+        LOG.info("Quartz Scheduler will be created in %d ms", delayMillis);
+    }
+
+    private void addMaterializationListener(final Runnable listener)
+    {
+        synchronized (this) {
+            if (delegate == null) {
+                materializationListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    private Scheduler get() throws SchedulerException
+    {
+        Scheduler scheduler = delegate;
+        if (scheduler != null) {
+            return scheduler;
+        }
+
+        final List<Runnable> listeners;
+        synchronized (this) {
+            if (delegate != null) {
+                return delegate;
+            }
+            if (shutdown) {
+                throw new SchedulerException("Scheduler has been shut down!");
+            }
+
+            try {
+                scheduler = schedulerFactory.call();
+            }
+            catch (SchedulerException se) {
+                throw se;
+            }
+            catch (Exception e) {
+                throw new SchedulerException("Could not create Quartz Scheduler", e);
+            }
+
+            delegate = scheduler;
+            disarm();
+            listeners = Lists.newArrayList(materializationListeners);
+            materializationListeners.clear();
+        }
+
+        for (final Runnable listener : listeners) {
+            listener.run();
+        }
+        return scheduler;
+    }
+
+    private void disarm()
+    {
+        if (wakeupExecutor != null) {
+            wakeupExecutor.shutdown();
+            wakeupExecutor = null;
+        }
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object [] args) throws Throwable
+    {
+        final String methodName = method.getName();
+
+        if ("hashCode".equals(methodName) && method.getParameterTypes().length == 0) {
+            return System.identityHashCode(proxy);
+        }
+        else if ("equals".equals(methodName) && method.getParameterTypes().length == 1) {
+            return proxy == args[0];
+        }
+
+        if (delegate == null) {
+            if ("isStarted".equals(methodName)) {
+                return false;
+            }
+            else if ("isShutdown".equals(methodName)) {
+                return shutdown;
+            }
+            else if ("shutdown".equals(methodName)) {
+                synchronized (this) {
+                    if (delegate == null) {
+                        shutdown = true;
+                        disarm();
+                        return null;
+                    }
+                }
+            }
+            else if ("toString".equals(methodName)) {
+                return "LazyScheduler (not yet created)";
+            }
+        }
+
+        try {
+            return method.invoke(get(), args);
+        }
+        catch (InvocationTargetException ite) {
+            throw ite.getCause();
+        }
+    }
+}
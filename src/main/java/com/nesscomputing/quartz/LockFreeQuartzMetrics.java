@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+
+/**
+ * Built-in registry that records without locks. Histograms and timers count into fixed log-linear buckets
+ * (at most 12.5% relative error) instead of sampling into a reservoir, so an update is two or three atomic
+ * increments and never contends on a lock. Values are kept since start, there is no decay.
+ */
+public class LockFreeQuartzMetrics implements QuartzMetrics
+{
+    private final ConcurrentMap<String, Object> metrics = Maps.newConcurrentMap();
+
+    @Override
+    public Timer timer(final String group, final String type, final String name)
+    {
+        return get(group, type, name, LockFreeTimer.class);
+    }
+
+    @Override
+    public Meter meter(final String group, final String type, final String name)
+    {
+        return get(group, type, name, LockFreeMeter.class);
+    }
+
+    @Override
+    public Histogram histogram(final String group, final String type, final String name)
+    {
+        return get(group, type, name, LockFreeHistogram.class);
+    }
+
+    private <T> T get(final String group, final String type, final String name, final Class<T> metricClass)
+    {
+        final String key = group + ":" + type + ":" + name;
+        Object metric = metrics.get(key);
+        if (metric == null) {
+            final Object newMetric;
+            if (metricClass == LockFreeTimer.class) {
+                newMetric = new LockFreeTimer();
+            }
+            else if (metricClass == LockFreeMeter.class) {
+                newMetric = new LockFreeMeter();
+            }
+            else {
+                newMetric = new LockFreeHistogram();
+            }
+            metric = Objects.firstNonNull(metrics.putIfAbsent(key, newMetric), newMetric);
+        }
+        if (!metricClass.isInstance(metric)) {
+            throw new IllegalArgumentException(String.format("Metric %s is a %s", key, metric.getClass().getSimpleName()));
+        }
+        return metricClass.cast(metric);
+    }
+
+    static final class LockFreeMeter implements Meter
+    {
+        private final AtomicLong count = new AtomicLong();
+
+        @Override
+        public void mark()
+        {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public long getCount()
+        {
+            return count.get();
+        }
+    }
+
+    static final class LockFreeTimer implements Timer
+    {
+        private final LockFreeHistogram nanos = new LockFreeHistogram();
+
+        @Override
+        public void update(final long nanos)
+        {
+            this.nanos.update(nanos);
+        }
+
+        @Override
+        public long getCount()
+        {
+            return nanos.getCount();
+        }
+
+        @Override
+        public double getSumMillis()
+        {
+            return (double) nanos.getSum() / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        @Override
+        public double getQuantileMillis(final double quantile)
+        {
+            return nanos.getQuantile(quantile) / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+    }
+
+    /**
+     * Values below 16 get a bucket each, every power of two above is split into 8 buckets.
+     */
+    static final class LockFreeHistogram implements Histogram
+    {
+        private static final int LINEAR = 16;
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = LINEAR + (63 - 4) * SUB_BUCKETS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        @Override
+        public void update(final long value)
+        {
+            final long v = Math.max(0L, value);
+            buckets.incrementAndGet(getBucket(v));
+            count.incrementAndGet();
+            sum.addAndGet(v);
+        }
+
+        @Override
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        long getSum()
+        {
+            return sum.get();
+        }
+
+        @Override
+        public double getQuantile(final double quantile)
+        {
+            long total = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += buckets.get(i);
+            }
+            if (total == 0L) {
+                return 0.0;
+            }
+
+            final long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+            long seen = 0L;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return getMidpoint(i);
+                }
+            }
+            return getMidpoint(BUCKETS - 1);
+        }
+
+        static int getBucket(final long value)
+        {
+            if (value < LINEAR) {
+                return (int) value;
+            }
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+        }
+
+        static double getMidpoint(final int bucket)
+        {
+            if (bucket < LINEAR) {
+                return bucket;
+            }
+            final int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+            final int sub = (bucket - LINEAR) % SUB_BUCKETS;
+            final double width = Math.pow(2, exponent - SUB_BITS);
+            return Math.pow(2, exponent) + sub * width + width / 2;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count, sum and maximum of values over the last minute, in one-second buckets. A bucket is reset by the
+ * first writer of a new second; values written concurrently with the reset may be lost, which is
+ * good enough for monitoring.
+ */
+class MinuteWindow
+{
+    private static final int BUCKETS = 60;
+
+    private final AtomicLongArray seconds = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray sums = new AtomicLongArray(BUCKETS);
+    private final AtomicLongArray maxima = new AtomicLongArray(BUCKETS);
+
+    void add(final long value)
+    {
+        final long second = System.currentTimeMillis() / 1000L;
+        final int slot = (int) (second % BUCKETS);
+
+        final long slotSecond = seconds.get(slot);
+        if (slotSecond != second && seconds.compareAndSet(slot, slotSecond, second)) {
+            counts.set(slot, 0L);
+            sums.set(slot, 0L);
+            maxima.set(slot, 0L);
+        }
+
+        counts.incrementAndGet(slot);
+        sums.addAndGet(slot, value);
+        for (;;) {
+            final long max = maxima.get(slot);
+            if (value <= max || maxima.compareAndSet(slot, max, value)) {
+                break;
+            }
+        }
+    }
+
+    long getCount()
+    {
+        long count = 0L;
+        final long oldest = System.currentTimeMillis() / 1000L - BUCKETS;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (seconds.get(i) > oldest) {
+                count += counts.get(i);
+            }
+        }
+        return count;
+    }
+
+    long getSum()
+    {
+        long sum = 0L;
+        final long oldest = System.currentTimeMillis() / 1000L - BUCKETS;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (seconds.get(i) > oldest) {
+                sum += sums.get(i);
+            }
+        }
+        return sum;
+    }
+
+    long getMax()
+    {
+        long max = 0L;
+        final long oldest = System.currentTimeMillis() / 1000L - BUCKETS;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (seconds.get(i) > oldest) {
+                max = Math.max(max, maxima.get(i));
+            }
+        }
+        return max;
+    }
+}
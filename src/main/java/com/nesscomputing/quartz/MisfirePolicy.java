@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import org.quartz.CronScheduleBuilder;
+import org.quartz.SimpleScheduleBuilder;
+
+/**
+ * What to do with fires that were missed, e.g. because the scheduler was stalled.
+ */
+public enum MisfirePolicy
+{
+    /** Quartz' default for the trigger type. */
+    SMART,
+
+    /** Fire once right away, then continue with the regular schedule. */
+    FIRE_NOW,
+
+    /** Drop the missed fires and wait for the next regular one. */
+    SKIP,
+
+    /** Fire every missed fire as soon as possible. */
+    CATCH_UP;
+
+    CronScheduleBuilder applyTo(final CronScheduleBuilder builder)
+    {
+        switch (this) {
+            case FIRE_NOW:
+                return builder.withMisfireHandlingInstructionFireAndProceed();
+            case SKIP:
+                return builder.withMisfireHandlingInstructionDoNothing();
+            case CATCH_UP:
+                return builder.withMisfireHandlingInstructionIgnoreMisfires();
+            default:
+                return builder;
+        }
+    }
+
+    SimpleScheduleBuilder applyTo(final SimpleScheduleBuilder builder, final boolean repeating)
+    {
+        switch (this) {
+            case FIRE_NOW:
+                return repeating ? builder.withMisfireHandlingInstructionNowWithExistingCount() : builder.withMisfireHandlingInstructionFireNow();
+            case SKIP:
+                return builder.withMisfireHandlingInstructionNextWithRemainingCount();
+            case CATCH_UP:
+                return builder.withMisfireHandlingInstructionIgnoreMisfires();
+            default:
+                return builder;
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.quartz.JobExecutionContext;
+import org.quartz.JobKey;
+import org.quartz.ObjectAlreadyExistsException;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.Trigger.CompletedExecutionInstruction;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerKey;
+import org.quartz.TriggerListener;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.inject.Inject;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Counts misfires per job and protects the worker pool from misfire storms. If more than
+ * <code>ness.quartz.misfire-storm-threshold</code> triggers misfire within a second, the catch-up fires
+ * that follow are spread out by <code>ness.quartz.misfire-storm-spread</code> each, and multiple catch-up
+ * fires of the same job are coalesced into one.
+ *
+ * Misfire counts are kept for the <code>ness.quartz.misfire-jobs</code> jobs that misfired last, so that
+ * ad-hoc jobs do not pile up.
+ */
+public class MisfireStormGuard implements TriggerListener
+{
+    private static final Log LOG = Log.findLog();
+
+    static final String NAME = "ness-quartz-misfire-guard";
+    static final String CATCH_UP_TRIGGER_PREFIX = "ness-catchup-";
+
+    /** A fire this late is a catch-up fire even without a misfire, e.g. with {@link MisfirePolicy#CATCH_UP}. */
+    private static final long CATCH_UP_LATENESS = TimeUnit.SECONDS.toMillis(60);
+
+    /** A fire this soon after the misfire of its trigger is its catch-up fire. */
+    private static final long CATCH_UP_WINDOW = TimeUnit.SECONDS.toMillis(5);
+
+    private static final long STORM_WINDOW = TimeUnit.SECONDS.toMillis(1);
+
+    private final int stormThreshold;
+    private final long spreadMillis;
+
+    private final LoadingCache<JobKey, AtomicLong> misfireCounts;
+    private final AtomicLong totalMisfires = new AtomicLong();
+    private final ConcurrentMap<TriggerKey, Long> misfireTimes = Maps.newConcurrentMap();
+
+    private QuartzMetrics.Meter misfireMeter = null;
+
+    private long windowStart = 0L;
+    private int windowCount = 0;
+    private long stormEnd = 0L;
+    private int stormSlot = 0;
+
+    @Inject
+    MisfireStormGuard(final NessQuartzConfig nessQuartzConfig)
+    {
+        this.stormThreshold = nessQuartzConfig.getMisfireStormThreshold();
+        this.spreadMillis = nessQuartzConfig.getMisfireStormSpread().getMillis();
+        this.misfireCounts = CacheBuilder.newBuilder()
+            .maximumSize(nessQuartzConfig.getMisfireJobs())
+            .build(new CacheLoader<JobKey, AtomicLong>() {
+                @Override
+                public AtomicLong load(final JobKey jobKey) {
+                    return new AtomicLong();
+                }
+            });
+    }
+
+    @Inject(optional=true)
+    void injectQuartzMetrics(final ResolvedQuartzMetrics quartzMetrics)
+    {
+        this.misfireMeter = quartzMetrics.meter("ness.quartz.scheduler", "statistics", "misfires");
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    public long getMisfireCount(final JobKey jobKey)
+    {
+        final AtomicLong count = misfireCounts.getIfPresent(jobKey);
+        return count == null ? 0L : count.get();
+    }
+
+    /**
+     * Returns the number of misfires of all jobs, including the ones whose counts were dropped.
+     */
+    public long getTotalMisfireCount()
+    {
+        return totalMisfires.get();
+    }
+
+    public Map<JobKey, Long> getMisfireCounts()
+    {
+        final ImmutableMap.Builder<JobKey, Long> builder = ImmutableMap.builder();
+        for (final Map.Entry<JobKey, AtomicLong> entry : misfireCounts.asMap().entrySet()) {
+            builder.put(entry.getKey(), entry.getValue().get());
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void triggerMisfired(final Trigger trigger)
+    {
+        misfireCounts.getUnchecked(trigger.getJobKey()).incrementAndGet();
+        totalMisfires.incrementAndGet();
+        if (misfireMeter != null) {
+            misfireMeter.mark();
+        }
+
+        if (stormThreshold > 0) {
+            final long now = System.currentTimeMillis();
+            misfireTimes.put(trigger.getKey(), now);
+
+            synchronized (this) {
+                if (now - windowStart >= STORM_WINDOW) {
+                    windowStart = now;
+                    windowCount = 0;
+                }
+                if (++windowCount > stormThreshold) {
+                    if (now >= stormEnd) {
+                        LOG.warn("More than %d misfires within %dms, spreading catch-up fires by %dms", stormThreshold, STORM_WINDOW, spreadMillis);
+                        stormSlot = 0;
+                    }
+                    stormEnd = now + STORM_WINDOW;
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean vetoJobExecution(final Trigger trigger, final JobExecutionContext context)
+    {
+        if (stormThreshold <= 0 || !isCatchUp(trigger, context)) {
+            return false;
+        }
+
+        final long delay;
+        synchronized (this) {
+            if (System.currentTimeMillis() >= stormEnd) {
+                return false;
+            }
+            delay = stormSlot++ * spreadMillis;
+        }
+
+        if (delay == 0L) {
+            return false;
+        }
+
+        final JobKey jobKey = trigger.getJobKey();
+        final TriggerKey catchUpKey = new TriggerKey(CATCH_UP_TRIGGER_PREFIX + jobKey.getName(), jobKey.getGroup());
+        try {
+            final Scheduler scheduler = context.getScheduler();
+            if (scheduler.checkExists(catchUpKey)) {
+                LOG.debug("Coalescing catch-up fire of %s", jobKey);
+                return true;
+            }
+            scheduler.scheduleJob(TriggerBuilder.newTrigger()
+                                  .withIdentity(catchUpKey)
+                                  .forJob(jobKey)
+                                  .usingJobData(trigger.getJobDataMap())
+                                  .withPriority(trigger.getPriority())
+                                  .startAt(new Date(System.currentTimeMillis() + delay))
+                                  .build());
+            LOG.debug("Moved catch-up fire of %s by %dms", jobKey, delay);
+            return true;
+        }
+        catch (ObjectAlreadyExistsException oaee) {
+            LOG.debug("Coalescing catch-up fire of %s", jobKey);
+            return true;
+        }
+        catch (SchedulerException se) {
+            LOG.warn(se, "Could not move catch-up fire of %s, firing now", jobKey);
+            return false;
+        }
+    }
+
+    private boolean isCatchUp(final Trigger trigger, final JobExecutionContext context)
+    {
+        final Long misfireTime = misfireTimes.remove(trigger.getKey());
+        if (misfireTime != null && System.currentTimeMillis() - misfireTime < CATCH_UP_WINDOW) {
+            return true;
+        }
+        final Date scheduledFireTime = context.getScheduledFireTime();
+        return scheduledFireTime != null && context.getFireTime().getTime() - scheduledFireTime.getTime() > CATCH_UP_LATENESS;
+    }
+
+    @Override
+    public void triggerFired(final Trigger trigger, final JobExecutionContext context)
+    {
+    }
+
+    @Override
+    public void triggerComplete(final Trigger trigger, final JobExecutionContext context, final CompletedExecutionInstruction triggerInstructionCode)
+    {
+    }
+}
@@ -17,6 +17,7 @@ package com.nesscomputing.quartz;
 
 import org.skife.config.Config;
 import org.skife.config.Default;
+import org.skife.config.DefaultNull;
 import org.skife.config.TimeSpan;
 
 public abstract class NessQuartzConfig
@@ -34,4 +35,292 @@ public abstract class NessQuartzConfig
     {
         return false;
     }
+
+    /**
+     * If true, the scheduler is not created at startup but only when the first bound job
+     * is due or when it is used for the first time.
+     */
+    @Config("ness.quartz.lazy-start")
+    @Default("false")
+    public boolean isLazyStart()
+    {
+        return false;
+    }
+
+    /**
+     * In lazy mode, spread the first runs of all bound jobs without a delay by this interval.
+     */
+    @Config("ness.quartz.lazy-stagger")
+    @Default("0s")
+    public TimeSpan getLazyStagger()
+    {
+        return new TimeSpan("0s");
+    }
+
+    /**
+     * Default jitter for the fire times of all bound jobs that do not set their own.
+     */
+    @Config("ness.quartz.fire-jitter")
+    @Default("0s")
+    public TimeSpan getFireJitter()
+    {
+        return new TimeSpan("0s");
+    }
+
+    /**
+     * Id of this node, used to spread fire times across nodes. Defaults to the host name.
+     */
+    @Config("ness.quartz.node-id")
+    @DefaultNull
+    public String getNodeId()
+    {
+        return null;
+    }
+
+    /**
+     * If a recurring trigger had to wait this long for a free thread, its next fire gets one
+     * point of additional priority. 0 disables aging.
+     */
+    @Config("ness.quartz.priority-aging")
+    @Default("0s")
+    public TimeSpan getPriorityAging()
+    {
+        return new TimeSpan("0s");
+    }
+
+    /**
+     * Maximum additional priority that a trigger can gain through aging.
+     */
+    @Config("ness.quartz.priority-aging-max")
+    @Default("5")
+    public int getPriorityAgingMax()
+    {
+        return 5;
+    }
+
+    /**
+     * Number of threads in the pool that runs the chunks of parallel jobs. 0 uses one thread per processor.
+     */
+    @Config("ness.quartz.parallelism")
+    @Default("0")
+    public int getParallelism()
+    {
+        return 0;
+    }
+
+    /**
+     * If set, the scheduler drains on shutdown: no more triggers fire, running jobs are told and get up to
+     * this long to finish before they are interrupted. Replaces waiting for jobs on shutdown.
+     */
+    @Config("ness.quartz.drain-timeout")
+    @Default("0s")
+    public TimeSpan getDrainTimeout()
+    {
+        return new TimeSpan("0s");
+    }
+
+    /**
+     * Number of misfires within a second that starts a misfire storm. 0 disables the storm guard.
+     */
+    @Config("ness.quartz.misfire-storm-threshold")
+    @Default("0")
+    public int getMisfireStormThreshold()
+    {
+        return 0;
+    }
+
+    /**
+     * During a misfire storm, catch-up fires are spread out by this interval.
+     */
+    @Config("ness.quartz.misfire-storm-spread")
+    @Default("1s")
+    public TimeSpan getMisfireStormSpread()
+    {
+        return new TimeSpan("1s");
+    }
+
+    /**
+     * Number of jobs that misfire counts are kept for. The jobs that misfired last are kept.
+     */
+    @Config("ness.quartz.misfire-jobs")
+    @Default("1000")
+    public int getMisfireJobs()
+    {
+        return 1000;
+    }
+
+    /**
+     * Number of executions per job kept in the execution history. 0 disables the history.
+     */
+    @Config("ness.quartz.history-size")
+    @Default("32")
+    public int getHistorySize()
+    {
+        return 32;
+    }
+
+    /**
+     * Maximum number of jobs with an execution history.
+     */
+    @Config("ness.quartz.history-jobs")
+    @Default("1000")
+    public int getHistoryJobs()
+    {
+        return 1000;
+    }
+
+    /**
+     * How long the job MBeans cache trigger states before asking the job store again.
+     */
+    @Config("ness.quartz.jmx-cache-ttl")
+    @Default("5s")
+    public TimeSpan getJmxCacheTtl()
+    {
+        return new TimeSpan("5s");
+    }
+
+    /**
+     * How many ad-hoc jobs get an MBean of their own. Beyond that, ad-hoc jobs are only visible
+     * through the per-class MBean.
+     */
+    @Config("ness.quartz.jmx-adhoc-cap")
+    @Default("100")
+    public int getJmxAdHocCap()
+    {
+        return 100;
+    }
+
+    /**
+     * Executions that run longer than this get their stack sampled. 0 disables the sampling.
+     */
+    @Config("ness.quartz.slow-threshold")
+    @Default("0s")
+    public TimeSpan getSlowThreshold()
+    {
+        return new TimeSpan("0s");
+    }
+
+    /**
+     * How often the stack of a slow execution is sampled.
+     */
+    @Config("ness.quartz.slow-sample-interval")
+    @Default("50ms")
+    public TimeSpan getSlowSampleInterval()
+    {
+        return new TimeSpan("50ms");
+    }
+
+    /**
+     * Maximum number of frames in the profile of a job. Deeper stacks are cut off once it is full.
+     */
+    @Config("ness.quartz.slow-profile-nodes")
+    @Default("2000")
+    public int getSlowProfileNodes()
+    {
+        return 2000;
+    }
+
+    /**
+     * Number of jobs that slow execution profiles are kept for. The jobs that were slow last are kept.
+     */
+    @Config("ness.quartz.slow-profile-jobs")
+    @Default("100")
+    public int getSlowProfileJobs()
+    {
+        return 100;
+    }
+
+    /**
+     * Emit Java Flight Recorder events for job instantiation, execution and scheduling. Needs a
+     * JVM with <tt>jdk.jfr</tt>; events only cost anything while a recording is running.
+     */
+    @Config("ness.quartz.jfr-events")
+    @Default("false")
+    public boolean isJfrEvents()
+    {
+        return false;
+    }
+
+    /**
+     * Port of the HTTP listener that serves scheduler metrics in Prometheus text format. 0 disables the listener.
+     */
+    @Config("ness.quartz.prometheus-port")
+    @Default("0")
+    public int getPrometheusPort()
+    {
+        return 0;
+    }
+
+    /**
+     * Address the Prometheus HTTP listener binds to.
+     */
+    @Config("ness.quartz.prometheus-address")
+    @Default("0.0.0.0")
+    public String getPrometheusAddress()
+    {
+        return "0.0.0.0";
+    }
+
+    /**
+     * File that receives the scheduler metrics in Prometheus text format, e.g. for the textfile collector
+     * of a node exporter. Unset disables the file.
+     */
+    @Config("ness.quartz.prometheus-file")
+    @DefaultNull
+    public String getPrometheusFile()
+    {
+        return null;
+    }
+
+    /**
+     * How often the Prometheus metrics are rendered. Scrapes in between get the last rendered output.
+     */
+    @Config("ness.quartz.prometheus-interval")
+    @Default("10s")
+    public TimeSpan getPrometheusInterval()
+    {
+        return new TimeSpan("10s");
+    }
+
+    /**
+     * Resolution of the SLA watchdog. Violations are detected up to one tick late.
+     */
+    @Config("ness.quartz.sla-tick")
+    @Default("1s")
+    public TimeSpan getSlaTick()
+    {
+        return new TimeSpan("1s");
+    }
+
+    /**
+     * The health check reports a saturated pool once running jobs divided by the pool size reach this value.
+     */
+    @Config("ness.quartz.health-max-utilization")
+    @Default("1.0")
+    public double getHealthMaxUtilization()
+    {
+        return 1.0;
+    }
+
+    /**
+     * The health check reports lagging triggers if a trigger fired later than this within the last minute.
+     * 0s disables the check.
+     */
+    @Config("ness.quartz.health-max-lag")
+    @Default("30s")
+    public TimeSpan getHealthMaxLag()
+    {
+        return new TimeSpan("30s");
+    }
+
+    /**
+     * How often the health check probes the job store. 0s disables the probe, then only errors the
+     * scheduler reports mark the job store as unreachable.
+     */
+    @Config("ness.quartz.health-probe-interval")
+    @Default("10s")
+    public TimeSpan getHealthProbeInterval()
+    {
+        return new TimeSpan("10s");
+    }
 }
@@ -16,6 +16,7 @@
 package com.nesscomputing.quartz;
 
 import java.util.Iterator;
+import java.util.Locale;
 import java.util.Properties;
 
 import org.apache.commons.configuration.Configuration;
@@ -71,6 +72,15 @@ public final class NessQuartzModule extends AbstractModule
         // Must be eager, otherwise the service is never started!
         bind(Scheduler.class).toProvider(SchedulerProvider.class).asEagerSingleton();
         bind(QuartzJmxTrigger.class).asEagerSingleton();
+        bind(MisfireStormGuard.class).in(Scopes.SINGLETON);
+        bind(ExecutionHistory.class).in(Scopes.SINGLETON);
+        bind(RunningJobsIndex.class).in(Scopes.SINGLETON);
+        bind(SlowExecutionProfiler.class).in(Scopes.SINGLETON);
+        bind(JobFlightRecorder.class).in(Scopes.SINGLETON);
+        bind(ResolvedQuartzMetrics.class).in(Scopes.SINGLETON);
+        bind(SlaWatchdog.class).in(Scopes.SINGLETON);
+        bind(QuartzHealthCheck.class).in(Scopes.SINGLETON);
+        bind(PrometheusExporter.class).asEagerSingleton();
 
         final Configuration nessJobConfig = config.getConfiguration(NESS_JOB_NAME);
         bind(Configuration.class).annotatedWith(NESS_JOB_NAMED).toInstance(nessJobConfig);
@@ -93,6 +103,9 @@ public final class NessQuartzModule extends AbstractModule
         for (Iterator<?> it = jobConfig.getKeys(); it.hasNext(); ) {
             final String key = it.next().toString();
             final String [] keys = StringUtils.split(key, ".");
+            if (keys.length == 3 && "sla".equals(keys[1])) {
+                continue;
+            }
             if (keys.length != 2) {
                 LOG.warn("Ignore invalid key %s", key);
                 continue;
@@ -136,6 +149,48 @@ public final class NessQuartzModule extends AbstractModule
                 binder.cronExpression(jobConfig.getString("cronExpression"));
             }
 
+            if (jobConfig.containsKey("jitter")) {
+                binder.jitter(parseDuration(jobConfig, "jitter"));
+            }
+
+            if (jobConfig.containsKey("priority")) {
+                binder.priority(jobConfig.getInt("priority"));
+            }
+
+            if (jobConfig.containsKey("misfirePolicy")) {
+                binder.misfirePolicy(MisfirePolicy.valueOf(jobConfig.getString("misfirePolicy").trim().toUpperCase(Locale.ENGLISH)));
+            }
+
+            if (jobConfig.containsKey("timeout")) {
+                binder.timeout(parseDuration(jobConfig, "timeout"));
+            }
+
+            if (jobConfig.containsKey("interruptThread")) {
+                binder.interruptThread(jobConfig.getBoolean("interruptThread"));
+            }
+
+            if (jobConfig.containsKey("sla.maxStartLag")) {
+                binder.maxStartLag(parseDuration(jobConfig, "sla.maxStartLag"));
+            }
+
+            if (jobConfig.containsKey("sla.maxRuntime")) {
+                binder.maxRuntime(parseDuration(jobConfig, "sla.maxRuntime"));
+            }
+
+            if (jobConfig.containsKey("sla.maxSuccessGap")) {
+                binder.maxSuccessGap(parseDuration(jobConfig, "sla.maxSuccessGap"));
+            }
+
+            if (jobConfig.containsKey("rateLimit")) {
+                final RateLimit rateLimit = RateLimit.parse(jobConfig.getString("rateLimit"));
+                binder.rateLimit(rateLimit.getPermits(), rateLimit.getPeriod());
+            }
+
+            if (jobConfig.containsKey("groupRateLimit")) {
+                final RateLimit rateLimit = RateLimit.parse(jobConfig.getString("groupRateLimit"));
+                binder.groupRateLimit(rateLimit.getPermits(), rateLimit.getPeriod());
+            }
+
             if (jobConfig.containsKey("enabled")) {
                 binder.enabled(jobConfig.getBoolean("enabled"));
             }
@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import static java.lang.String.format;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.quartz.InterruptableJob;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.UnableToInterruptJobException;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Base class for jobs that split their input into chunks, process the chunks in parallel on the fork join
+ * pool of the scheduler and merge the results. The pool size is set with <code>ness.quartz.parallelism</code>.
+ *
+ * If more chunks fail than {@link #getMaxFailedChunks()} allows, the job fails without merging. The job
+ * can be cancelled through Quartz (e.g. the JMX cancel operation); chunks that have not started yet are
+ * skipped and long running chunks should check {@link #isCancelled()}.
+ *
+ * @param <I> Type of a single input element.
+ * @param <R> Result of processing a chunk.
+ */
+public abstract class ParallelQuartzJob<I, R> implements InterruptableJob
+{
+    private static final Log LOG = Log.findLog();
+
+    private ForkJoinPool forkJoinPool = null;
+    private QuartzJobStatistics stats = null;
+
+    private volatile boolean cancelled = false;
+    private volatile ChunkAction rootAction = null;
+
+    void setForkJoinPool(final ForkJoinPool forkJoinPool)
+    {
+        this.forkJoinPool = forkJoinPool;
+    }
+
+    void setStatistics(final QuartzJobStatistics stats)
+    {
+        this.stats = stats;
+    }
+
+    /**
+     * Returns the input to process.
+     */
+    protected abstract List<I> getInput(JobExecutionContext context) throws JobExecutionException;
+
+    /**
+     * Processes a single chunk of the input. Called concurrently from the threads of the pool.
+     */
+    protected abstract R processChunk(List<I> chunk) throws Exception;
+
+    /**
+     * Merges the results of all successful chunks, in the order of the input. Called on the thread
+     * of the job.
+     */
+    protected abstract void merge(JobExecutionContext context, List<R> results, List<Throwable> failures) throws JobExecutionException;
+
+    /**
+     * Number of input elements per chunk.
+     */
+    protected int getChunkSize()
+    {
+        return 100;
+    }
+
+    /**
+     * Number of failed chunks that is still merged.
+     */
+    protected int getMaxFailedChunks()
+    {
+        return 0;
+    }
+
+    protected boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    @Override
+    public void execute(final JobExecutionContext context) throws JobExecutionException
+    {
+        Preconditions.checkState(forkJoinPool != null, "No fork join pool set, was the job not created by the GuiceJobFactory?");
+
+        final List<I> input = getInput(context);
+        final int chunkSize = getChunkSize();
+        Preconditions.checkState(chunkSize > 0, "chunk size must be positive, but is %s", chunkSize);
+
+        final List<List<I>> chunks = input.isEmpty() ? Collections.<List<I>>emptyList() : Lists.partition(input, chunkSize);
+        final AtomicReferenceArray<Object> results = new AtomicReferenceArray<Object>(chunks.size());
+
+        if (!chunks.isEmpty()) {
+            rootAction = new ChunkAction(chunks, results, 0, chunks.size());
+            try {
+                if (cancelled) {
+                    throw new CancellationException();
+                }
+                forkJoinPool.invoke(rootAction);
+            }
+            catch (CancellationException ce) {
+                throw new JobExecutionException(format("Job %s was cancelled", context.getJobDetail().getKey()), ce);
+            }
+            finally {
+                rootAction = null;
+            }
+        }
+
+        if (cancelled) {
+            throw new JobExecutionException(format("Job %s was cancelled", context.getJobDetail().getKey()));
+        }
+
+        final List<R> chunkResults = Lists.newArrayListWithCapacity(chunks.size());
+        final List<Throwable> failures = Lists.newArrayList();
+        for (int i = 0; i < results.length(); i++) {
+            final Object result = results.get(i);
+            if (result instanceof ChunkFailure) {
+                failures.add(((ChunkFailure) result).getCause());
+            }
+            else {
+                @SuppressWarnings("unchecked")
+                final R chunkResult = (R) result;
+                chunkResults.add(chunkResult);
+            }
+        }
+
+        if (failures.size() > getMaxFailedChunks()) {
+            throw new JobExecutionException(format("%d of %d chunks of job %s failed", failures.size(), chunks.size(), context.getJobDetail().getKey()), failures.get(0));
+        }
+
+        merge(context, chunkResults, failures);
+    }
+
+    @Override
+    public void interrupt() throws UnableToInterruptJobException
+    {
+        cancelled = true;
+        final ChunkAction action = rootAction;
+        if (action != null) {
+            action.cancel(true);
+        }
+    }
+
+    /**
+     * Splits the range of chunks in halves until a single chunk is left.
+     */
+    private class ChunkAction extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<List<I>> chunks;
+        private final AtomicReferenceArray<Object> results;
+        private final int from;
+        private final int to;
+
+        ChunkAction(final List<List<I>> chunks, final AtomicReferenceArray<Object> results, final int from, final int to)
+        {
+            this.chunks = chunks;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (cancelled) {
+                return;
+            }
+
+            if (to - from > 1) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(new ChunkAction(chunks, results, from, middle), new ChunkAction(chunks, results, middle, to));
+                return;
+            }
+
+            final long startTime = System.nanoTime();
+            try {
+                results.set(from, processChunk(chunks.get(from)));
+            }
+            catch (Exception e) {
+                LOG.warn(e, "Chunk %d failed", from);
+                results.set(from, new ChunkFailure(e));
+            }
+            finally {
+                final long runtime = System.nanoTime() - startTime;
+                if (stats != null) {
+                    stats.registerChunkRuntime(runtime);
+                }
+            }
+        }
+    }
+
+    private static final class ChunkFailure
+    {
+        private final Throwable cause;
+
+        ChunkFailure(final Throwable cause)
+        {
+            this.cause = cause;
+        }
+
+        Throwable getCause()
+        {
+            return cause;
+        }
+    }
+}
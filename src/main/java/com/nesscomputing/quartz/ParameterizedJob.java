@@ -0,0 +1,31 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import org.quartz.Job;
+
+/**
+ * A job that receives a typed parameter object instead of pulling its values out of the
+ * job data map. The parameters are attached using {@link AdHocQuartzJob#parameters(Object)}
+ * and handed to the job instance by the {@link GuiceJobFactory} before it is executed.
+ *
+ * With an in-memory job store, the job receives the same object that was given to the builder;
+ * nothing is copied or serialized.
+ */
+public interface ParameterizedJob<P> extends Job
+{
+    void setParameters(P parameters);
+}
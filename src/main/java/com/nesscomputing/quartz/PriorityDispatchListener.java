@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.quartz.CronTrigger;
+import org.quartz.JobExecutionContext;
+import org.quartz.SchedulerException;
+import org.quartz.SimpleTrigger;
+import org.quartz.Trigger;
+import org.quartz.Trigger.CompletedExecutionInstruction;
+import org.quartz.TriggerKey;
+import org.quartz.TriggerListener;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Measures how long triggers wait for a worker thread, per priority, and ages recurring triggers
+ * that had to wait: for every agingStep that a trigger waited, its next fire gets one more point
+ * of priority (up to maxBoost), so that it wins against higher priority triggers which are due at
+ * the same time. Once it fires on time again, it falls back to its original priority. The trigger
+ * is only replaced when its priority changes.
+ */
+class PriorityDispatchListener implements TriggerListener
+{
+    private static final Log LOG = Log.findLog();
+
+    static final String NAME = "ness-quartz-priority";
+
+    private final long agingStepMillis;
+    private final int maxBoost;
+    private final QuartzMetrics quartzMetrics;
+    private final ConcurrentMap<Integer, QuartzMetrics.Timer> queueWaitTimers = Maps.newConcurrentMap();
+
+    /** Original priorities of the aged triggers. Holds the base and the aged priority. */
+    private final ConcurrentMap<TriggerKey, int []> agedTriggers = Maps.newConcurrentMap();
+
+    PriorityDispatchListener(final long agingStepMillis, final int maxBoost, final QuartzMetrics quartzMetrics)
+    {
+        this.agingStepMillis = agingStepMillis;
+        this.maxBoost = maxBoost;
+        this.quartzMetrics = quartzMetrics;
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public void triggerFired(final Trigger trigger, final JobExecutionContext context)
+    {
+        if (quartzMetrics == null || context.getScheduledFireTime() == null) {
+            return;
+        }
+
+        final int priority = getBasePriority(trigger);
+        QuartzMetrics.Timer timer = queueWaitTimers.get(priority);
+        if (timer == null) {
+            timer = quartzMetrics.timer("ness.quartz.scheduler", "queue-wait", "priority-" + priority);
+            timer = Objects.firstNonNull(queueWaitTimers.putIfAbsent(priority, timer), timer);
+        }
+        timer.update(TimeUnit.MILLISECONDS.toNanos(getQueueWait(context)));
+    }
+
+    @Override
+    public boolean vetoJobExecution(final Trigger trigger, final JobExecutionContext context)
+    {
+        return false;
+    }
+
+    @Override
+    public void triggerMisfired(final Trigger trigger)
+    {
+    }
+
+    @Override
+    public void triggerComplete(final Trigger trigger, final JobExecutionContext context, final CompletedExecutionInstruction triggerInstructionCode)
+    {
+        if (trigger.getNextFireTime() == null) {
+            agedTriggers.remove(trigger.getKey());
+            return;
+        }
+        if (agingStepMillis <= 0L || !isRecurring(trigger) || context.getScheduledFireTime() == null) {
+            return;
+        }
+
+        final int basePriority = getBasePriority(trigger);
+        final long boost = Math.min(maxBoost, getQueueWait(context) / agingStepMillis);
+        final int priority = basePriority + (int) boost;
+
+        if (priority == trigger.getPriority()) {
+            return;
+        }
+
+        final Trigger agedTrigger = trigger.getTriggerBuilder()
+            .withPriority(priority)
+            .startAt(trigger.getNextFireTime())
+            .build();
+
+        try {
+            if (priority == basePriority) {
+                agedTriggers.remove(trigger.getKey());
+            }
+            else {
+                agedTriggers.put(trigger.getKey(), new int [] { basePriority, priority });
+            }
+            context.getScheduler().rescheduleJob(trigger.getKey(), agedTrigger);
+            LOG.debug("Changed priority of %s from %d to %d", trigger.getKey(), trigger.getPriority(), priority);
+        }
+        catch (SchedulerException se) {
+            agedTriggers.remove(trigger.getKey());
+            LOG.warn(se, "Could not change priority of %s", trigger.getKey());
+        }
+    }
+
+    private int getBasePriority(final Trigger trigger)
+    {
+        final int [] priorities = agedTriggers.get(trigger.getKey());
+        // A trigger that does not have its aged priority was replaced by someone else.
+        return priorities != null && priorities[1] == trigger.getPriority() ? priorities[0] : trigger.getPriority();
+    }
+
+    private static long getQueueWait(final JobExecutionContext context)
+    {
+        return Math.max(0L, context.getFireTime().getTime() - context.getScheduledFireTime().getTime());
+    }
+
+    /**
+     * Only triggers whose builder reproduces the remaining schedule can be replaced.
+     */
+    private static boolean isRecurring(final Trigger trigger)
+    {
+        return trigger instanceof CronTrigger
+            || (trigger instanceof SimpleTrigger && ((SimpleTrigger) trigger).getRepeatCount() == SimpleTrigger.REPEAT_INDEFINITELY);
+    }
+}
@@ -0,0 +1,392 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.SchedulerMetaData;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleListener;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Renders the job statistics and scheduler gauges in Prometheus text format every
+ * <code>ness.quartz.prometheus-interval</code> and serves them over a small NIO HTTP listener
+ * and/or writes them to a file. Scrapes get the pre-rendered response and cost no rendering.
+ * Bound jobs are exported per job, jobs that are added at runtime per job class.
+ */
+class PrometheusExporter
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final Scheduler scheduler;
+    private final RunningJobsIndex runningJobsIndex;
+    private final MisfireStormGuard misfireStormGuard;
+    private final int port;
+    private final String address;
+    private final String file;
+    private final long intervalMillis;
+
+    private final StringBuilder body = new StringBuilder(4096);
+    private volatile ByteBuffer response = ByteBuffer.allocate(0);
+
+    private ScheduledThreadPoolExecutor refresher = null;
+    private PrometheusHttpListener listener = null;
+
+    @Inject
+    PrometheusExporter(final Scheduler scheduler,
+                       final RunningJobsIndex runningJobsIndex,
+                       final MisfireStormGuard misfireStormGuard,
+                       final NessQuartzConfig nessQuartzConfig)
+    {
+        this.scheduler = scheduler;
+        this.runningJobsIndex = runningJobsIndex;
+        this.misfireStormGuard = misfireStormGuard;
+        this.port = nessQuartzConfig.getPrometheusPort();
+        this.address = nessQuartzConfig.getPrometheusAddress();
+        this.file = nessQuartzConfig.getPrometheusFile();
+        this.intervalMillis = Math.max(1L, nessQuartzConfig.getPrometheusInterval().getMillis());
+    }
+
+    @Inject(optional=true)
+    void injectLifecycle(final Lifecycle lifecycle)
+    {
+        if (port <= 0 && StringUtils.isBlank(file)) {
+            return;
+        }
+
+        lifecycle.addListener(LifecycleStage.START_STAGE, new LifecycleListener() {
+            @Override
+            public void onStage(final LifecycleStage lifecycleStage) {
+                start();
+            }
+        });
+
+        lifecycle.addListener(LifecycleStage.STOP_STAGE, new LifecycleListener() {
+            @Override
+            public void onStage(final LifecycleStage lifecycleStage) {
+                stop();
+            }
+        });
+    }
+
+    synchronized void start()
+    {
+        refresh();
+
+        refresher = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("ness-quartz-prometheus-refresh").setDaemon(true).build());
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+
+        if (port > 0) {
+            try {
+                listener = new PrometheusHttpListener(new InetSocketAddress(address, port), this);
+                listener.start();
+            }
+            catch (IOException ioe) {
+                LOG.error(ioe, "Could not listen for Prometheus scrapes on %s:%d", address, port);
+            }
+        }
+    }
+
+    synchronized void stop()
+    {
+        if (listener != null) {
+            listener.stop();
+            listener = null;
+        }
+        if (refresher != null) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Returns the last rendered HTTP response, ready to be written to a channel.
+     */
+    ByteBuffer getResponse()
+    {
+        return response.duplicate();
+    }
+
+    synchronized void refresh()
+    {
+        try {
+            final byte [] content = render().getBytes(Charsets.UTF_8);
+            final byte [] header = ("HTTP/1.1 200 OK\r\nContent-Type: " + CONTENT_TYPE + "\r\nContent-Length: " + content.length + "\r\nConnection: close\r\n\r\n").getBytes(Charsets.US_ASCII);
+
+            final ByteBuffer buffer = ByteBuffer.allocate(header.length + content.length);
+            buffer.put(header).put(content).flip();
+            response = buffer.asReadOnlyBuffer();
+
+            if (!StringUtils.isBlank(file)) {
+                writeFile(content);
+            }
+        }
+        catch (RuntimeException re) {
+            LOG.warn(re, "Could not render Prometheus metrics");
+        }
+    }
+
+    /**
+     * Writes to a temporary file and moves it into place, so readers never see a partial file.
+     */
+    private void writeFile(final byte [] content)
+    {
+        final Path path = Paths.get(file);
+        final Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(tmpPath, content);
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ioe) {
+            LOG.warn(ioe, "Could not write Prometheus metrics to %s", file);
+        }
+    }
+
+    synchronized String render()
+    {
+        body.setLength(0);
+
+        gauge("ness_quartz_running_jobs", "Jobs running right now.", runningJobsIndex.getTotalRunning());
+        counter("ness_quartz_executions_total", "Finished job executions.", runningJobsIndex.getTotalCompleted());
+        gauge("ness_quartz_executions_last_minute", "Job executions that finished within the last minute.", runningJobsIndex.getCompletedLastMinute());
+        gauge("ness_quartz_runtime_last_minute_seconds", "Average runtime of the job executions of the last minute.", runningJobsIndex.getAverageRuntimeLastMinute() / 1000.0);
+        gauge("ness_quartz_lag_last_minute_seconds", "Average time between scheduled and actual fire time over the last minute.", runningJobsIndex.getAverageLagLastMinute() / 1000.0);
+        gauge("ness_quartz_max_lag_last_minute_seconds", "Maximum time between scheduled and actual fire time over the last minute.", runningJobsIndex.getMaxLagLastMinute() / 1000.0);
+
+        if (LazyScheduler.isMaterialized(scheduler)) {
+            try {
+                final SchedulerMetaData metaData = scheduler.getMetaData();
+                gauge("ness_quartz_thread_pool_size", "Size of the scheduler thread pool.", metaData.getThreadPoolSize());
+                gauge("ness_quartz_standby", "1 if the scheduler is in standby mode.", metaData.isInStandbyMode() ? 1 : 0);
+            }
+            catch (SchedulerException se) {
+                LOG.debug(se, "Could not read scheduler meta data");
+            }
+        }
+
+        // Jobs added at runtime get a new key for every submission, so they are aggregated by job class.
+        final Map<JobKey, QuartzJobStatistics> jobs = Maps.newHashMap();
+        final Map<String, JobClassTotals> jobClasses = Maps.newTreeMap();
+        for (final Map.Entry<JobKey, QuartzJobStatistics> entry : GuiceJobFactory.getJobStatistics().entrySet()) {
+            final QuartzJobStatistics stats = entry.getValue();
+            if (stats.isBound()) {
+                jobs.put(entry.getKey(), stats);
+            }
+            else {
+                final String className = Objects.firstNonNull(stats.getJobClassName(), "unknown");
+                JobClassTotals totals = jobClasses.get(className);
+                if (totals == null) {
+                    totals = new JobClassTotals();
+                    jobClasses.put(className, totals);
+                }
+                totals.add(stats);
+            }
+        }
+
+        counter("ness_quartz_misfires_total", "Misfires of all jobs.", misfireStormGuard.getTotalMisfireCount());
+        boolean misfireHeader = false;
+        for (final Map.Entry<JobKey, Long> entry : misfireStormGuard.getMisfireCounts().entrySet()) {
+            if (jobs.containsKey(entry.getKey())) {
+                if (!misfireHeader) {
+                    header("ness_quartz_job_misfires_total", "Misfires per bound job.", "counter");
+                    misfireHeader = true;
+                }
+                sample("ness_quartz_job_misfires_total", entry.getKey(), null, entry.getValue());
+            }
+        }
+
+        if (!jobs.isEmpty() || !jobClasses.isEmpty()) {
+            header("ness_quartz_job_runtime_seconds", "Runtime of job executions.", "summary");
+            for (final Map.Entry<JobKey, QuartzJobStatistics> entry : jobs.entrySet()) {
+                final QuartzMetrics.Timer runtime = entry.getValue().getRuntime();
+                sample("ness_quartz_job_runtime_seconds", entry.getKey(), "0.5", runtime.getQuantileMillis(0.5) / 1000.0);
+                sample("ness_quartz_job_runtime_seconds", entry.getKey(), "0.95", runtime.getQuantileMillis(0.95) / 1000.0);
+                sample("ness_quartz_job_runtime_seconds", entry.getKey(), "0.99", runtime.getQuantileMillis(0.99) / 1000.0);
+                sample("ness_quartz_job_runtime_seconds_sum", entry.getKey(), null, runtime.getSumMillis() / 1000.0);
+                sample("ness_quartz_job_runtime_seconds_count", entry.getKey(), null, runtime.getCount());
+            }
+            for (final Map.Entry<String, JobClassTotals> entry : jobClasses.entrySet()) {
+                sample("ness_quartz_job_runtime_seconds_sum", entry.getKey(), entry.getValue().runtimeSumMillis / 1000.0);
+                sample("ness_quartz_job_runtime_seconds_count", entry.getKey(), entry.getValue().runtimeCount);
+            }
+
+            header("ness_quartz_job_cpu_seconds_total", "CPU time of job executions on their worker thread.", "counter");
+            for (final Map.Entry<JobKey, QuartzJobStatistics> entry : jobs.entrySet()) {
+                sample("ness_quartz_job_cpu_seconds_total", entry.getKey(), null, entry.getValue().getTotalCpuNanos() / 1e9);
+            }
+            for (final Map.Entry<String, JobClassTotals> entry : jobClasses.entrySet()) {
+                sample("ness_quartz_job_cpu_seconds_total", entry.getKey(), entry.getValue().cpuNanos / 1e9);
+            }
+
+            header("ness_quartz_job_allocated_bytes_total", "Bytes allocated by job executions on their worker thread.", "counter");
+            for (final Map.Entry<JobKey, QuartzJobStatistics> entry : jobs.entrySet()) {
+                sample("ness_quartz_job_allocated_bytes_total", entry.getKey(), null, entry.getValue().getTotalAllocatedBytes());
+            }
+            for (final Map.Entry<String, JobClassTotals> entry : jobClasses.entrySet()) {
+                sample("ness_quartz_job_allocated_bytes_total", entry.getKey(), entry.getValue().allocatedBytes);
+            }
+
+            header("ness_quartz_job_deferrals_total", "Fires deferred by a rate limit.", "counter");
+            for (final Map.Entry<JobKey, QuartzJobStatistics> entry : jobs.entrySet()) {
+                sample("ness_quartz_job_deferrals_total", entry.getKey(), null, entry.getValue().getDeferrals().getCount());
+            }
+            for (final Map.Entry<String, JobClassTotals> entry : jobClasses.entrySet()) {
+                sample("ness_quartz_job_deferrals_total", entry.getKey(), entry.getValue().deferrals);
+            }
+
+            header("ness_quartz_job_timeouts_total", "Executions cancelled by their timeout.", "counter");
+            for (final Map.Entry<JobKey, QuartzJobStatistics> entry : jobs.entrySet()) {
+                sample("ness_quartz_job_timeouts_total", entry.getKey(), null, entry.getValue().getTimeouts().getCount());
+            }
+            for (final Map.Entry<String, JobClassTotals> entry : jobClasses.entrySet()) {
+                sample("ness_quartz_job_timeouts_total", entry.getKey(), entry.getValue().timeouts);
+            }
+        }
+
+        return body.toString();
+    }
+
+    private void gauge(final String name, final String help, final double value)
+    {
+        header(name, help, "gauge");
+        body.append(name).append(' ').append(value).append('\n');
+    }
+
+    private void gauge(final String name, final String help, final long value)
+    {
+        header(name, help, "gauge");
+        body.append(name).append(' ').append(value).append('\n');
+    }
+
+    private void counter(final String name, final String help, final long value)
+    {
+        header(name, help, "counter");
+        body.append(name).append(' ').append(value).append('\n');
+    }
+
+    private void header(final String name, final String help, final String type)
+    {
+        body.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        body.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private void sample(final String name, final JobKey jobKey, final String quantile, final double value)
+    {
+        labels(name, "job", jobKey.toString(), quantile);
+        body.append(value).append('\n');
+    }
+
+    private void sample(final String name, final JobKey jobKey, final String quantile, final long value)
+    {
+        labels(name, "job", jobKey.toString(), quantile);
+        body.append(value).append('\n');
+    }
+
+    private void sample(final String name, final String jobClassName, final double value)
+    {
+        labels(name, "job_class", jobClassName, null);
+        body.append(value).append('\n');
+    }
+
+    private void sample(final String name, final String jobClassName, final long value)
+    {
+        labels(name, "job_class", jobClassName, null);
+        body.append(value).append('\n');
+    }
+
+    private void labels(final String name, final String label, final String value, final String quantile)
+    {
+        body.append(name).append('{').append(label).append("=\"");
+        escape(value);
+        body.append('"');
+        if (quantile != null) {
+            body.append(",quantile=\"").append(quantile).append('"');
+        }
+        body.append("} ");
+    }
+
+    private void escape(final String value)
+    {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '\\':
+                    body.append("\\\\");
+                    break;
+                case '"':
+                    body.append("\\\"");
+                    break;
+                case '\n':
+                    body.append("\\n");
+                    break;
+                default:
+                    body.append(c);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Sums of the statistics of all jobs of one class that were added at runtime.
+     */
+    private static class JobClassTotals
+    {
+        private double runtimeSumMillis = 0.0;
+        private long runtimeCount = 0L;
+        private long cpuNanos = 0L;
+        private long allocatedBytes = 0L;
+        private long deferrals = 0L;
+        private long timeouts = 0L;
+
+        void add(final QuartzJobStatistics stats)
+        {
+            runtimeSumMillis += stats.getRuntime().getSumMillis();
+            runtimeCount += stats.getRuntime().getCount();
+            cpuNanos += stats.getTotalCpuNanos();
+            allocatedBytes += stats.getTotalAllocatedBytes();
+            deferrals += stats.getDeferrals().getCount();
+            timeouts += stats.getTimeouts().getCount();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Charsets;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Minimal HTTP listener on a single selector thread. <tt>GET /metrics</tt> (or <tt>/</tt>) is answered
+ * with the pre-rendered response of the exporter, anything else with an error. Every connection is
+ * closed after one response, or when it did not get its response within a short deadline.
+ */
+final class PrometheusHttpListener implements Runnable
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final int MAX_REQUEST_SIZE = 4096;
+    private static final int MAX_CONNECTIONS = 64;
+    private static final long CONNECTION_TIMEOUT = TimeUnit.SECONDS.toMillis(2);
+    private static final long SWEEP_INTERVAL = 500L;
+
+    private static final ByteBuffer NOT_FOUND = staticResponse("404 Not Found");
+    private static final ByteBuffer BAD_REQUEST = staticResponse("400 Bad Request");
+
+    private final PrometheusExporter exporter;
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+
+    private volatile boolean running = true;
+    private Thread thread = null;
+
+    PrometheusHttpListener(final InetSocketAddress address, final PrometheusExporter exporter)
+        throws IOException
+    {
+        this.exporter = exporter;
+        this.selector = Selector.open();
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    int getPort()
+    {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    synchronized void start()
+    {
+        thread = new Thread(this, "ness-quartz-prometheus");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    synchronized void stop()
+    {
+        running = false;
+        selector.wakeup();
+        if (thread != null) {
+            try {
+                thread.join(1000L);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        LOG.info("Serving Prometheus metrics on port %d", getPort());
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+        try {
+            while (running) {
+                selector.select(SWEEP_INTERVAL);
+                final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    final SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                        }
+                        else if (key.isReadable()) {
+                            read(key);
+                        }
+                        else if (key.isWritable()) {
+                            write(key);
+                        }
+                    }
+                    catch (IOException ioe) {
+                        LOG.debug(ioe, "While serving Prometheus metrics");
+                        close(key);
+                    }
+                }
+
+                final long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    sweep(now);
+                    nextSweep = now + SWEEP_INTERVAL;
+                }
+            }
+        }
+        catch (IOException ioe) {
+            LOG.warn(ioe, "Prometheus listener failed");
+        }
+        finally {
+            for (final SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            try {
+                selector.close();
+            }
+            catch (IOException ioe) {
+                LOG.trace(ioe, "While closing selector");
+            }
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        // The server channel has a key as well.
+        if (selector.keys().size() > MAX_CONNECTIONS) {
+            LOG.debug("Too many Prometheus connections, closing %s", channel);
+            channel.close();
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Connection(System.currentTimeMillis() + CONNECTION_TIMEOUT));
+    }
+
+    /**
+     * Closes the connections that did not get their response before their deadline.
+     */
+    private void sweep(final long now)
+    {
+        for (final SelectionKey key : selector.keys()) {
+            final Connection connection = (Connection) key.attachment();
+            if (connection != null && now >= connection.deadline) {
+                LOG.debug("Closing Prometheus connection %s after %dms", key.channel(), CONNECTION_TIMEOUT);
+                close(key);
+            }
+        }
+    }
+
+    private void read(final SelectionKey key) throws IOException
+    {
+        final ByteBuffer request = ((Connection) key.attachment()).request;
+        final SocketChannel channel = (SocketChannel) key.channel();
+        if (channel.read(request) < 0) {
+            close(key);
+            return;
+        }
+
+        if (!isComplete(request)) {
+            if (!request.hasRemaining()) {
+                respond(key, BAD_REQUEST.duplicate());
+            }
+            return;
+        }
+
+        respond(key, getResponse(request));
+    }
+
+    private void write(final SelectionKey key) throws IOException
+    {
+        final ByteBuffer response = ((Connection) key.attachment()).response;
+        ((SocketChannel) key.channel()).write(response);
+        if (!response.hasRemaining()) {
+            close(key);
+        }
+    }
+
+    private void respond(final SelectionKey key, final ByteBuffer response) throws IOException
+    {
+        ((Connection) key.attachment()).respond(response);
+        ((SocketChannel) key.channel()).write(response);
+        if (response.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+        else {
+            close(key);
+        }
+    }
+
+    private ByteBuffer getResponse(final ByteBuffer request)
+    {
+        if (!startsWith(request, 0, "GET ")) {
+            return BAD_REQUEST.duplicate();
+        }
+        if (startsWith(request, 4, "/metrics ") || startsWith(request, 4, "/metrics?") || startsWith(request, 4, "/ ")) {
+            return exporter.getResponse();
+        }
+        return NOT_FOUND.duplicate();
+    }
+
+    /**
+     * A request is complete once the empty line after the headers has arrived.
+     */
+    private static boolean isComplete(final ByteBuffer request)
+    {
+        for (int i = 3; i < request.position(); i++) {
+            if (request.get(i) == '\n' && request.get(i - 1) == '\r' && request.get(i - 2) == '\n' && request.get(i - 3) == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startsWith(final ByteBuffer request, final int offset, final String prefix)
+    {
+        if (request.position() < offset + prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (request.get(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void close(final SelectionKey key)
+    {
+        key.cancel();
+        try {
+            key.channel().close();
+        }
+        catch (IOException ioe) {
+            LOG.trace(ioe, "While closing channel");
+        }
+    }
+
+    private static ByteBuffer staticResponse(final String status)
+    {
+        return ByteBuffer.wrap(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(Charsets.US_ASCII)).asReadOnlyBuffer();
+    }
+
+    private static final class Connection
+    {
+        private final long deadline;
+        private ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private ByteBuffer response = null;
+
+        Connection(final long deadline)
+        {
+            this.deadline = deadline;
+        }
+
+        void respond(final ByteBuffer response)
+        {
+            this.request = null;
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.quartz.JobKey;
+import org.quartz.JobPersistenceException;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.listeners.SchedulerListenerSupport;
+import org.weakref.jmx.Managed;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Cheap health signal of the scheduler for load balancers and orchestrators: is it started, is its
+ * thread pool saturated, do triggers fire late and is the job store reachable. All answers come from
+ * state that is kept up to date by scheduler callbacks, a call never touches the job store. The job
+ * store is probed in the background every <code>ness.quartz.health-probe-interval</code>.
+ */
+public class QuartzHealthCheck
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final JobKey PROBE_KEY = new JobKey("ness-health-probe", "ness-quartz");
+
+    public enum State
+    {
+        /** The scheduler was not created yet, e.g. with <code>ness.quartz.lazy-start</code>. */
+        NOT_CREATED,
+        CREATED,
+        STARTED,
+        STANDBY,
+        SHUT_DOWN;
+    }
+
+    private final RunningJobsIndex runningJobsIndex;
+    private final boolean lazyStart;
+    private final double maxUtilization;
+    private final long maxLagMillis;
+    private final long probeIntervalMillis;
+
+    private volatile State state = State.NOT_CREATED;
+    private volatile int poolSize = 0;
+    private volatile boolean storeReachable = true;
+    private volatile String storeError = null;
+
+    private ScheduledExecutorService prober = null;
+
+    @Inject
+    QuartzHealthCheck(final RunningJobsIndex runningJobsIndex, final NessQuartzConfig nessQuartzConfig)
+    {
+        this.runningJobsIndex = runningJobsIndex;
+        this.lazyStart = nessQuartzConfig.isLazyStart();
+        this.maxUtilization = nessQuartzConfig.getHealthMaxUtilization();
+        this.maxLagMillis = nessQuartzConfig.getHealthMaxLag().getMillis();
+        this.probeIntervalMillis = nessQuartzConfig.getHealthProbeInterval().getMillis();
+    }
+
+    /**
+     * Starts tracking the scheduler.
+     */
+    synchronized void register(final Scheduler scheduler) throws SchedulerException
+    {
+        poolSize = scheduler.getMetaData().getThreadPoolSize();
+        state = State.CREATED;
+        scheduler.getListenerManager().addSchedulerListener(new HealthListener());
+
+        if (probeIntervalMillis > 0L) {
+            prober = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("ness-quartz-health-probe").setDaemon(true).build());
+            prober.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    probe(scheduler);
+                }
+            }, probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void probe(final Scheduler scheduler)
+    {
+        try {
+            scheduler.checkExists(PROBE_KEY);
+            storeReachable = true;
+        }
+        catch (SchedulerException se) {
+            storeFailed(se);
+        }
+        catch (RuntimeException re) {
+            storeFailed(re);
+        }
+    }
+
+    private void storeFailed(final Throwable cause)
+    {
+        if (storeReachable) {
+            LOG.warn(cause, "Job store is not reachable");
+        }
+        storeError = Throwables.getRootCause(cause).toString();
+        storeReachable = false;
+    }
+
+    private synchronized void stopProbing()
+    {
+        if (prober != null) {
+            prober.shutdownNow();
+            prober = null;
+        }
+    }
+
+    @Managed(description="true if the scheduler runs, has free threads, fires on time and reaches its job store")
+    public boolean isHealthy()
+    {
+        return getProblems().length == 0;
+    }
+
+    @Managed(description="the reasons why the scheduler is not healthy")
+    public String [] getProblems()
+    {
+        final List<String> problems = Lists.newArrayList();
+        final State currentState = state;
+        if (currentState != State.STARTED && !(currentState == State.NOT_CREATED && lazyStart)) {
+            problems.add("scheduler is " + currentState);
+        }
+        if (isSaturated()) {
+            problems.add("thread pool is saturated, " + runningJobsIndex.getTotalRunning() + " of " + poolSize + " threads busy");
+        }
+        if (isLagging()) {
+            problems.add("trigger lag of " + getMaxLagMillis() + "ms over the limit of " + maxLagMillis + "ms");
+        }
+        if (!isJobStoreReachable()) {
+            problems.add("job store is not reachable: " + storeError);
+        }
+        return problems.toArray(new String [problems.size()]);
+    }
+
+    public State getSchedulerState()
+    {
+        return state;
+    }
+
+    @Managed
+    public String getState()
+    {
+        return state.name();
+    }
+
+    @Managed(description="true if running jobs divided by the pool size is at least ness.quartz.health-max-utilization")
+    public boolean isSaturated()
+    {
+        return poolSize > 0 && getPoolUtilization() >= maxUtilization;
+    }
+
+    @Managed
+    public double getPoolUtilization()
+    {
+        final int size = poolSize;
+        return size == 0 ? 0.0 : (double) runningJobsIndex.getTotalRunning() / size;
+    }
+
+    @Managed(description="true if a trigger fired more than ness.quartz.health-max-lag late within the last minute")
+    public boolean isLagging()
+    {
+        return maxLagMillis > 0L && getMaxLagMillis() > maxLagMillis;
+    }
+
+    @Managed(description="maximum time in ms between scheduled and actual fire time over the last minute")
+    public long getMaxLagMillis()
+    {
+        return runningJobsIndex.getMaxLagLastMinute();
+    }
+
+    @Managed(description="false if the last access to the job store failed")
+    public boolean isJobStoreReachable()
+    {
+        return storeReachable;
+    }
+
+    private class HealthListener extends SchedulerListenerSupport
+    {
+        @Override
+        public void schedulerStarted()
+        {
+            state = State.STARTED;
+        }
+
+        @Override
+        public void schedulerInStandbyMode()
+        {
+            state = State.STANDBY;
+        }
+
+        @Override
+        public void schedulerShuttingdown()
+        {
+            state = State.SHUT_DOWN;
+            stopProbing();
+        }
+
+        @Override
+        public void schedulerShutdown()
+        {
+            state = State.SHUT_DOWN;
+            stopProbing();
+        }
+
+        @Override
+        public void schedulerError(final String message, final SchedulerException cause)
+        {
+            if (cause instanceof JobPersistenceException || Throwables.getRootCause(cause) instanceof JobPersistenceException) {
+                storeFailed(cause);
+            }
+        }
+    }
+}
@@ -16,19 +16,24 @@
 package com.nesscomputing.quartz;
 
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
-import org.quartz.JobExecutionContext;
 import org.quartz.JobKey;
 import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
 import org.quartz.Trigger;
 import org.quartz.TriggerKey;
+import org.quartz.impl.matchers.GroupMatcher;
 import org.weakref.jmx.JmxException;
 import org.weakref.jmx.MBeanExporter;
 import org.weakref.jmx.Managed;
 
+import com.google.common.base.Function;
+import com.google.common.collect.Ordering;
 import com.google.common.collect.Sets;
 import com.google.inject.Inject;
 import com.nesscomputing.lifecycle.Lifecycle;
@@ -40,32 +45,68 @@ public class QuartzJmxTrigger
 {
     private static final Log LOG = Log.findLog();
 
+    static final String SCHEDULER_KEY = "ness.quartz:type=scheduler";
+    static final String HEALTH_KEY = "ness.quartz:type=health";
+
+    private static final int TOP_JOBS = 10;
+
     private final Set<String> keys = Sets.newHashSet();
 
     private final Scheduler scheduler;
+    private final ExecutionHistory executionHistory;
+    private final RunningJobsIndex runningJobsIndex;
+    private final MisfireStormGuard misfireStormGuard;
+    private final SlowExecutionProfiler slowExecutionProfiler;
+    private final QuartzHealthCheck quartzHealthCheck;
+    private final long cacheTtl;
+    private final int adHocCap;
 
     private MBeanExporter mbeanExporter = null;
+    private AdHocJmxExporter adHocJmxExporter = null;
     private Set<QuartzJobBinder> jobs = null;
 
     @Inject
-    QuartzJmxTrigger(final Scheduler scheduler)
+    QuartzJmxTrigger(final Scheduler scheduler,
+                     final ExecutionHistory executionHistory,
+                     final RunningJobsIndex runningJobsIndex,
+                     final MisfireStormGuard misfireStormGuard,
+                     final SlowExecutionProfiler slowExecutionProfiler,
+                     final QuartzHealthCheck quartzHealthCheck,
+                     final NessQuartzConfig nessQuartzConfig)
     {
         this.scheduler = scheduler;
+        this.executionHistory = executionHistory;
+        this.runningJobsIndex = runningJobsIndex;
+        this.misfireStormGuard = misfireStormGuard;
+        this.slowExecutionProfiler = slowExecutionProfiler;
+        this.quartzHealthCheck = quartzHealthCheck;
+        this.cacheTtl = nessQuartzConfig.getJmxCacheTtl().getMillis();
+        this.adHocCap = nessQuartzConfig.getJmxAdHocCap();
+    }
+
+    @Inject(optional=true)
+    void setJobs(final Set<QuartzJobBinder> jobs)
+    {
+        this.jobs = jobs;
     }
 
     @Inject(optional=true)
     void setMBeanExporter(final MBeanExporter mbeanExporter,
-                                 final Set<QuartzJobBinder> jobs,
                                  final Lifecycle lifecycle)
     {
         this.mbeanExporter = mbeanExporter;
-        this.jobs = jobs;
 
         lifecycle.addListener(LifecycleStage.START_STAGE, new LifecycleListener() {
 
             @Override
             public void onStage(final LifecycleStage lifecycleStage) {
-                export();
+                // With a lazy scheduler, the beans are exported once the scheduler exists.
+                LazyScheduler.whenMaterialized(scheduler, new Runnable() {
+                    @Override
+                    public void run() {
+                        export();
+                    }
+                });
             }
         });
 
@@ -78,25 +119,57 @@ public class QuartzJmxTrigger
         });
     }
 
-    void export()
+    synchronized void export()
     {
-        if (mbeanExporter == null || jobs == null || jobs.isEmpty()) {
+        if (mbeanExporter == null) {
+            return;
+        }
+
+        keys.add(SCHEDULER_KEY);
+        mbeanExporter.export(SCHEDULER_KEY, new QuartzJmxScheduler());
+        keys.add(HEALTH_KEY);
+        mbeanExporter.export(HEALTH_KEY, quartzHealthCheck);
+
+        adHocJmxExporter = new AdHocJmxExporter(this, mbeanExporter, scheduler, adHocCap);
+        try {
+            adHocJmxExporter.start();
+        }
+        catch (SchedulerException se) {
+            LOG.warn(se, "Could not export ad-hoc jobs");
+        }
+
+        if (jobs == null || jobs.isEmpty()) {
             return;
         }
 
         for (QuartzJobBinder job : jobs) {
             final String keyName = "ness.quartz.job:type=trigger, name=" + job.getName() + (StringUtils.isBlank(job.getGroup()) ? "" : "-" + job.getGroup());
             keys.add(keyName);
-            mbeanExporter.export(keyName, new QuartzJmxWrapper(job));
+            mbeanExporter.export(keyName, new QuartzJmxWrapper(job.getJobDetail().getKey()));
         }
     }
 
-    void unexport()
+    QuartzJmxWrapper newJobBean(final JobKey jobKey)
+    {
+        return new QuartzJmxWrapper(jobKey);
+    }
+
+    synchronized void unexport()
     {
         if (mbeanExporter == null) {
             return;
         }
 
+        if (adHocJmxExporter != null) {
+            try {
+                adHocJmxExporter.stop();
+            }
+            catch (SchedulerException se) {
+                LOG.warn(se, "While removing ad-hoc job beans");
+            }
+            adHocJmxExporter = null;
+        }
+
         for (String key : keys) {
             try {
                 mbeanExporter.unexport(key);
@@ -116,13 +189,14 @@ public class QuartzJmxTrigger
 
     public class QuartzJmxWrapper
     {
-        final QuartzJobBinder job;
         final JobKey jobKey;
 
-        private QuartzJmxWrapper(final QuartzJobBinder job)
+        private volatile String [] triggerStates = null;
+        private volatile long triggerStatesExpiry = 0L;
+
+        private QuartzJmxWrapper(final JobKey jobKey)
         {
-            this.job = job;
-            this.jobKey = job.getJobDetail().getKey();
+            this.jobKey = jobKey;
         }
 
         @Managed
@@ -138,30 +212,41 @@ public class QuartzJmxTrigger
             return scheduler.checkExists(jobKey);
         }
 
+        /**
+         * Trigger states are cached for <code>ness.quartz.jmx-cache-ttl</code>, so frequent scrapes do
+         * not hit the job store.
+         */
         @Managed
         public String [] getTriggerState()
             throws SchedulerException
         {
+            final String [] cachedStates = triggerStates;
+            if (cachedStates != null && System.currentTimeMillis() < triggerStatesExpiry) {
+                return cachedStates.clone();
+            }
+
             final List<? extends Trigger> triggers =  scheduler.getTriggersOfJob(jobKey);
-            final String [] triggerStates = new String [triggers.size()];
-            for (int i = 0; i < triggerStates.length; i++) {
+            final String [] states = new String [triggers.size()];
+            for (int i = 0; i < states.length; i++) {
                 final TriggerKey triggerKey = triggers.get(i).getKey();
-                triggerStates[i] = triggerKey.toString() + ": " + scheduler.getTriggerState(triggers.get(i).getKey()).toString();
+                states[i] = triggerKey.toString() + ": " + scheduler.getTriggerState(triggers.get(i).getKey()).toString();
             }
-            return triggerStates;
+
+            triggerStates = states;
+            triggerStatesExpiry = System.currentTimeMillis() + cacheTtl;
+            return states.clone();
         }
 
         @Managed
         public boolean isRunning()
-            throws SchedulerException
         {
-            final List<JobExecutionContext> jobExecutionContexts = scheduler.getCurrentlyExecutingJobs();
-            for (JobExecutionContext jobContext : jobExecutionContexts) {
-                if (jobContext.getJobDetail().getKey().equals(jobKey)) {
-                    return true;
-                }
-            }
-            return false;
+            return runningJobsIndex.isRunning(jobKey);
+        }
+
+        @Managed
+        public int getRunningCount()
+        {
+            return runningJobsIndex.getRunningCount(jobKey);
         }
 
         @Managed
@@ -169,6 +254,7 @@ public class QuartzJmxTrigger
             throws SchedulerException
         {
             scheduler.triggerJob(jobKey);
+            triggerStates = null;
         }
 
         @Managed
@@ -176,6 +262,7 @@ public class QuartzJmxTrigger
             throws SchedulerException
         {
             scheduler.pauseJob(jobKey);
+            triggerStates = null;
         }
 
         @Managed
@@ -183,6 +270,7 @@ public class QuartzJmxTrigger
             throws SchedulerException
         {
             scheduler.resumeJob(jobKey);
+            triggerStates = null;
         }
 
         @Managed
@@ -191,6 +279,285 @@ public class QuartzJmxTrigger
         {
             scheduler.interrupt(jobKey);
         }
+
+        @Managed(description="last executions of the job, newest first")
+        public String [] getExecutionHistory()
+        {
+            final List<ExecutionHistory.Execution> executions = executionHistory.getExecutions(jobKey);
+            final String [] result = new String [executions.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = executions.get(i).toString();
+            }
+            return result;
+        }
+
+        @Managed
+        public long getLastDurationMillis()
+        {
+            final List<ExecutionHistory.Execution> executions = executionHistory.getExecutions(jobKey);
+            return executions.isEmpty() ? -1L : executions.get(0).getDurationMillis();
+        }
+
+        @Managed
+        public void clearExecutionHistory()
+        {
+            executionHistory.clear(jobKey);
+        }
+
+        @Managed(description="stack samples of executions over ness.quartz.slow-threshold in folded flame graph format")
+        public String [] getSlowExecutionProfile()
+        {
+            final List<String> profile = slowExecutionProfiler.getProfile(jobKey);
+            return profile.toArray(new String [profile.size()]);
+        }
+
+        @Managed(description="executions that ran over ness.quartz.slow-threshold")
+        public long getSlowExecutions()
+        {
+            return slowExecutionProfiler.getSlowExecutions(jobKey);
+        }
+
+        @Managed
+        public void clearSlowExecutionProfile()
+        {
+            slowExecutionProfiler.clear(jobKey);
+        }
+
+        @Managed(description="CPU time in ms that executions of the job used on their worker thread, jobs added at runtime count under their job class in the ness.quartz.adhoc group")
+        public long getCpuTimeMillis()
+        {
+            final QuartzJobStatistics stats = GuiceJobFactory.getJobStatistics(jobKey);
+            return stats == null ? 0L : TimeUnit.NANOSECONDS.toMillis(stats.getTotalCpuNanos());
+        }
+
+        @Managed(description="bytes that executions of the job allocated on their worker thread, jobs added at runtime count under their job class in the ness.quartz.adhoc group")
+        public long getAllocatedBytes()
+        {
+            final QuartzJobStatistics stats = GuiceJobFactory.getJobStatistics(jobKey);
+            return stats == null ? 0L : stats.getTotalAllocatedBytes();
+        }
+
+        @Managed(description="CPU time divided by runtime, close to 0 for jobs that wait on I/O")
+        public double getCpuShare()
+        {
+            final QuartzJobStatistics stats = GuiceJobFactory.getJobStatistics(jobKey);
+            if (stats == null || stats.getRuntime().getSumMillis() <= 0.0) {
+                return 0.0;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(stats.getTotalCpuNanos()) / stats.getRuntime().getSumMillis();
+        }
+
+        @Managed(description="median bytes allocated by an execution")
+        public double getMedianAllocatedBytes()
+        {
+            final QuartzJobStatistics stats = GuiceJobFactory.getJobStatistics(jobKey);
+            return stats == null ? 0.0 : stats.getAllocations().getQuantile(0.5);
+        }
     }
-}
 
+    /**
+     * Operations on many jobs at once and an aggregated view of all jobs.
+     */
+    public class QuartzJmxScheduler
+    {
+        private QuartzJmxScheduler()
+        {
+        }
+
+        @Managed(description="pauses all jobs of a group until they are resumed or the scheduler restarts (pauses are not journaled), returns the number of jobs")
+        public int pauseGroup(final String group)
+            throws SchedulerException
+        {
+            final GroupMatcher<JobKey> matcher = GroupMatcher.jobGroupEquals(group);
+            scheduler.pauseJobs(matcher);
+            return scheduler.getJobKeys(matcher).size();
+        }
+
+        @Managed(description="resumes all jobs of a group, returns the number of jobs")
+        public int resumeGroup(final String group)
+            throws SchedulerException
+        {
+            final GroupMatcher<JobKey> matcher = GroupMatcher.jobGroupEquals(group);
+            scheduler.resumeJobs(matcher);
+            return scheduler.getJobKeys(matcher).size();
+        }
+
+        @Managed(description="triggers all jobs of a group, returns the number of jobs")
+        public int triggerGroup(final String group)
+            throws SchedulerException
+        {
+            final Set<JobKey> jobKeys = scheduler.getJobKeys(GroupMatcher.jobGroupEquals(group));
+            for (final JobKey jobKey : jobKeys) {
+                scheduler.triggerJob(jobKey);
+            }
+            return jobKeys.size();
+        }
+
+        @Managed(description="pauses all jobs whose group.name matches the regular expression until they are resumed or the scheduler restarts (pauses are not journaled), returns the number of jobs")
+        public int pauseMatching(final String regex)
+            throws SchedulerException
+        {
+            final Set<JobKey> jobKeys = getMatchingJobKeys(regex);
+            for (final JobKey jobKey : jobKeys) {
+                scheduler.pauseJob(jobKey);
+            }
+            return jobKeys.size();
+        }
+
+        @Managed(description="resumes all jobs whose group.name matches the regular expression, returns the number of jobs")
+        public int resumeMatching(final String regex)
+            throws SchedulerException
+        {
+            final Set<JobKey> jobKeys = getMatchingJobKeys(regex);
+            for (final JobKey jobKey : jobKeys) {
+                scheduler.resumeJob(jobKey);
+            }
+            return jobKeys.size();
+        }
+
+        @Managed(description="triggers all jobs whose group.name matches the regular expression, returns the number of jobs")
+        public int triggerMatching(final String regex)
+            throws SchedulerException
+        {
+            final Set<JobKey> jobKeys = getMatchingJobKeys(regex);
+            for (final JobKey jobKey : jobKeys) {
+                scheduler.triggerJob(jobKey);
+            }
+            return jobKeys.size();
+        }
+
+        @Managed(description="pauses all jobs until they are resumed or the scheduler restarts (pauses are not journaled)")
+        public void pauseAll()
+            throws SchedulerException
+        {
+            scheduler.pauseAll();
+        }
+
+        @Managed
+        public void resumeAll()
+            throws SchedulerException
+        {
+            scheduler.resumeAll();
+        }
+
+        @Managed
+        public String [] getPausedGroups()
+            throws SchedulerException
+        {
+            final Set<String> groups = scheduler.getPausedTriggerGroups();
+            return groups.toArray(new String [groups.size()]);
+        }
+
+        @Managed(description="number of jobs running right now")
+        public int getRunningJobs()
+        {
+            return runningJobsIndex.getTotalRunning();
+        }
+
+        @Managed(description="running jobs divided by the size of the thread pool")
+        public double getPoolUtilization()
+            throws SchedulerException
+        {
+            final int poolSize = scheduler.getMetaData().getThreadPoolSize();
+            return poolSize == 0 ? 0.0 : (double) runningJobsIndex.getTotalRunning() / poolSize;
+        }
+
+        @Managed
+        public long getCompletedExecutions()
+        {
+            return runningJobsIndex.getTotalCompleted();
+        }
+
+        @Managed(description="executions that finished within the last minute")
+        public long getThroughputPerMinute()
+        {
+            return runningJobsIndex.getCompletedLastMinute();
+        }
+
+        @Managed(description="average runtime in ms of the executions of the last minute")
+        public long getAverageRuntimeMillis()
+        {
+            return runningJobsIndex.getAverageRuntimeLastMinute();
+        }
+
+        @Managed(description="average time in ms between scheduled and actual fire time over the last minute")
+        public long getAverageLagMillis()
+        {
+            return runningJobsIndex.getAverageLagLastMinute();
+        }
+
+        @Managed(description="maximum time in ms between scheduled and actual fire time over the last minute")
+        public long getMaxLagMillis()
+        {
+            return runningJobsIndex.getMaxLagLastMinute();
+        }
+
+        @Managed
+        public long getMisfires()
+        {
+            return misfireStormGuard.getTotalMisfireCount();
+        }
+
+        @Managed(description="jobs that used the most CPU time, with their CPU time in ms")
+        public String [] getTopCpuJobs()
+        {
+            return getTopJobs(new Function<QuartzJobStatistics, Long>() {
+                @Override
+                public Long apply(final QuartzJobStatistics stats)
+                {
+                    return TimeUnit.NANOSECONDS.toMillis(stats.getTotalCpuNanos());
+                }
+            });
+        }
+
+        @Managed(description="jobs that allocated the most bytes, with their allocated bytes")
+        public String [] getTopAllocatingJobs()
+        {
+            return getTopJobs(new Function<QuartzJobStatistics, Long>() {
+                @Override
+                public Long apply(final QuartzJobStatistics stats)
+                {
+                    return stats.getTotalAllocatedBytes();
+                }
+            });
+        }
+
+        @Managed
+        public boolean isInStandbyMode()
+            throws SchedulerException
+        {
+            return scheduler.isInStandbyMode();
+        }
+
+        private String [] getTopJobs(final Function<QuartzJobStatistics, Long> cost)
+        {
+            final Ordering<Map.Entry<JobKey, QuartzJobStatistics>> byCost = Ordering.natural().onResultOf(new Function<Map.Entry<JobKey, QuartzJobStatistics>, Long>() {
+                @Override
+                public Long apply(final Map.Entry<JobKey, QuartzJobStatistics> entry)
+                {
+                    return cost.apply(entry.getValue());
+                }
+            });
+
+            final List<Map.Entry<JobKey, QuartzJobStatistics>> top = byCost.greatestOf(GuiceJobFactory.getJobStatistics().entrySet(), TOP_JOBS);
+            final String [] result = new String [top.size()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = top.get(i).getKey() + ": " + cost.apply(top.get(i).getValue());
+            }
+            return result;
+        }
+
+        private Set<JobKey> getMatchingJobKeys(final String regex)
+            throws SchedulerException
+        {
+            final Pattern pattern = Pattern.compile(regex);
+            final Set<JobKey> jobKeys = Sets.newHashSet();
+            for (final JobKey jobKey : scheduler.getJobKeys(GroupMatcher.jobGroupStartsWith(""))) {
+                if (pattern.matcher(jobKey.toString()).matches()) {
+                    jobKeys.add(jobKey);
+                }
+            }
+            return jobKeys;
+        }
+    }
+}
@@ -22,6 +22,9 @@ import static org.joda.time.DateTimeConstants.MILLIS_PER_DAY;
 import static org.joda.time.DateTimeConstants.MILLIS_PER_WEEK;
 
 import java.io.Serializable;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -29,6 +32,7 @@ import org.apache.commons.configuration.Configuration;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
+import org.quartz.CronExpression;
 import org.quartz.CronScheduleBuilder;
 import org.quartz.Job;
 import org.quartz.JobBuilder;
@@ -41,6 +45,7 @@ import org.quartz.Trigger;
 import org.quartz.TriggerBuilder;
 import org.skife.config.TimeSpan;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.inject.name.Named;
 import com.nesscomputing.logging.Log;
@@ -58,6 +63,11 @@ abstract class QuartzJob<SelfType extends QuartzJob<SelfType>>
     private Boolean enabled = null;
     private String conditional = null;
     private String cronExpression = null;
+    private Duration jitter = null;
+    private String nodeId = null;
+    private Integer priority = null;
+    private MisfirePolicy misfirePolicy = null;
+    private Long anchorTime = null;
 
     private final Class<? extends Job> jobClass;
 
@@ -66,6 +76,26 @@ abstract class QuartzJob<SelfType extends QuartzJob<SelfType>>
         this.jobClass = jobClass;
     }
 
+    /**
+     * Copies all settings of another job into this one.
+     */
+    protected void copySettings(final QuartzJob<?> other)
+    {
+        jobDataMap.putAll(other.jobDataMap);
+        delay = other.delay;
+        repeat = other.repeat;
+        name = other.name;
+        group = other.group;
+        enabled = other.enabled;
+        conditional = other.conditional;
+        cronExpression = other.cronExpression;
+        jitter = other.jitter;
+        nodeId = other.nodeId;
+        priority = other.priority;
+        misfirePolicy = other.misfirePolicy;
+        anchorTime = other.anchorTime;
+    }
+
     protected void setJobData(final String key, final Serializable value)
     {
         jobDataMap.put(key, value);
@@ -147,6 +177,132 @@ abstract class QuartzJob<SelfType extends QuartzJob<SelfType>>
         return (SelfType) this;
     }
 
+    /**
+     * Spreads the fire times of the job by up to the given duration. The offset is derived from the
+     * job name and the node, so it is stable across restarts but differs between nodes.
+     */
+    @SuppressWarnings("unchecked")
+    public final SelfType jitter(final Duration jitter)
+    {
+        this.jitter = jitter;
+        return (SelfType) this;
+    }
+
+    /**
+     * Sets the priority of the job's trigger. If several triggers are due at the same time and
+     * not enough threads are available, the trigger with the higher priority fires first.
+     */
+    @SuppressWarnings("unchecked")
+    public final SelfType priority(final int priority)
+    {
+        this.priority = priority;
+        return (SelfType) this;
+    }
+
+    /**
+     * Limits the job to the given number of runs per period. Fires over the limit are deferred.
+     */
+    @SuppressWarnings("unchecked")
+    public final SelfType rateLimit(final int permits, final Duration period)
+    {
+        setJobData(RateLimit.JOB_KEY, new RateLimit(permits, period).toString());
+        return (SelfType) this;
+    }
+
+    /**
+     * Limits all jobs in the group of this job to the given number of runs per period. All jobs
+     * of a group should declare the same limit.
+     */
+    @SuppressWarnings("unchecked")
+    public final SelfType groupRateLimit(final int permits, final Duration period)
+    {
+        setJobData(RateLimit.GROUP_KEY, new RateLimit(permits, period).toString());
+        return (SelfType) this;
+    }
+
+    /**
+     * Sets what happens with fires that were missed.
+     */
+    @SuppressWarnings("unchecked")
+    public final SelfType misfirePolicy(final MisfirePolicy misfirePolicy)
+    {
+        this.misfirePolicy = misfirePolicy;
+        return (SelfType) this;
+    }
+
+    /**
+     * Cancels the job if it runs longer than the given duration.
+     */
+    @SuppressWarnings("unchecked")
+    public final SelfType timeout(final Duration timeout)
+    {
+        setJobData(QuartzJobWrapper.TIMEOUT_KEY, timeout.getMillis());
+        return (SelfType) this;
+    }
+
+    /**
+     * Reports an SLA violation if a fire of the job starts later than the given duration after its
+     * scheduled time.
+     */
+    @SuppressWarnings("unchecked")
+    public final SelfType maxStartLag(final Duration maxStartLag)
+    {
+        setJobData(JobSla.MAX_START_LAG_KEY, maxStartLag.getMillis());
+        return (SelfType) this;
+    }
+
+    /**
+     * Reports an SLA violation if an execution of the job runs longer than the given duration. Unlike
+     * {@link #timeout(Duration)}, the execution is not cancelled.
+     */
+    @SuppressWarnings("unchecked")
+    public final SelfType maxRuntime(final Duration maxRuntime)
+    {
+        setJobData(JobSla.MAX_RUNTIME_KEY, maxRuntime.getMillis());
+        return (SelfType) this;
+    }
+
+    /**
+     * Reports an SLA violation if the job had no successful execution for longer than the given duration.
+     */
+    @SuppressWarnings("unchecked")
+    public final SelfType maxSuccessGap(final Duration maxSuccessGap)
+    {
+        setJobData(JobSla.MAX_SUCCESS_GAP_KEY, maxSuccessGap.getMillis());
+        return (SelfType) this;
+    }
+
+    /**
+     * If true, cancelling the job also interrupts the thread that runs it. Only use this for jobs
+     * that handle interrupts cleanly.
+     */
+    @SuppressWarnings("unchecked")
+    public final SelfType interruptThread(final boolean interruptThread)
+    {
+        setJobData(QuartzJobWrapper.INTERRUPT_THREAD_KEY, interruptThread);
+        return (SelfType) this;
+    }
+
+    /**
+     * Sets the jitter unless the job has its own, and the id of the node.
+     */
+    void defaultJitter(final Duration defaultJitter, final String nodeId)
+    {
+        if (this.jitter == null) {
+            this.jitter = defaultJitter;
+        }
+        this.nodeId = nodeId;
+    }
+
+    /**
+     * Pins the time from which the delay and the first cron fire time are computed, so that a
+     * trigger built later still fires at the same time.
+     */
+    void anchor(final long anchorTime)
+    {
+        this.anchorTime = anchorTime;
+    }
+
     /**
      * Sets a name for the job.
      */
@@ -197,27 +353,87 @@ abstract class QuartzJob<SelfType extends QuartzJob<SelfType>>
         return cronExpression;
     }
 
+    protected Duration getJitter()
+    {
+        return jitter;
+    }
+
+    protected Integer getPriority()
+    {
+        return priority;
+    }
+
+    protected MisfirePolicy getMisfirePolicy()
+    {
+        return misfirePolicy;
+    }
+
     protected Class<? extends Job> getJobClass()
     {
         return jobClass;
     }
 
+    /**
+     * Returns the offset by which the fire times of this job are moved.
+     */
+    long getFireOffset()
+    {
+        return jitter == null ? 0L : FireSmoothing.getOffset(name, nodeId, jitter.getMillis());
+    }
+
+    /**
+     * Returns the number of milliseconds from now until the job is first due.
+     */
+    long getFirstFireDelay()
+    {
+        final long now = System.currentTimeMillis();
+        final long startTime = Objects.firstNonNull(anchorTime, now);
+
+        if (cronExpression != null) {
+            try {
+                final CronExpression expression = new CronExpression(cronExpression);
+                expression.setTimeZone(FireSmoothing.shift(TimeZone.getDefault(), getFireOffset()));
+                // Same as CronTrigger#computeFirstFireTime, which includes the start time itself.
+                final Date nextFireTime = expression.getNextValidTimeAfter(new Date(startTime - 1000L));
+                return nextFireTime == null ? Long.MAX_VALUE : Math.max(0L, nextFireTime.getTime() - now);
+            }
+            catch (ParseException pe) {
+                // Scheduling will fail with a better message.
+                return 0L;
+            }
+        }
+        return Math.max(0L, startTime + (delay == null ? 0L : delay.getMillis()) + getFireOffset() - now);
+    }
+
     protected Trigger getTrigger()
     {
         final TriggerBuilder<Trigger> triggerBuilder = TriggerBuilder
             .newTrigger()
             .withIdentity(name, group);
 
+        if (priority != null) {
+            triggerBuilder.withPriority(priority);
+        }
+
+        final long fireOffset = getFireOffset();
+        final MisfirePolicy policy = Objects.firstNonNull(misfirePolicy, MisfirePolicy.SMART);
+
         // If we have a cronExpression, it overrules delay and repeat.
         if (cronExpression != null) {
-            triggerBuilder.withSchedule(CronScheduleBuilder.cronSchedule(cronExpression));
+            if (anchorTime != null) {
+                triggerBuilder.startAt(new Date(anchorTime));
+            }
+            triggerBuilder.withSchedule(policy.applyTo(CronScheduleBuilder.cronSchedule(cronExpression).inTimeZone(FireSmoothing.shift(TimeZone.getDefault(), fireOffset))));
         }
         else {
-            if (delay != null) {
-                triggerBuilder.startAt(new DateTime().plus(delay).toDate());
+            if (delay != null || fireOffset > 0L || anchorTime != null) {
+                triggerBuilder.startAt(new DateTime(Objects.firstNonNull(anchorTime, System.currentTimeMillis())).plus(delay).plus(fireOffset).toDate());
             }
             if (repeat != null) {
-                triggerBuilder.withSchedule(SimpleScheduleBuilder.simpleSchedule().withIntervalInMilliseconds(repeat.getMillis()).repeatForever());
+                triggerBuilder.withSchedule(policy.applyTo(SimpleScheduleBuilder.simpleSchedule().withIntervalInMilliseconds(repeat.getMillis()).repeatForever(), true));
+            }
+            else if (misfirePolicy != null) {
+                triggerBuilder.withSchedule(policy.applyTo(SimpleScheduleBuilder.simpleSchedule(), false));
             }
         }
 
@@ -241,34 +457,36 @@ abstract class QuartzJob<SelfType extends QuartzJob<SelfType>>
 
     public abstract void submit(final Scheduler scheduler) throws SchedulerException;
 
-    @SuppressWarnings("PMD.UseStringBufferForStringAppends")
     public void submitConditional(final Scheduler scheduler, @Named(NESS_JOB_NAME) final Configuration nessJobConfiguration)
         throws SchedulerException
     {
-        String conditionalKey = null;
-        final boolean enableJob;
-
-        if (enabled != null) {
-            enableJob = enabled;
-        }
-        else {
-            if (conditional == null) {
-                enableJob = true;
-                LOG.warn("Neither enable nor conditional was set for %s, enabling unconditionally!", name);
-            }
-            else {
-                conditionalKey = StringUtils.removeStart(conditional, NESS_JOB_NAME + ".");
-                conditionalKey = StringUtils.endsWith(conditionalKey, ".enabled") ? conditionalKey : conditionalKey + ".enabled";
-                enableJob = nessJobConfiguration.getBoolean(conditionalKey, false);
-            }
+        if (enabled == null && conditional == null) {
+            LOG.warn("Neither enable nor conditional was set for %s, enabling unconditionally!", name);
         }
 
-        if (enableJob) {
+        if (isEnabled(nessJobConfiguration)) {
             submit(scheduler);
         }
         else {
+            LOG.info("Job '%s is not scheduled (enabled: %s / conditional: %s)", name, enabled == null ? "<unset>" : enabled.toString(), conditional == null ? "<unset>" : getConditionalKey());
             scheduler.addJob(getJobDetail(), false);
-            LOG.info("Job '%s is not scheduled (enabled: %s / conditional: %s)", name, enabled == null ? "<unset>" : enabled.toString(), conditional == null ? "<unset>" : conditionalKey);
         }
     }
+
+    /**
+     * Returns true if the job should be scheduled. Does not log, so it may be asked more than once per job.
+     */
+    boolean isEnabled(@Named(NESS_JOB_NAME) final Configuration nessJobConfiguration)
+    {
+        if (enabled != null) {
+            return enabled;
+        }
+        return conditional == null || nessJobConfiguration.getBoolean(getConditionalKey(), false);
+    }
+
+    private String getConditionalKey()
+    {
+        final String conditionalKey = StringUtils.removeStart(conditional, NESS_JOB_NAME + ".");
+        return StringUtils.endsWith(conditionalKey, ".enabled") ? conditionalKey : conditionalKey + ".enabled";
+    }
 }
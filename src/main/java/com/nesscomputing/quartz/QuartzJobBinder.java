@@ -28,6 +28,9 @@ import com.google.inject.multibindings.Multibinder;
 
 public class QuartzJobBinder extends QuartzJob<QuartzJobBinder>
 {
+    /** Marks jobs that are registered from the Guice bindings on every start. */
+    static final String BOUND_JOB_KEY = "ness.quartz.bound";
+
     public static QuartzJobBinder bindQuartzJob(final Binder binder, final Class<? extends Job> jobClass)
     {
         return new QuartzJobBinder(binder, jobClass);
@@ -39,6 +42,7 @@ public class QuartzJobBinder extends QuartzJob<QuartzJobBinder>
     {
         super(jobClass);
         this.binder = binder;
+        setJobData(BOUND_JOB_KEY, Boolean.TRUE);
     }
 
     public void register()
@@ -73,6 +77,15 @@ public class QuartzJobBinder extends QuartzJob<QuartzJobBinder>
         if (getCronExpression() != null) {
             sb.append(format(", cronExpression=%s", getCronExpression()));
         }
+        if (getJitter() != null) {
+            sb.append(format(", jitter=%s", printDuration(getJitter())));
+        }
+        if (getPriority() != null) {
+            sb.append(format(", priority=%d", getPriority()));
+        }
+        if (getMisfirePolicy() != null) {
+            sb.append(format(", misfirePolicy=%s", getMisfirePolicy()));
+        }
         return sb.toString();
     }
 
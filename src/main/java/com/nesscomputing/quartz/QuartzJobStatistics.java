@@ -15,28 +15,141 @@
  */
 package com.nesscomputing.quartz;
 
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.StringUtils;
 import org.quartz.JobKey;
 
-import com.yammer.metrics.core.MetricName;
-import com.yammer.metrics.core.MetricsRegistry;
-import com.yammer.metrics.core.Timer;
 
 public class QuartzJobStatistics
 {
-    private final Timer runtime;
+    private final QuartzMetrics.Timer runtime;
+    private final QuartzMetrics.Meter deferrals;
+    private final QuartzMetrics.Meter timeouts;
+    private final QuartzMetrics.Timer cpuTime;
+    private final QuartzMetrics.Histogram allocations;
+    private final QuartzMetrics quartzMetrics;
+    private final String keyName;
+    private final String jobClassName;
+    private final boolean bound;
 
-    QuartzJobStatistics(final MetricsRegistry metricsRegistry, final JobKey jobKey)
+    /** Only parallel jobs have chunks, so the timer is created with the first chunk. */
+    private volatile QuartzMetrics.Timer chunkRuntime = null;
+
+    private final AtomicLong totalCpuNanos = new AtomicLong();
+    private final AtomicLong totalAllocatedBytes = new AtomicLong();
+
+    QuartzJobStatistics(final QuartzMetrics quartzMetrics, final JobKey jobKey)
+    {
+        this(quartzMetrics, jobKey, null, false);
+    }
+
+    /**
+     * @param bound true for jobs that are bound in Guice, false for jobs that are added at runtime.
+     */
+    QuartzJobStatistics(final QuartzMetrics quartzMetrics, final JobKey jobKey, final String jobClassName, final boolean bound)
     {
-        final String keyName = jobKey.getName() + (StringUtils.isBlank(jobKey.getGroup()) || JobKey.DEFAULT_GROUP.equals(jobKey.getGroup()) ? "" : "-" + jobKey.getGroup());
+        this.quartzMetrics = quartzMetrics;
+        this.keyName = getKeyName(jobKey);
+        this.jobClassName = jobClassName;
+        this.bound = bound;
 
-        this.runtime = metricsRegistry.newTimer(new MetricName("ness.quartz.job", "statistics", keyName), TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+        this.runtime = quartzMetrics.timer("ness.quartz.job", "statistics", keyName);
+        this.deferrals = quartzMetrics.meter("ness.quartz.job", "deferrals", keyName);
+        this.timeouts = quartzMetrics.meter("ness.quartz.job", "timeouts", keyName);
+        this.cpuTime = quartzMetrics.timer("ness.quartz.job", "cpu", keyName);
+        this.allocations = quartzMetrics.histogram("ness.quartz.job", "allocations", keyName);
     }
 
     void registerRuntime(final long nanos)
     {
-        runtime.update(nanos, TimeUnit.NANOSECONDS);
+        runtime.update(nanos);
+    }
+
+    void registerChunkRuntime(final long nanos)
+    {
+        QuartzMetrics.Timer timer = chunkRuntime;
+        if (timer == null) {
+            // Metrics implementations return the existing timer for the same name.
+            timer = quartzMetrics.timer("ness.quartz.job", "chunks", keyName);
+            chunkRuntime = timer;
+        }
+        timer.update(nanos);
+    }
+
+    /**
+     * Records the CPU time and allocated bytes of the worker thread during one execution. Negative values
+     * are not available on this JVM and are skipped.
+     */
+    void registerResources(final long cpuNanos, final long allocatedBytes)
+    {
+        if (cpuNanos >= 0L) {
+            cpuTime.update(cpuNanos);
+            totalCpuNanos.addAndGet(cpuNanos);
+        }
+        if (allocatedBytes >= 0L) {
+            allocations.update(allocatedBytes);
+            totalAllocatedBytes.addAndGet(allocatedBytes);
+        }
+    }
+
+    void registerDeferral()
+    {
+        deferrals.mark();
+    }
+
+    void registerTimeout()
+    {
+        timeouts.mark();
+    }
+
+    QuartzMetrics.Timer getRuntime()
+    {
+        return runtime;
+    }
+
+    QuartzMetrics.Meter getDeferrals()
+    {
+        return deferrals;
+    }
+
+    QuartzMetrics.Meter getTimeouts()
+    {
+        return timeouts;
+    }
+
+    QuartzMetrics.Timer getCpuTime()
+    {
+        return cpuTime;
+    }
+
+    QuartzMetrics.Histogram getAllocations()
+    {
+        return allocations;
+    }
+
+    String getJobClassName()
+    {
+        return jobClassName;
+    }
+
+    boolean isBound()
+    {
+        return bound;
+    }
+
+    long getTotalCpuNanos()
+    {
+        return totalCpuNanos.get();
+    }
+
+    long getTotalAllocatedBytes()
+    {
+        return totalAllocatedBytes.get();
+    }
+
+    static String getKeyName(final JobKey jobKey)
+    {
+        return jobKey.getName() + (StringUtils.isBlank(jobKey.getGroup()) || JobKey.DEFAULT_GROUP.equals(jobKey.getGroup()) ? "" : "-" + jobKey.getGroup());
     }
 }
@@ -17,51 +17,302 @@ package com.nesscomputing.quartz;
 
 import static java.lang.String.format;
 
+import java.util.Date;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import org.quartz.InterruptableJob;
 import org.quartz.Job;
+import org.quartz.JobDataMap;
 import org.quartz.JobExecutionContext;
 import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.ObjectAlreadyExistsException;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerKey;
 import org.quartz.UnableToInterruptJobException;
 
 import com.google.common.base.Preconditions;
+import com.nesscomputing.logging.Log;
 
 public class QuartzJobWrapper implements InterruptableJob
 {
+    private static final Log LOG = Log.findLog();
+
+    static final String DEFERRED_TRIGGER_PREFIX = "ness-deferred-";
+    static final String DEFERRED_KEY = "ness.quartz.deferred";
+    static final String TIMEOUT_KEY = "ness.quartz.timeout";
+    static final String INTERRUPT_THREAD_KEY = "ness.quartz.interrupt-thread";
+    static final String TRACE_CONTEXT_KEY = "ness.quartz.trace-context";
+
+    private static final ThreadLocal<String> CURRENT_TRACE_CONTEXT = new ThreadLocal<String>();
+
     private final Job wrappedJob;
     private final QuartzJobStatistics stats;
+    private final ExecutionHistory executionHistory;
+    private final RunningJobsIndex runningJobsIndex;
+    private final JobTracer jobTracer;
+    private final SlowExecutionProfiler slowExecutionProfiler;
+    private final JobFlightRecorder jobFlightRecorder;
+    private final RateLimit.Buckets rateLimits;
+    private final ScheduledExecutorService timeoutExecutor;
+    private final CancellationToken cancellationToken = new CancellationToken();
 
-    QuartzJobWrapper(@Nonnull final Job wrappedJob, @Nonnull final QuartzJobStatistics stats)
+    private Thread executingThread = null;
+    private boolean interruptThread = false;
+    private JobKey jobKey = null;
+
+    QuartzJobWrapper(@Nonnull final Job wrappedJob,
+                     @Nullable final QuartzJobStatistics stats,
+                     @Nullable final ExecutionHistory executionHistory,
+                     @Nullable final RunningJobsIndex runningJobsIndex,
+                     @Nonnull final JobTracer jobTracer,
+                     @Nullable final SlowExecutionProfiler slowExecutionProfiler,
+                     @Nullable final JobFlightRecorder jobFlightRecorder,
+                     @Nonnull final RateLimit.Buckets rateLimits,
+                     @Nonnull final ScheduledExecutorService timeoutExecutor)
     {
         Preconditions.checkNotNull(wrappedJob);
-        Preconditions.checkNotNull(stats);
+        Preconditions.checkNotNull(jobTracer);
+        Preconditions.checkNotNull(rateLimits);
+        Preconditions.checkNotNull(timeoutExecutor);
         this.wrappedJob = wrappedJob;
         this.stats = stats;
+        this.executionHistory = executionHistory;
+        this.runningJobsIndex = runningJobsIndex;
+        this.jobTracer = jobTracer;
+        this.slowExecutionProfiler = slowExecutionProfiler;
+        this.jobFlightRecorder = jobFlightRecorder;
+        this.rateLimits = rateLimits;
+        this.timeoutExecutor = timeoutExecutor;
+    }
+
+    /**
+     * Returns the trace context of the job that executes on the current thread, so ad-hoc jobs
+     * submitted from it continue its trace.
+     */
+    @Nullable
+    static String currentTraceContext()
+    {
+        return CURRENT_TRACE_CONTEXT.get();
     }
 
     @Override
     public void execute(final JobExecutionContext context) throws JobExecutionException
     {
+        final JobDataMap jobDataMap = context.getJobDetail().getJobDataMap();
+        final long lag = context.getScheduledFireTime() == null ? 0L : context.getFireTime().getTime() - context.getScheduledFireTime().getTime();
+        final JobTracer.Span span = jobTracer.startSpan(context.getJobDetail().getKey(), context.getTrigger().getKey(), jobDataMap.getString(TRACE_CONTEXT_KEY), lag);
+        final Object flightEvent = jobFlightRecorder == null ? null : jobFlightRecorder.beginExecution();
+
+        final long waitNanos = rateLimits.acquire(context.getJobDetail().getKey(), jobDataMap);
+        if (waitNanos > 0L) {
+            defer(context, waitNanos);
+            record(context, 0L, ExecutionHistory.Outcome.DEFERRED, null);
+            span.end(ExecutionHistory.Outcome.DEFERRED, null);
+            commitFlightEvent(flightEvent, context, ExecutionHistory.Outcome.DEFERRED);
+            return;
+        }
+
+        context.put(CancellationToken.CONTEXT_KEY, cancellationToken);
+
+        synchronized (this) {
+            executingThread = Thread.currentThread();
+            interruptThread = jobDataMap.containsKey(INTERRUPT_THREAD_KEY) && jobDataMap.getBoolean(INTERRUPT_THREAD_KEY);
+            jobKey = context.getJobDetail().getKey();
+        }
+
+        final ScheduledFuture<?> timeout = scheduleTimeout(jobDataMap);
+        final SlowExecutionProfiler.Sampler sampler = slowExecutionProfiler == null ? null : slowExecutionProfiler.watch(jobKey, Thread.currentThread());
         final long startTime = System.nanoTime();
+        final long startCpuNanos = ThreadResources.getCpuNanos();
+        final long startAllocatedBytes = ThreadResources.getAllocatedBytes();
+        Throwable error = null;
+
+        if (runningJobsIndex != null) {
+            runningJobsIndex.started(jobKey, lag);
+        }
+
+        final String parentTraceContext = CURRENT_TRACE_CONTEXT.get();
+        CURRENT_TRACE_CONTEXT.set(span.getContext());
 
         try {
             wrappedJob.execute(context);
         }
+        catch (JobExecutionException jee) {
+            error = jee;
+            throw jee;
+        }
+        catch (RuntimeException re) {
+            error = re;
+            throw re;
+        }
+        catch (Error e) {
+            error = e;
+            throw e;
+        }
         finally {
             final long runtime = System.nanoTime() - startTime;
-            stats.registerRuntime(runtime);
+
+            // Release the worker thread first, the hooks below may throw.
+            if (sampler != null) {
+                sampler.stop();
+            }
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            // No interrupt may reach the worker thread once the job is done.
+            synchronized (this) {
+                executingThread = null;
+            }
+            if (interruptThread) {
+                Thread.interrupted();
+            }
+            CURRENT_TRACE_CONTEXT.set(parentTraceContext);
+
+            if (runningJobsIndex != null) {
+                runningJobsIndex.finished(jobKey, TimeUnit.NANOSECONDS.toMillis(runtime));
+            }
+            if (stats != null) {
+                stats.registerRuntime(runtime);
+                stats.registerResources(ThreadResources.delta(startCpuNanos, ThreadResources.getCpuNanos()),
+                                        ThreadResources.delta(startAllocatedBytes, ThreadResources.getAllocatedBytes()));
+            }
+            final ExecutionHistory.Outcome outcome = getOutcome(error);
+            record(context, TimeUnit.NANOSECONDS.toMillis(runtime), outcome, error);
+            span.end(outcome, error);
+            commitFlightEvent(flightEvent, context, outcome);
+        }
+    }
+
+    private ExecutionHistory.Outcome getOutcome(final Throwable error)
+    {
+        if (cancellationToken.getReason() == CancellationToken.Reason.TIMED_OUT) {
+            return ExecutionHistory.Outcome.TIMED_OUT;
+        }
+        if (cancellationToken.isCancelled()) {
+            return ExecutionHistory.Outcome.CANCELLED;
+        }
+        return error == null ? ExecutionHistory.Outcome.SUCCESS : ExecutionHistory.Outcome.FAILED;
+    }
+
+    private void record(final JobExecutionContext context, final long durationMillis, final ExecutionHistory.Outcome outcome, final Throwable error)
+    {
+        if (executionHistory != null) {
+            executionHistory.record(context.getJobDetail().getKey(), context.getScheduledFireTime(), context.getFireTime(), durationMillis, outcome, error);
+        }
+    }
+
+    private void commitFlightEvent(final Object flightEvent, final JobExecutionContext context, final ExecutionHistory.Outcome outcome)
+    {
+        if (flightEvent != null) {
+            jobFlightRecorder.commitExecution(flightEvent, context.getJobDetail().getKey(), context.getTrigger().getKey(), context.getScheduledFireTime(), context.getFireTime(), outcome);
         }
     }
 
+    private ScheduledFuture<?> scheduleTimeout(final JobDataMap jobDataMap)
+    {
+        if (!jobDataMap.containsKey(TIMEOUT_KEY)) {
+            return null;
+        }
+
+        return timeoutExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                LOG.warn("Job %s exceeded its timeout of %dms, cancelling", jobKey, jobDataMap.getLong(TIMEOUT_KEY));
+                if (stats != null) {
+                    stats.registerTimeout();
+                }
+                cancel(CancellationToken.Reason.TIMED_OUT);
+            }
+        }, jobDataMap.getLong(TIMEOUT_KEY), TimeUnit.MILLISECONDS);
+    }
+
     @Override
     public void interrupt() throws UnableToInterruptJobException
     {
-        if (!(wrappedJob instanceof InterruptableJob)) {
-            throw new UnableToInterruptJobException(format("Job '%s' is not interruptable!", wrappedJob.getClass().getSimpleName()));
+        cancel(CancellationToken.Reason.INTERRUPTED);
+    }
+
+    /**
+     * Forwards a drain request to jobs that implement {@link DrainAware}.
+     */
+    void drain()
+    {
+        if (wrappedJob instanceof DrainAware) {
+            ((DrainAware) wrappedJob).drain();
+        }
+    }
+
+    private void cancel(final CancellationToken.Reason reason)
+    {
+        cancellationToken.cancel(reason);
+
+        if (wrappedJob instanceof InterruptableJob) {
+            try {
+                ((InterruptableJob) wrappedJob).interrupt();
+            }
+            catch (UnableToInterruptJobException utije) {
+                LOG.warn(utije, "While interrupting job %s", jobKey);
+            }
+        }
+
+        synchronized (this) {
+            if (interruptThread && executingThread != null) {
+                executingThread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Moves a fire over the rate limit to a one-shot trigger instead of blocking the worker thread.
+     * There is at most one deferred trigger per job, further fires while it is pending are coalesced
+     * into it.
+     */
+    private void defer(final JobExecutionContext context, final long waitNanos) throws JobExecutionException
+    {
+        final JobKey jobKey = context.getJobDetail().getKey();
+        final TriggerKey deferredKey = new TriggerKey(DEFERRED_TRIGGER_PREFIX + jobKey.getName(), jobKey.getGroup());
+        final Trigger deferredTrigger = TriggerBuilder.newTrigger()
+            .withIdentity(deferredKey)
+            .forJob(jobKey)
+            .usingJobData(context.getTrigger().getJobDataMap())
+            .withPriority(context.getTrigger().getPriority())
+            .startAt(new Date(System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1L))
+            .build();
+
+        context.put(DEFERRED_KEY, Boolean.TRUE);
+        if (stats != null) {
+            stats.registerDeferral();
+        }
+
+        try {
+            final Scheduler scheduler = context.getScheduler();
+            if (deferredKey.equals(context.getTrigger().getKey())) {
+                scheduler.rescheduleJob(deferredKey, deferredTrigger);
+            }
+            else if (!scheduler.checkExists(deferredKey)) {
+                scheduler.scheduleJob(deferredTrigger);
+            }
+            else {
+                LOG.debug("Job %s is over its rate limit and already deferred, skipping fire", jobKey);
+                return;
+            }
+            LOG.debug("Job %s is over its rate limit, deferred until %s", jobKey, deferredTrigger.getStartTime());
+        }
+        catch (ObjectAlreadyExistsException oaee) {
+            LOG.debug("Job %s is over its rate limit and already deferred, skipping fire", jobKey);
         }
-        else {
-            ((InterruptableJob) wrappedJob).interrupt();
+        catch (SchedulerException se) {
+            throw new JobExecutionException(format("Could not defer job %s", jobKey), se);
         }
     }
 }
@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+/**
+ * The metrics registry the scheduler records into. Metrics are named like yammer metrics, by group,
+ * type and name, and asking twice for the same name returns the same metric.
+ *
+ * Bind an implementation in Guice to use a registry of your choice. Without one, a bound yammer
+ * <tt>MetricsRegistry</tt> is used through {@link YammerQuartzMetrics}, otherwise the built-in
+ * {@link LockFreeQuartzMetrics}.
+ */
+public interface QuartzMetrics
+{
+    Timer timer(String group, String type, String name);
+
+    Meter meter(String group, String type, String name);
+
+    Histogram histogram(String group, String type, String name);
+
+    interface Timer
+    {
+        void update(long nanos);
+
+        long getCount();
+
+        double getSumMillis();
+
+        /**
+         * Returns the given quantile (between 0 and 1) of the recorded durations in milliseconds.
+         */
+        double getQuantileMillis(double quantile);
+    }
+
+    interface Meter
+    {
+        void mark();
+
+        long getCount();
+    }
+
+    interface Histogram
+    {
+        void update(long value);
+
+        long getCount();
+
+        double getQuantile(double quantile);
+    }
+}
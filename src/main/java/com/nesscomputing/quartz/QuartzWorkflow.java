@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.joda.time.Duration;
+import org.quartz.Job;
+import org.quartz.JobListener;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.impl.matchers.EverythingMatcher;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * A graph of ad-hoc jobs. A stage fires as soon as all stages it depends on have finished, stages that
+ * do not depend on each other run concurrently.
+ *
+ * <pre>
+ * QuartzWorkflow.newWorkflow("pipeline")
+ *     .stage("extract", ExtractJob.class)
+ *     .stage("left", LeftJob.class, "extract")
+ *     .stage("right", RightJob.class, "extract")
+ *     .stage("load", LoadJob.class, "left", "right")
+ *     .submit(scheduler);
+ * </pre>
+ *
+ * The state of a running workflow is kept in memory, it does not survive a restart of the scheduler.
+ * If a stage fails, no further stages are started.
+ */
+public final class QuartzWorkflow
+{
+    private final String name;
+    private final Map<String, AdHocQuartzJob> stages = Maps.newLinkedHashMap();
+    private final Map<String, Set<String>> dependencies = Maps.newHashMap();
+
+    public static QuartzWorkflow newWorkflow(final String name)
+    {
+        return new QuartzWorkflow(name);
+    }
+
+    private QuartzWorkflow(final String name)
+    {
+        Preconditions.checkArgument(name != null, "name must not be null!");
+        this.name = name;
+    }
+
+    public QuartzWorkflow stage(final String stageName, final Class<? extends Job> jobClass, final String... dependsOn)
+    {
+        return stage(stageName, AdHocQuartzJob.forClass(jobClass), dependsOn);
+    }
+
+    /**
+     * Adds a stage. All stages it depends on must have been added before, so the graph can not contain
+     * cycles. Name and group of the job are set by the workflow.
+     */
+    public QuartzWorkflow stage(final String stageName, final AdHocQuartzJob job, final String... dependsOn)
+    {
+        Preconditions.checkArgument(stageName != null, "stage name must not be null!");
+        Preconditions.checkArgument(!stages.containsKey(stageName), "Stage %s already exists!", stageName);
+        for (final String dependency : dependsOn) {
+            Preconditions.checkArgument(stages.containsKey(dependency), "Stage %s depends on unknown stage %s!", stageName, dependency);
+        }
+
+        stages.put(stageName, job);
+        dependencies.put(stageName, ImmutableSet.copyOf(dependsOn));
+        return this;
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Returns the stages in the order they were added, which is a topological order.
+     */
+    Map<String, AdHocQuartzJob> getStages()
+    {
+        return Collections.unmodifiableMap(stages);
+    }
+
+    Set<String> getDependencies(final String stageName)
+    {
+        return dependencies.get(stageName);
+    }
+
+    /**
+     * Starts a run of the workflow. The returned future completes when the last stage has finished or
+     * when a failed stage ended the run.
+     */
+    public ListenableFuture<Result> submit(final Scheduler scheduler) throws SchedulerException
+    {
+        Preconditions.checkState(!stages.isEmpty(), "Workflow %s has no stages!", name);
+
+        WorkflowListener listener = null;
+        synchronized (QuartzWorkflow.class) {
+            final JobListener jobListener = scheduler.getListenerManager().getJobListener(WorkflowListener.NAME);
+            if (jobListener instanceof WorkflowListener) {
+                listener = (WorkflowListener) jobListener;
+            }
+            else {
+                listener = new WorkflowListener(null);
+                scheduler.getListenerManager().addJobListener(listener, EverythingMatcher.allJobs());
+            }
+        }
+
+        final WorkflowListener.Run run = listener.register(this, UUID.randomUUID().toString());
+        try {
+            for (final AdHocQuartzJob job : run.start()) {
+                job.submit(scheduler);
+            }
+        }
+        catch (SchedulerException se) {
+            run.abort(se);
+            throw se;
+        }
+        return run.getResult();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "workflow(" + name + "): stages=" + dependencies;
+    }
+
+    /**
+     * Outcome and timing of a workflow run.
+     */
+    public static final class Result
+    {
+        private final String name;
+        private final boolean successful;
+        private final Duration makespan;
+        private final List<String> criticalPath;
+        private final Duration criticalPathTime;
+        private final Map<String, Duration> stageRuntimes;
+
+        Result(final String name, final boolean successful, final Duration makespan, final List<String> criticalPath, final Duration criticalPathTime, final Map<String, Duration> stageRuntimes)
+        {
+            this.name = name;
+            this.successful = successful;
+            this.makespan = makespan;
+            this.criticalPath = ImmutableList.copyOf(criticalPath);
+            this.criticalPathTime = criticalPathTime;
+            this.stageRuntimes = ImmutableMap.copyOf(stageRuntimes);
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public boolean isSuccessful()
+        {
+            return successful;
+        }
+
+        /**
+         * Time from submitting the workflow until the last stage finished.
+         */
+        public Duration getMakespan()
+        {
+            return makespan;
+        }
+
+        /**
+         * The chain of dependent stages with the longest total runtime.
+         */
+        public List<String> getCriticalPath()
+        {
+            return criticalPath;
+        }
+
+        public Duration getCriticalPathTime()
+        {
+            return criticalPathTime;
+        }
+
+        public Map<String, Duration> getStageRuntimes()
+        {
+            return stageRuntimes;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "workflow(" + name + "): successful=" + successful + ", makespan=" + makespan.getMillis() + "ms, critical path=" + criticalPath + " (" + criticalPathTime.getMillis() + "ms)";
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import static java.lang.String.format;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.Duration;
+import org.quartz.JobDataMap;
+import org.quartz.JobKey;
+import org.skife.config.TimeSpan;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+/**
+ * A rate limit of a number of permits per period, e.g. "10/1m". Jobs carry their limits as strings in
+ * the job data, so they survive persistent job stores.
+ */
+final class RateLimit
+{
+    static final String JOB_KEY = "ness.quartz.rate-limit";
+    static final String GROUP_KEY = "ness.quartz.group-rate-limit";
+
+    private final int permits;
+    private final Duration period;
+
+    RateLimit(final int permits, final Duration period)
+    {
+        Preconditions.checkArgument(permits > 0, "permits must be positive, but is %s", permits);
+        Preconditions.checkArgument(period != null && period.getMillis() > 0L, "period must be positive, but is %s", period);
+        this.permits = permits;
+        this.period = period;
+    }
+
+    static RateLimit parse(final String value)
+    {
+        final int index = value.indexOf('/');
+        Preconditions.checkArgument(index > 0, "Rate limit '%s' is not of the form <permits>/<period>", value);
+        return new RateLimit(Integer.parseInt(value.substring(0, index).trim()),
+                             new Duration(new TimeSpan(value.substring(index + 1).trim()).getMillis()));
+    }
+
+    int getPermits()
+    {
+        return permits;
+    }
+
+    Duration getPeriod()
+    {
+        return period;
+    }
+
+    @Override
+    public String toString()
+    {
+        return format("%d/%dms", permits, period.getMillis());
+    }
+
+    static boolean isLimited(final JobDataMap jobDataMap)
+    {
+        return jobDataMap.containsKey(JOB_KEY) || jobDataMap.containsKey(GROUP_KEY);
+    }
+
+    /**
+     * The token buckets of one job factory. A bucket that has been idle for a full period is as good
+     * as a new one, so such buckets are dropped once per sweep interval.
+     */
+    static final class Buckets
+    {
+        private static final long SWEEP_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+        private final ConcurrentMap<String, TokenBucket> buckets = Maps.newConcurrentMap();
+        private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+        /**
+         * Takes a permit from the group limit and the job limit of the given job. Returns 0 if the
+         * job may run now, otherwise the number of nanoseconds after which it should try again.
+         */
+        long acquire(final JobKey jobKey, final JobDataMap jobDataMap)
+        {
+            sweep();
+
+            final TokenBucket groupBucket = getBucket("group:" + jobKey.getGroup(), jobDataMap.getString(GROUP_KEY));
+            final TokenBucket jobBucket = getBucket("job:" + jobKey, jobDataMap.getString(JOB_KEY));
+
+            final long groupWait = groupBucket == null ? 0L : groupBucket.tryAcquire();
+            if (groupWait > 0L) {
+                return groupWait;
+            }
+
+            final long jobWait = jobBucket == null ? 0L : jobBucket.tryAcquire();
+            if (jobWait > 0L && groupBucket != null) {
+                groupBucket.release();
+            }
+            return jobWait;
+        }
+
+        int size()
+        {
+            return buckets.size();
+        }
+
+        private TokenBucket getBucket(final String name, final String limit)
+        {
+            if (limit == null) {
+                return null;
+            }
+
+            // A changed limit gets a fresh bucket.
+            final String key = name + "@" + limit;
+            TokenBucket bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new TokenBucket(parse(limit));
+                bucket = Objects.firstNonNull(buckets.putIfAbsent(key, bucket), bucket);
+            }
+            return bucket;
+        }
+
+        private void sweep()
+        {
+            final long now = System.nanoTime();
+            final long last = lastSweep.get();
+            if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+                return;
+            }
+
+            for (final Map.Entry<String, TokenBucket> entry : buckets.entrySet()) {
+                if (entry.getValue().isIdle(now)) {
+                    buckets.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Lock-free token bucket, implemented as a generic cell rate algorithm: a single timestamp holds the
+     * theoretical arrival time of the next permit. A full period worth of permits may be taken in a burst.
+     */
+    static final class TokenBucket
+    {
+        private final long intervalNanos;
+        private final long toleranceNanos;
+        private final long periodNanos;
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+        TokenBucket(final RateLimit rateLimit)
+        {
+            final long periodNanos = TimeUnit.MILLISECONDS.toNanos(rateLimit.getPeriod().getMillis());
+            this.intervalNanos = Math.max(1L, periodNanos / rateLimit.getPermits());
+            this.toleranceNanos = periodNanos - intervalNanos;
+            this.periodNanos = periodNanos;
+        }
+
+        long tryAcquire()
+        {
+            final long now = System.nanoTime();
+            for (;;) {
+                final long arrival = theoreticalArrival.get();
+                final long base = arrival - now > 0L ? arrival : now;
+                final long wait = base - now - toleranceNanos;
+                if (wait > 0L) {
+                    return wait;
+                }
+                if (theoreticalArrival.compareAndSet(arrival, base + intervalNanos)) {
+                    return 0L;
+                }
+            }
+        }
+
+        void release()
+        {
+            theoreticalArrival.addAndGet(-intervalNanos);
+        }
+
+        /**
+         * Returns true if no permit was taken for a full period after the bucket was full again.
+         */
+        boolean isIdle(final long now)
+        {
+            return now - theoreticalArrival.get() >= periodNanos;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import com.google.inject.Inject;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * The {@link QuartzMetrics} the scheduler actually uses: a bound {@link QuartzMetrics}, else a bound
+ * yammer <tt>MetricsRegistry</tt>, else the built-in {@link LockFreeQuartzMetrics}.
+ */
+class ResolvedQuartzMetrics implements QuartzMetrics
+{
+    private QuartzMetrics quartzMetrics = null;
+    private MetricsRegistry metricsRegistry = null;
+
+    private volatile QuartzMetrics delegate = null;
+
+    @Inject
+    ResolvedQuartzMetrics()
+    {
+    }
+
+    @Inject(optional=true)
+    synchronized void injectQuartzMetrics(final QuartzMetrics quartzMetrics)
+    {
+        this.quartzMetrics = quartzMetrics;
+    }
+
+    @Inject(optional=true)
+    synchronized void injectMetricsRegistry(final MetricsRegistry metricsRegistry)
+    {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    @Override
+    public Timer timer(final String group, final String type, final String name)
+    {
+        return getDelegate().timer(group, type, name);
+    }
+
+    @Override
+    public Meter meter(final String group, final String type, final String name)
+    {
+        return getDelegate().meter(group, type, name);
+    }
+
+    @Override
+    public Histogram histogram(final String group, final String type, final String name)
+    {
+        return getDelegate().histogram(group, type, name);
+    }
+
+    private QuartzMetrics getDelegate()
+    {
+        QuartzMetrics result = delegate;
+        if (result == null) {
+            synchronized (this) {
+                if (delegate == null) {
+                    if (quartzMetrics != null) {
+                        delegate = quartzMetrics;
+                    }
+                    else if (metricsRegistry != null) {
+                        delegate = new YammerQuartzMetrics(metricsRegistry);
+                    }
+                    else {
+                        delegate = new LockFreeQuartzMetrics();
+                    }
+                }
+                result = delegate;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.quartz.JobKey;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Number of running executions per job, maintained by the {@link QuartzJobWrapper}. Answers "is this job
+ * running" without asking the scheduler for the list of executing jobs.
+ *
+ * Counters are removed when they drop to zero. A removed counter is marked with -1, so a concurrent
+ * start that still holds it retries with a fresh one.
+ */
+class RunningJobsIndex
+{
+    private final ConcurrentMap<JobKey, AtomicInteger> counts = Maps.newConcurrentMap();
+    private final AtomicInteger totalRunning = new AtomicInteger();
+    private final AtomicLong totalCompleted = new AtomicLong();
+    private final MinuteWindow lags = new MinuteWindow();
+    private final MinuteWindow runtimes = new MinuteWindow();
+
+    /**
+     * Records a start; the lag is the time between the scheduled and the actual fire time.
+     */
+    void started(final JobKey jobKey, final long lagMillis)
+    {
+        totalRunning.incrementAndGet();
+        lags.add(Math.max(0L, lagMillis));
+
+        for (;;) {
+            AtomicInteger count = counts.get(jobKey);
+            if (count == null) {
+                final AtomicInteger newCount = new AtomicInteger(1);
+                count = counts.putIfAbsent(jobKey, newCount);
+                if (count == null) {
+                    return;
+                }
+            }
+
+            final int value = count.get();
+            if (value < 0) {
+                counts.remove(jobKey, count);
+            }
+            else if (count.compareAndSet(value, value + 1)) {
+                return;
+            }
+        }
+    }
+
+    void finished(final JobKey jobKey, final long runtimeMillis)
+    {
+        totalRunning.decrementAndGet();
+        totalCompleted.incrementAndGet();
+        runtimes.add(runtimeMillis);
+
+        final AtomicInteger count = counts.get(jobKey);
+        if (count != null && count.decrementAndGet() == 0 && count.compareAndSet(0, -1)) {
+            counts.remove(jobKey, count);
+        }
+    }
+
+    int getRunningCount(final JobKey jobKey)
+    {
+        final AtomicInteger count = counts.get(jobKey);
+        return count == null ? 0 : Math.max(0, count.get());
+    }
+
+    boolean isRunning(final JobKey jobKey)
+    {
+        return getRunningCount(jobKey) > 0;
+    }
+
+    int getTotalRunning()
+    {
+        return totalRunning.get();
+    }
+
+    long getTotalCompleted()
+    {
+        return totalCompleted.get();
+    }
+
+    long getCompletedLastMinute()
+    {
+        return runtimes.getCount();
+    }
+
+    long getAverageRuntimeLastMinute()
+    {
+        final long count = runtimes.getCount();
+        return count == 0L ? 0L : runtimes.getSum() / count;
+    }
+
+    long getAverageLagLastMinute()
+    {
+        final long count = lags.getCount();
+        return count == 0L ? 0L : lags.getSum() / count;
+    }
+
+    long getMaxLagLastMinute()
+    {
+        return lags.getMax();
+    }
+}
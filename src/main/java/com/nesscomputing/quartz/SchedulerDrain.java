@@ -0,0 +1,91 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.List;
+
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.UnableToInterruptJobException;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Lets running jobs finish before a shutdown: stops firing triggers, tells the running jobs, waits up to
+ * a deadline and interrupts the jobs that are still running.
+ */
+final class SchedulerDrain
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final long POLL_INTERVAL = 50L;
+
+    private SchedulerDrain()
+    {
+    }
+
+    /**
+     * Drains the scheduler. Logs the number of jobs that finished in time and the number of jobs that
+     * were interrupted.
+     */
+    static void drain(final Scheduler scheduler, final long timeoutMillis) throws SchedulerException
+    {
+        scheduler.standby();
+
+        final List<JobExecutionContext> running = scheduler.getCurrentlyExecutingJobs();
+        LOG.info("Draining %d running jobs, deadline is %dms", running.size(), timeoutMillis);
+
+        for (final JobExecutionContext context : running) {
+            final Job job = context.getJobInstance();
+            if (job instanceof QuartzJobWrapper) {
+                ((QuartzJobWrapper) job).drain();
+            }
+            else if (job instanceof DrainAware) {
+                ((DrainAware) job).drain();
+            }
+        }
+
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        List<JobExecutionContext> remaining = scheduler.getCurrentlyExecutingJobs();
+        while (!remaining.isEmpty() && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            remaining = scheduler.getCurrentlyExecutingJobs();
+        }
+
+        int interrupted = 0;
+        for (final JobExecutionContext context : remaining) {
+            try {
+                LOG.warn("Job %s did not finish before the drain deadline, interrupting", context.getJobDetail().getKey());
+                scheduler.interrupt(context.getFireInstanceId());
+                interrupted++;
+            }
+            catch (UnableToInterruptJobException utije) {
+                LOG.warn(utije, "Could not interrupt job %s", context.getJobDetail().getKey());
+            }
+        }
+
+        final int drained = running.size() - remaining.size();
+        LOG.info("Drained %d jobs, interrupted %d jobs", drained, interrupted);
+    }
+}
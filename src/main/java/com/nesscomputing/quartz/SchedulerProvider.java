@@ -16,11 +16,14 @@
 package com.nesscomputing.quartz;
 
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.configuration.Configuration;
+import org.joda.time.Duration;
 import org.quartz.Scheduler;
 import org.quartz.SchedulerException;
 import org.quartz.SchedulerFactory;
+import org.quartz.impl.matchers.EverythingMatcher;
 import org.quartz.spi.JobFactory;
 
 import com.google.inject.Inject;
@@ -39,23 +42,64 @@ public class SchedulerProvider extends AbstractLifecycleProvider<Scheduler> impl
     private final SchedulerFactory schedulerFactory;
     private final JobFactory jobFactory;
     private final Configuration nessJobConfig;
+    private final NessQuartzConfig nessQuartzConfig;
+    private final MisfireStormGuard misfireStormGuard;
+    private final JobFlightRecorder jobFlightRecorder;
+    private final SlaWatchdog slaWatchdog;
+    private final QuartzHealthCheck quartzHealthCheck;
 
     private Set<QuartzJobBinder> jobs = null;
+    private LazyScheduler lazyScheduler = null;
+    private QuartzMetrics quartzMetrics = null;
+    private volatile boolean started = false;
+
+    /**
+     * Creates a provider without the injected helpers, e.g. for code that does not use {@link NessQuartzModule}.
+     */
+    public SchedulerProvider(final SchedulerFactory schedulerFactory,
+                             final JobFactory jobFactory,
+                             final NessQuartzConfig nessQuartzConfig,
+                             @Named("ness.job") final Configuration nessJobConfig)
+    {
+        this(schedulerFactory,
+             jobFactory,
+             nessQuartzConfig,
+             new MisfireStormGuard(nessQuartzConfig),
+             new JobFlightRecorder(nessQuartzConfig),
+             new SlaWatchdog(nessQuartzConfig, new ResolvedQuartzMetrics()),
+             new QuartzHealthCheck(new RunningJobsIndex(), nessQuartzConfig),
+             nessJobConfig);
+    }
 
     @Inject
     public SchedulerProvider(final SchedulerFactory schedulerFactory,
                              final JobFactory jobFactory,
                              final NessQuartzConfig nessQuartzConfig,
+                             final MisfireStormGuard misfireStormGuard,
+                             final JobFlightRecorder jobFlightRecorder,
+                             final SlaWatchdog slaWatchdog,
+                             final QuartzHealthCheck quartzHealthCheck,
                              @Named("ness.job") final Configuration nessJobConfig)
     {
         this.schedulerFactory = schedulerFactory;
         this.jobFactory = jobFactory;
         this.nessJobConfig = nessJobConfig;
+        this.nessQuartzConfig = nessQuartzConfig;
+        this.misfireStormGuard = misfireStormGuard;
+        this.jobFlightRecorder = jobFlightRecorder;
+        this.slaWatchdog = slaWatchdog;
+        this.quartzHealthCheck = quartzHealthCheck;
 
         addAction(LifecycleStage.START_STAGE, new LifecycleAction<Scheduler>() {
                 @Override
                 public void performAction(final Scheduler scheduler) {
                     try {
+                        started = true;
+                        if (lazyScheduler != null && !lazyScheduler.isMaterialized()) {
+                            anchorJobs(System.currentTimeMillis());
+                            lazyScheduler.arm(Math.max(nessQuartzConfig.getStartDelay().getMillis(), getFirstFireDelay()));
+                            return;
+                        }
                         scheduler.startDelayed((int) (nessQuartzConfig.getStartDelay().getMillis() / 1000L));
                         LOG.info("Quartz Scheduler started!");
                     }
@@ -69,12 +113,23 @@ public class SchedulerProvider extends AbstractLifecycleProvider<Scheduler> impl
                 @Override
                 public void performAction(final Scheduler scheduler) {
                     try {
-                        scheduler.shutdown(nessQuartzConfig.isShutdownWaitForJobs());
+                        final long drainTimeout = nessQuartzConfig.getDrainTimeout().getMillis();
+                        if (drainTimeout > 0L && (lazyScheduler == null || lazyScheduler.isMaterialized())) {
+                            SchedulerDrain.drain(scheduler, drainTimeout);
+                            scheduler.shutdown(false);
+                        }
+                        else {
+                            scheduler.shutdown(nessQuartzConfig.isShutdownWaitForJobs());
+                        }
                         LOG.info("Quartz Scheduler stopped.");
                     }
                     catch (SchedulerException se) {
                         LOG.error(se, "Could not stop Quartz Scheduler");
                     }
+
+                    if (jobFactory instanceof GuiceJobFactory) {
+                        ((GuiceJobFactory) jobFactory).shutdown();
+                    }
                 }
             });
 
@@ -90,12 +145,57 @@ public class SchedulerProvider extends AbstractLifecycleProvider<Scheduler> impl
         this.jobs = jobs;
     }
 
+    @Inject(optional=true)
+    void injectQuartzMetrics(final ResolvedQuartzMetrics quartzMetrics)
+    {
+        this.quartzMetrics = quartzMetrics;
+    }
+
     @Override
     public Scheduler internalGet()
+    {
+        if (jobs != null) {
+            final Duration fireJitter = new Duration(nessQuartzConfig.getFireJitter().getMillis());
+            for (final QuartzJobBinder job : jobs) {
+                job.defaultJitter(fireJitter.getMillis() > 0L ? fireJitter : null, nessQuartzConfig.getNodeId());
+            }
+        }
+
+        if (nessQuartzConfig.isLazyStart()) {
+            staggerJobs(nessQuartzConfig.getLazyStagger().getMillis());
+            lazyScheduler = new LazyScheduler(new Callable<Scheduler>() {
+                @Override
+                public Scheduler call() throws SchedulerException {
+                    final Scheduler scheduler = createScheduler();
+                    if (started) {
+                        scheduler.start();
+                        LOG.info("Quartz Scheduler started!");
+                    }
+                    return scheduler;
+                }
+            });
+            return lazyScheduler.getProxy();
+        }
+
+        return createScheduler();
+    }
+
+    private Scheduler createScheduler()
     {
         try {
             final Scheduler scheduler = schedulerFactory.getScheduler();
             scheduler.setJobFactory(jobFactory);
+            scheduler.getListenerManager().addTriggerListener(new PriorityDispatchListener(nessQuartzConfig.getPriorityAging().getMillis(),
+                                                                                           nessQuartzConfig.getPriorityAgingMax(),
+                                                                                           quartzMetrics),
+                                                              EverythingMatcher.allTriggers());
+            scheduler.getListenerManager().addJobListener(new WorkflowListener(quartzMetrics), EverythingMatcher.allJobs());
+            scheduler.getListenerManager().addTriggerListener(misfireStormGuard, EverythingMatcher.allTriggers());
+            if (jobFlightRecorder.isEnabled()) {
+                scheduler.getListenerManager().addSchedulerListener(jobFlightRecorder.getSchedulingListener());
+            }
+            slaWatchdog.register(scheduler);
+            quartzHealthCheck.register(scheduler);
 
             if (jobs != null) {
                 for (final QuartzJobBinder job : jobs) {
@@ -108,4 +208,50 @@ public class SchedulerProvider extends AbstractLifecycleProvider<Scheduler> impl
             throw new ProvisionException("Could not instantiate Quartz Scheduler!", se);
         }
     }
+
+    /**
+     * Spreads the first runs of all bound jobs without a delay.
+     */
+    private void staggerJobs(final long staggerMillis)
+    {
+        if (jobs == null || staggerMillis <= 0L) {
+            return;
+        }
+
+        int index = 0;
+        for (final QuartzJobBinder job : jobs) {
+            if (job.getDelay() == null && job.getCronExpression() == null) {
+                job.delay(Duration.millis(staggerMillis * index++));
+            }
+        }
+    }
+
+    /**
+     * Computes the first fire times of all bound jobs from the given time instead of the time
+     * when the scheduler is eventually created.
+     */
+    private void anchorJobs(final long anchorTime)
+    {
+        if (jobs != null) {
+            for (final QuartzJobBinder job : jobs) {
+                job.anchor(anchorTime);
+            }
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds until the first bound job is due.
+     */
+    private long getFirstFireDelay()
+    {
+        long firstFireDelay = Long.MAX_VALUE;
+        if (jobs != null) {
+            for (final QuartzJobBinder job : jobs) {
+                if (job.isEnabled(nessJobConfig)) {
+                    firstFireDelay = Math.min(firstFireDelay, job.getFirstFireDelay());
+                }
+            }
+        }
+        return firstFireDelay;
+    }
 }
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import static java.lang.String.format;
+
+import java.util.Locale;
+
+import org.joda.time.DateTime;
+import org.quartz.JobKey;
+
+/**
+ * A job missed one of the limits of its SLA.
+ */
+public final class SlaViolation
+{
+    public enum Kind
+    {
+        /** The job started later than its max start lag after its scheduled fire time, or has not started yet. */
+        START_LAG,
+
+        /** An execution of the job runs longer than its max runtime. */
+        RUNTIME,
+
+        /** The job had no successful execution for longer than its max success gap. */
+        SUCCESS_GAP;
+
+        String getMetricName()
+        {
+            return "sla-" + name().toLowerCase(Locale.ENGLISH).replace('_', '-');
+        }
+    }
+
+    private final JobKey jobKey;
+    private final Kind kind;
+    private final long limitMillis;
+    private final long actualMillis;
+    private final DateTime time;
+
+    SlaViolation(final JobKey jobKey, final Kind kind, final long limitMillis, final long actualMillis)
+    {
+        this.jobKey = jobKey;
+        this.kind = kind;
+        this.limitMillis = limitMillis;
+        this.actualMillis = actualMillis;
+        this.time = new DateTime();
+    }
+
+    public JobKey getJobKey()
+    {
+        return jobKey;
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    public long getLimitMillis()
+    {
+        return limitMillis;
+    }
+
+    /**
+     * Returns the lag, runtime or gap when the violation was detected. It may still grow afterwards.
+     */
+    public long getActualMillis()
+    {
+        return actualMillis;
+    }
+
+    public DateTime getTime()
+    {
+        return time;
+    }
+
+    @Override
+    public String toString()
+    {
+        return format("%s %s: %dms, limit %dms, at %s", jobKey, kind, actualMillis, limitMillis, time);
+    }
+}
@@ -0,0 +1,655 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+import javax.management.StandardEmitterMBean;
+
+import org.quartz.JobDataMap;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.JobListener;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.quartz.Trigger;
+import org.quartz.Trigger.CompletedExecutionInstruction;
+import org.quartz.TriggerKey;
+import org.quartz.TriggerListener;
+import org.quartz.impl.matchers.EverythingMatcher;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.listeners.SchedulerListenerSupport;
+import org.weakref.jmx.MBeanExporter;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.inject.Inject;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Checks the SLAs that jobs declare with {@link QuartzJob#maxStartLag}, {@link QuartzJob#maxRuntime} and
+ * {@link QuartzJob#maxSuccessGap}. Every deadline is a timeout on a single {@link TimerWheel}, so a
+ * violation is found when it happens, not when the job finally starts or finishes. Violations are logged,
+ * counted in the metrics, sent to the bound {@link SlaListener}s and, if the application exports JMX beans,
+ * sent as JMX notifications.
+ */
+class SlaWatchdog extends SchedulerListenerSupport implements SlaWatchdogMBean
+{
+    private static final Log LOG = Log.findLog();
+
+    static final String NAME = "ness-quartz-sla";
+    static final String OBJECT_NAME = "ness.quartz:type=sla";
+
+    private static final int WHEEL_SIZE = 512;
+    private static final int RECENT_VIOLATIONS = 100;
+
+    private final TimerWheel timerWheel;
+    private final QuartzMetrics quartzMetrics;
+
+    /** Jobs whose job data declares an SLA, so that new triggers of other jobs cost no lookups. */
+    private final ConcurrentMap<JobKey, JobDetail> slaJobs = Maps.newConcurrentMap();
+    private final ConcurrentMap<TriggerKey, StartDeadline> startDeadlines = Maps.newConcurrentMap();
+    private final ConcurrentMap<TriggerKey, Long> reportedStarts = Maps.newConcurrentMap();
+    private final ConcurrentMap<String, RuntimeDeadline> runtimeDeadlines = Maps.newConcurrentMap();
+    private final ConcurrentMap<JobKey, GapDeadline> gapDeadlines = Maps.newConcurrentMap();
+
+    private final AtomicLong violations = new AtomicLong();
+    private final ConcurrentMap<JobKey, AtomicLong> jobViolations = Maps.newConcurrentMap();
+    private final Deque<SlaViolation> recentViolations = new ArrayDeque<SlaViolation>();
+
+    private final NotificationBroadcasterSupport broadcaster = new NotificationBroadcasterSupport(new MBeanNotificationInfo(new String [] {
+        getNotificationType(SlaViolation.Kind.START_LAG),
+        getNotificationType(SlaViolation.Kind.RUNTIME),
+        getNotificationType(SlaViolation.Kind.SUCCESS_GAP)
+    }, Notification.class.getName(), "SLA violation of a job"));
+    private final AtomicLong notificationSequence = new AtomicLong();
+
+    private Set<SlaListener> listeners = ImmutableSet.of();
+    private volatile Scheduler scheduler = null;
+    private boolean exportBean = false;
+    private ObjectName objectName = null;
+
+    @Inject
+    SlaWatchdog(final NessQuartzConfig nessQuartzConfig, final ResolvedQuartzMetrics quartzMetrics)
+    {
+        this.timerWheel = new TimerWheel("ness-quartz-sla-watchdog", nessQuartzConfig.getSlaTick().getMillis(), WHEEL_SIZE);
+        this.quartzMetrics = quartzMetrics;
+    }
+
+    @Inject(optional=true)
+    void injectListeners(final Set<SlaListener> listeners)
+    {
+        this.listeners = listeners;
+    }
+
+    /**
+     * The bean sends notifications, which MBeanExporter can not export. It is registered on the platform
+     * server directly, but only in applications that export JMX beans.
+     */
+    @Inject(optional=true)
+    synchronized void injectMBeanExporter(final MBeanExporter mbeanExporter)
+    {
+        this.exportBean = true;
+    }
+
+    /**
+     * Starts watching the jobs of the scheduler.
+     */
+    void register(final Scheduler scheduler) throws SchedulerException
+    {
+        this.scheduler = scheduler;
+        scheduler.getListenerManager().addSchedulerListener(this);
+        scheduler.getListenerManager().addTriggerListener(new SlaTriggerListener(), EverythingMatcher.allTriggers());
+        scheduler.getListenerManager().addJobListener(new SlaJobListener(), EverythingMatcher.allJobs());
+        export();
+    }
+
+    @Override
+    public void schedulerStarted()
+    {
+        try {
+            for (final JobKey jobKey : scheduler.getJobKeys(GroupMatcher.jobGroupStartsWith(""))) {
+                watch(jobKey);
+            }
+        }
+        catch (SchedulerException se) {
+            LOG.warn(se, "Could not watch the SLAs of the existing jobs");
+        }
+    }
+
+    @Override
+    public void schedulerShutdown()
+    {
+        timerWheel.stop();
+        unexport();
+    }
+
+    @Override
+    public void jobAdded(final JobDetail jobDetail)
+    {
+        if (JobSla.fromJobData(jobDetail.getJobDataMap()) != null) {
+            slaJobs.put(jobDetail.getKey(), jobDetail);
+        }
+        else {
+            slaJobs.remove(jobDetail.getKey());
+        }
+    }
+
+    @Override
+    public void jobScheduled(final Trigger trigger)
+    {
+        final JobKey jobKey = trigger.getJobKey();
+        JobDetail jobDetail = slaJobs.get(jobKey);
+        if (jobDetail == null && JobSla.fromJobData(trigger.getJobDataMap()) == null) {
+            return;
+        }
+
+        try {
+            if (jobDetail == null) {
+                jobDetail = scheduler.getJobDetail(jobKey);
+            }
+            if (jobDetail != null) {
+                watch(jobDetail, trigger);
+            }
+        }
+        catch (SchedulerException se) {
+            LOG.warn(se, "Could not watch the SLA of job %s", jobKey);
+        }
+    }
+
+    @Override
+    public void jobUnscheduled(final TriggerKey triggerKey)
+    {
+        final StartDeadline deadline = startDeadlines.remove(triggerKey);
+        if (deadline != null) {
+            deadline.cancel();
+        }
+        reportedStarts.remove(triggerKey);
+    }
+
+    @Override
+    public void triggerFinalized(final Trigger trigger)
+    {
+        jobUnscheduled(trigger.getKey());
+    }
+
+    @Override
+    public void jobDeleted(final JobKey jobKey)
+    {
+        slaJobs.remove(jobKey);
+        final GapDeadline deadline = gapDeadlines.remove(jobKey);
+        if (deadline != null) {
+            deadline.cancel();
+        }
+    }
+
+    /**
+     * Arms the start deadlines of all triggers of the job and its success gap deadline, unless they are armed already.
+     */
+    private void watch(final JobKey jobKey) throws SchedulerException
+    {
+        final JobDetail jobDetail = scheduler.getJobDetail(jobKey);
+        if (jobDetail == null) {
+            return;
+        }
+        jobAdded(jobDetail);
+
+        for (final Trigger trigger : scheduler.getTriggersOfJob(jobKey)) {
+            watch(jobDetail, trigger);
+        }
+    }
+
+    /**
+     * Arms the start deadline of the trigger and the success gap deadline of its job, unless they are armed already.
+     */
+    private void watch(final JobDetail jobDetail, final Trigger trigger)
+    {
+        final JobSla sla = getSla(jobDetail, trigger);
+        if (sla == null) {
+            return;
+        }
+
+        final JobKey jobKey = jobDetail.getKey();
+        if (sla.getMaxStartLagMillis() > 0L && trigger.getNextFireTime() != null) {
+            final StartDeadline deadline = startDeadlines.get(trigger.getKey());
+            if (deadline == null || deadline.scheduledTime < trigger.getNextFireTime().getTime()) {
+                armStart(jobKey, trigger.getKey(), trigger.getNextFireTime().getTime(), sla.getMaxStartLagMillis());
+            }
+        }
+        if (sla.getMaxSuccessGapMillis() > 0L && !gapDeadlines.containsKey(jobKey)) {
+            final GapDeadline deadline = new GapDeadline(jobKey, sla.getMaxSuccessGapMillis(), System.currentTimeMillis());
+            if (gapDeadlines.putIfAbsent(jobKey, deadline) == null) {
+                deadline.arm();
+            }
+        }
+    }
+
+    @Nullable
+    private static JobSla getSla(final JobDetail jobDetail, final Trigger trigger)
+    {
+        final JobDataMap jobDataMap = new JobDataMap(jobDetail.getJobDataMap().getWrappedMap());
+        jobDataMap.putAll(trigger.getJobDataMap().getWrappedMap());
+        return JobSla.fromJobData(jobDataMap);
+    }
+
+    private void armStart(final JobKey jobKey, final TriggerKey triggerKey, final long scheduledTime, final long limitMillis)
+    {
+        final StartDeadline deadline = new StartDeadline(jobKey, triggerKey, scheduledTime, limitMillis);
+        final StartDeadline previous = startDeadlines.put(triggerKey, deadline);
+        if (previous != null) {
+            previous.cancel();
+        }
+        deadline.arm();
+    }
+
+    private void started(final Trigger trigger, final JobExecutionContext context)
+    {
+        final JobSla sla = JobSla.fromJobData(context.getMergedJobDataMap());
+        final TriggerKey triggerKey = trigger.getKey();
+        final long now = System.currentTimeMillis();
+
+        long scheduledTime = context.getScheduledFireTime() == null ? context.getFireTime().getTime() : context.getScheduledFireTime().getTime();
+        final StartDeadline deadline = startDeadlines.get(triggerKey);
+        if (deadline != null && deadline.scheduledTime <= scheduledTime && startDeadlines.remove(triggerKey, deadline)) {
+            deadline.cancel();
+            // After a misfire, the fire time was moved, the lag counts from the time that was missed.
+            scheduledTime = deadline.scheduledTime;
+        }
+
+        if (sla == null) {
+            return;
+        }
+
+        if (sla.getMaxStartLagMillis() > 0L) {
+            final Long reportedTime = reportedStarts.remove(triggerKey);
+            final long lag = context.getFireTime().getTime() - scheduledTime;
+            if (lag > sla.getMaxStartLagMillis() && (reportedTime == null || reportedTime != scheduledTime)) {
+                report(new SlaViolation(context.getJobDetail().getKey(), SlaViolation.Kind.START_LAG, sla.getMaxStartLagMillis(), lag));
+            }
+            if (trigger.getNextFireTime() != null) {
+                armStart(context.getJobDetail().getKey(), triggerKey, trigger.getNextFireTime().getTime(), sla.getMaxStartLagMillis());
+            }
+        }
+
+        if (sla.getMaxRuntimeMillis() > 0L) {
+            final RuntimeDeadline runtimeDeadline = new RuntimeDeadline(context.getJobDetail().getKey(), context.getFireInstanceId(), now, sla.getMaxRuntimeMillis());
+            runtimeDeadlines.put(context.getFireInstanceId(), runtimeDeadline);
+            runtimeDeadline.arm();
+        }
+    }
+
+    private void finished(final JobExecutionContext context, @Nullable final JobExecutionException exception)
+    {
+        final RuntimeDeadline runtimeDeadline = runtimeDeadlines.remove(context.getFireInstanceId());
+        if (runtimeDeadline != null) {
+            runtimeDeadline.cancel();
+        }
+
+        final CancellationToken cancellationToken = (CancellationToken) context.get(CancellationToken.CONTEXT_KEY);
+        if (exception != null || context.get(QuartzJobWrapper.DEFERRED_KEY) != null || (cancellationToken != null && cancellationToken.isCancelled())) {
+            return;
+        }
+
+        final JobSla sla = JobSla.fromJobData(context.getMergedJobDataMap());
+        if (sla != null && sla.getMaxSuccessGapMillis() > 0L) {
+            final JobKey jobKey = context.getJobDetail().getKey();
+            final GapDeadline deadline = new GapDeadline(jobKey, sla.getMaxSuccessGapMillis(), System.currentTimeMillis());
+            final GapDeadline previous = gapDeadlines.put(jobKey, deadline);
+            if (previous != null) {
+                previous.cancel();
+            }
+            deadline.arm();
+        }
+    }
+
+    private void report(final SlaViolation violation)
+    {
+        LOG.warn("SLA violation: %s", violation);
+
+        violations.incrementAndGet();
+        AtomicLong count = jobViolations.get(violation.getJobKey());
+        if (count == null) {
+            count = new AtomicLong();
+            count = Objects.firstNonNull(jobViolations.putIfAbsent(violation.getJobKey(), count), count);
+        }
+        count.incrementAndGet();
+        quartzMetrics.meter("ness.quartz.job", violation.getKind().getMetricName(), QuartzJobStatistics.getKeyName(violation.getJobKey())).mark();
+
+        synchronized (recentViolations) {
+            recentViolations.addFirst(violation);
+            if (recentViolations.size() > RECENT_VIOLATIONS) {
+                recentViolations.removeLast();
+            }
+        }
+
+        for (final SlaListener listener : listeners) {
+            try {
+                listener.slaViolated(violation);
+            }
+            catch (RuntimeException re) {
+                LOG.warn(re, "SLA listener %s failed", listener);
+            }
+        }
+
+        final Notification notification = new Notification(getNotificationType(violation.getKind()), OBJECT_NAME, notificationSequence.incrementAndGet(), violation.toString());
+        notification.setUserData(violation.getJobKey().toString());
+        broadcaster.sendNotification(notification);
+    }
+
+    private static String getNotificationType(final SlaViolation.Kind kind)
+    {
+        return "ness.quartz." + kind.getMetricName();
+    }
+
+    private synchronized void export()
+    {
+        if (!exportBean) {
+            return;
+        }
+
+        final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            mbeanServer.registerMBean(new StandardEmitterMBean(this, SlaWatchdogMBean.class, broadcaster), name);
+            objectName = name;
+        }
+        catch (JMException jme) {
+            LOG.warn(jme, "Could not export %s", OBJECT_NAME);
+        }
+    }
+
+    private synchronized void unexport()
+    {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+            catch (JMException jme) {
+                LOG.warn(jme, "Could not unexport %s", OBJECT_NAME);
+            }
+            objectName = null;
+        }
+    }
+
+    @Override
+    public long getViolations()
+    {
+        return violations.get();
+    }
+
+    long getViolations(final JobKey jobKey)
+    {
+        final AtomicLong count = jobViolations.get(jobKey);
+        return count == null ? 0L : count.get();
+    }
+
+    @Override
+    public String [] getViolationsPerJob()
+    {
+        final List<String> result = Lists.newArrayList();
+        for (final Map.Entry<JobKey, AtomicLong> entry : jobViolations.entrySet()) {
+            result.add(entry.getKey() + ": " + entry.getValue().get());
+        }
+        return result.toArray(new String [result.size()]);
+    }
+
+    @Override
+    public String [] getRecentViolations()
+    {
+        synchronized (recentViolations) {
+            final String [] result = new String [recentViolations.size()];
+            int i = 0;
+            for (final SlaViolation violation : recentViolations) {
+                result[i++] = violation.toString();
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public int getWatchedJobs()
+    {
+        final Set<JobKey> jobKeys = Sets.newHashSet(gapDeadlines.keySet());
+        for (final StartDeadline deadline : startDeadlines.values()) {
+            jobKeys.add(deadline.jobKey);
+        }
+        return jobKeys.size();
+    }
+
+    @Override
+    public void clearRecentViolations()
+    {
+        synchronized (recentViolations) {
+            recentViolations.clear();
+        }
+    }
+
+    private abstract class Deadline implements Runnable
+    {
+        private volatile TimerWheel.Timeout timeout = null;
+
+        void arm(final long delayMillis)
+        {
+            timeout = timerWheel.schedule(this, delayMillis);
+        }
+
+        void cancel()
+        {
+            final TimerWheel.Timeout armed = timeout;
+            if (armed != null) {
+                armed.cancel();
+            }
+        }
+    }
+
+    /** The next fire of a trigger must start before its scheduled time plus the max start lag. */
+    private class StartDeadline extends Deadline
+    {
+        private final JobKey jobKey;
+        private final TriggerKey triggerKey;
+        private final long scheduledTime;
+        private final long limitMillis;
+
+        StartDeadline(final JobKey jobKey, final TriggerKey triggerKey, final long scheduledTime, final long limitMillis)
+        {
+            this.jobKey = jobKey;
+            this.triggerKey = triggerKey;
+            this.scheduledTime = scheduledTime;
+            this.limitMillis = limitMillis;
+        }
+
+        void arm()
+        {
+            arm(scheduledTime + limitMillis - System.currentTimeMillis() + 1L);
+        }
+
+        @Override
+        public void run()
+        {
+            if (startDeadlines.get(triggerKey) != this) {
+                return;
+            }
+
+            final Trigger trigger;
+            try {
+                trigger = scheduler.getTrigger(triggerKey);
+            }
+            catch (SchedulerException se) {
+                LOG.warn(se, "Could not check trigger %s", triggerKey);
+                return;
+            }
+            if (trigger == null) {
+                startDeadlines.remove(triggerKey, this);
+                return;
+            }
+
+            reportedStarts.put(triggerKey, scheduledTime);
+            report(new SlaViolation(jobKey, SlaViolation.Kind.START_LAG, limitMillis, System.currentTimeMillis() - scheduledTime));
+
+            // The fire was skipped after a misfire, watch the next one.
+            final Date nextFireTime = trigger.getNextFireTime();
+            if (nextFireTime != null && nextFireTime.getTime() > scheduledTime && startDeadlines.get(triggerKey) == this) {
+                armStart(jobKey, triggerKey, nextFireTime.getTime(), limitMillis);
+            }
+        }
+    }
+
+    /** A running execution must finish within the max runtime. */
+    private class RuntimeDeadline extends Deadline
+    {
+        private final JobKey jobKey;
+        private final String fireInstanceId;
+        private final long startTime;
+        private final long limitMillis;
+
+        RuntimeDeadline(final JobKey jobKey, final String fireInstanceId, final long startTime, final long limitMillis)
+        {
+            this.jobKey = jobKey;
+            this.fireInstanceId = fireInstanceId;
+            this.startTime = startTime;
+            this.limitMillis = limitMillis;
+        }
+
+        void arm()
+        {
+            arm(limitMillis + 1L);
+        }
+
+        @Override
+        public void run()
+        {
+            if (runtimeDeadlines.remove(fireInstanceId, this)) {
+                report(new SlaViolation(jobKey, SlaViolation.Kind.RUNTIME, limitMillis, System.currentTimeMillis() - startTime));
+            }
+        }
+    }
+
+    /** The job must succeed within the max success gap after its last success. */
+    private class GapDeadline extends Deadline
+    {
+        private final JobKey jobKey;
+        private final long limitMillis;
+        private final long since;
+
+        GapDeadline(final JobKey jobKey, final long limitMillis, final long since)
+        {
+            this.jobKey = jobKey;
+            this.limitMillis = limitMillis;
+            this.since = since;
+        }
+
+        void arm()
+        {
+            arm(since + limitMillis - System.currentTimeMillis() + 1L);
+        }
+
+        @Override
+        public void run()
+        {
+            if (gapDeadlines.get(jobKey) != this) {
+                return;
+            }
+            final long gap = System.currentTimeMillis() - since;
+            report(new SlaViolation(jobKey, SlaViolation.Kind.SUCCESS_GAP, limitMillis, gap));
+
+            // Report again for every further gap without a success.
+            final GapDeadline next = new GapDeadline(jobKey, limitMillis, since);
+            if (gapDeadlines.replace(jobKey, this, next)) {
+                next.arm(limitMillis * (gap / limitMillis + 1L) - gap + 1L);
+            }
+        }
+    }
+
+    private class SlaTriggerListener implements TriggerListener
+    {
+        @Override
+        public String getName()
+        {
+            return NAME;
+        }
+
+        @Override
+        public void triggerFired(final Trigger trigger, final JobExecutionContext context)
+        {
+            started(trigger, context);
+        }
+
+        @Override
+        public boolean vetoJobExecution(final Trigger trigger, final JobExecutionContext context)
+        {
+            return false;
+        }
+
+        @Override
+        public void triggerMisfired(final Trigger trigger)
+        {
+        }
+
+        @Override
+        public void triggerComplete(final Trigger trigger, final JobExecutionContext context, final CompletedExecutionInstruction triggerInstructionCode)
+        {
+        }
+    }
+
+    private class SlaJobListener implements JobListener
+    {
+        @Override
+        public String getName()
+        {
+            return NAME;
+        }
+
+        @Override
+        public void jobToBeExecuted(final JobExecutionContext context)
+        {
+        }
+
+        @Override
+        public void jobExecutionVetoed(final JobExecutionContext context)
+        {
+            final RuntimeDeadline runtimeDeadline = runtimeDeadlines.remove(context.getFireInstanceId());
+            if (runtimeDeadline != null) {
+                runtimeDeadline.cancel();
+            }
+        }
+
+        @Override
+        public void jobWasExecuted(final JobExecutionContext context, final JobExecutionException jobException)
+        {
+            finished(context, jobException);
+        }
+    }
+}
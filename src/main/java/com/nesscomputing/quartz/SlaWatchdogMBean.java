@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+/**
+ * SLA monitoring of the scheduler, exported as <code>ness.quartz:type=sla</code>. Every violation
+ * is also sent as a JMX notification of type <code>ness.quartz.sla-start-lag</code>,
+ * <code>ness.quartz.sla-runtime</code> or <code>ness.quartz.sla-success-gap</code>.
+ */
+public interface SlaWatchdogMBean
+{
+    long getViolations();
+
+    String [] getViolationsPerJob();
+
+    String [] getRecentViolations();
+
+    int getWatchedJobs();
+
+    void clearRecentViolations();
+}
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.quartz.JobKey;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+
+/**
+ * Samples the stack of job executions that run past <code>ness.quartz.slow-threshold</code> and
+ * aggregates the samples into a {@link StackProfile} per job. An execution below the threshold only
+ * costs scheduling and cancelling a task.
+ */
+class SlowExecutionProfiler
+{
+    private static final ScheduledThreadPoolExecutor SAMPLER_EXECUTOR;
+
+    static {
+        SAMPLER_EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder().setNameFormat("ness-quartz-sampler").setDaemon(true).build());
+        SAMPLER_EXECUTOR.setRemoveOnCancelPolicy(true);
+    }
+
+    private final long thresholdMillis;
+    private final long intervalMillis;
+    private final LoadingCache<JobKey, StackProfile> profiles;
+
+    @Inject
+    SlowExecutionProfiler(final NessQuartzConfig nessQuartzConfig)
+    {
+        this.thresholdMillis = nessQuartzConfig.getSlowThreshold().getMillis();
+        this.intervalMillis = Math.max(1L, nessQuartzConfig.getSlowSampleInterval().getMillis());
+
+        final int maxNodes = nessQuartzConfig.getSlowProfileNodes();
+        this.profiles = CacheBuilder.newBuilder()
+            .maximumSize(nessQuartzConfig.getSlowProfileJobs())
+            .build(new CacheLoader<JobKey, StackProfile>() {
+                @Override
+                public StackProfile load(final JobKey jobKey) {
+                    return new StackProfile(maxNodes);
+                }
+            });
+    }
+
+    /**
+     * Starts watching an execution on the given thread. Returns null if sampling is disabled,
+     * otherwise the caller must stop the returned sampler when the execution ends.
+     */
+    Sampler watch(final JobKey jobKey, final Thread thread)
+    {
+        if (thresholdMillis <= 0L) {
+            return null;
+        }
+        final Sampler sampler = new Sampler(jobKey, thread);
+        sampler.future = SAMPLER_EXECUTOR.scheduleAtFixedRate(sampler, thresholdMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return sampler;
+    }
+
+    public List<String> getProfile(final JobKey jobKey)
+    {
+        final StackProfile profile = profiles.getIfPresent(jobKey);
+        return profile == null ? Collections.<String>emptyList() : profile.toFolded();
+    }
+
+    public long getSlowExecutions(final JobKey jobKey)
+    {
+        final StackProfile profile = profiles.getIfPresent(jobKey);
+        return profile == null ? 0L : profile.getSlowExecutions();
+    }
+
+    public long getSamples(final JobKey jobKey)
+    {
+        final StackProfile profile = profiles.getIfPresent(jobKey);
+        return profile == null ? 0L : profile.getSamples();
+    }
+
+    public void clear(final JobKey jobKey)
+    {
+        profiles.invalidate(jobKey);
+    }
+
+    class Sampler implements Runnable
+    {
+        private final JobKey jobKey;
+        private final Thread thread;
+        private boolean first = true;
+
+        private volatile boolean running = true;
+        private volatile Future<?> future = null;
+
+        Sampler(final JobKey jobKey, final Thread thread)
+        {
+            this.jobKey = jobKey;
+            this.thread = thread;
+        }
+
+        /**
+         * Ends the execution. A sample that is taken concurrently is dropped, the thread may already
+         * run another job.
+         */
+        void stop()
+        {
+            running = false;
+            future.cancel(false);
+        }
+
+        @Override
+        public void run()
+        {
+            if (!running) {
+                return;
+            }
+
+            final StackTraceElement [] frames = thread.getStackTrace();
+            if (!running) {
+                return;
+            }
+
+            final StackProfile profile = profiles.getUnchecked(jobKey);
+            if (first) {
+                profile.registerSlowExecution();
+                first = false;
+            }
+
+            // Frames from the wrapper outwards are the same for every sample, only keep those of the job.
+            int depth = frames.length;
+            for (int i = 0; i < frames.length; i++) {
+                if (QuartzJobWrapper.class.getName().equals(frames[i].getClassName()) && "execute".equals(frames[i].getMethodName())) {
+                    depth = i;
+                    break;
+                }
+            }
+            profile.add(frames, depth);
+        }
+    }
+}
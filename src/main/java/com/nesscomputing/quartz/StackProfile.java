@@ -0,0 +1,127 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Aggregates stack samples into a call tree with a bounded number of nodes. Once the tree is full,
+ * samples that would need new nodes are counted at the deepest existing frame.
+ */
+final class StackProfile
+{
+    private final int maxNodes;
+    private final Node root = new Node(null);
+
+    private int nodes = 0;
+    private long samples = 0L;
+    private long slowExecutions = 0L;
+
+    StackProfile(final int maxNodes)
+    {
+        this.maxNodes = maxNodes;
+    }
+
+    synchronized void registerSlowExecution()
+    {
+        slowExecutions++;
+    }
+
+    /**
+     * Adds a sample. The frames are ordered like {@link Thread#getStackTrace()}, innermost first, and
+     * only the first <code>depth</code> frames are used.
+     */
+    synchronized void add(final StackTraceElement [] frames, final int depth)
+    {
+        samples++;
+        Node node = root;
+        for (int i = depth - 1; i >= 0; i--) {
+            final String frame = frames[i].getClassName() + "." + frames[i].getMethodName();
+            Node child = node.children.get(frame);
+            if (child == null) {
+                if (nodes >= maxNodes) {
+                    break;
+                }
+                child = new Node(frame);
+                node.children.put(frame, child);
+                nodes++;
+            }
+            node = child;
+        }
+        node.selfCount++;
+    }
+
+    synchronized long getSamples()
+    {
+        return samples;
+    }
+
+    synchronized long getSlowExecutions()
+    {
+        return slowExecutions;
+    }
+
+    /**
+     * Returns the profile in the folded format of flame graph tools, one
+     * <tt>outer;...;inner count</tt> line per stack, most frequent first.
+     */
+    synchronized List<String> toFolded()
+    {
+        final List<Map.Entry<String, Long>> stacks = Lists.newArrayList();
+        collect(root, "", stacks);
+        Collections.sort(stacks, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(final Map.Entry<String, Long> a, final Map.Entry<String, Long> b)
+            {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+
+        final List<String> result = Lists.newArrayListWithCapacity(stacks.size());
+        for (final Map.Entry<String, Long> stack : stacks) {
+            result.add(stack.getKey() + " " + stack.getValue());
+        }
+        return result;
+    }
+
+    private void collect(final Node node, final String path, final List<Map.Entry<String, Long>> stacks)
+    {
+        if (node.selfCount > 0) {
+            stacks.add(Maps.immutableEntry(path.isEmpty() ? "[root]" : path, node.selfCount));
+        }
+        for (final Node child : node.children.values()) {
+            collect(child, path.isEmpty() ? child.frame : path + ";" + child.frame, stacks);
+        }
+    }
+
+    private static final class Node
+    {
+        private final String frame;
+        private final Map<String, Node> children = Maps.newHashMap();
+        private long selfCount = 0L;
+
+        Node(final String frame)
+        {
+            this.frame = frame;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import com.nesscomputing.logging.Log;
+
+/**
+ * Reads the CPU time and the allocated bytes of the current thread from the <tt>ThreadMXBean</tt>.
+ * Both return -1 if the JVM does not support or has disabled the counter.
+ */
+final class ThreadResources
+{
+    private static final Log LOG = Log.findLog();
+
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED;
+    private static final boolean ALLOCATION_SUPPORTED;
+
+    static {
+        CPU_TIME_SUPPORTED = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+        ALLOCATION_SUPPORTED = isAllocationSupported();
+        LOG.debug("Thread CPU time supported: %s, thread allocation supported: %s", CPU_TIME_SUPPORTED, ALLOCATION_SUPPORTED);
+    }
+
+    private ThreadResources()
+    {
+    }
+
+    static long getCpuNanos()
+    {
+        return CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : -1L;
+    }
+
+    static long getAllocatedBytes()
+    {
+        if (!ALLOCATION_SUPPORTED) {
+            return -1L;
+        }
+        return ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Returns the difference between two readings, or -1 if either of them is missing.
+     */
+    static long delta(final long before, final long after)
+    {
+        return before < 0L || after < 0L ? -1L : Math.max(0L, after - before);
+    }
+
+    private static boolean isAllocationSupported()
+    {
+        try {
+            return THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).isThreadAllocatedMemorySupported();
+        }
+        catch (LinkageError le) {
+            // Not a HotSpot based JVM.
+            return false;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.nesscomputing.logging.Log;
+
+/**
+ * A hashed timer wheel: one thread advances over a ring of buckets once per tick and runs the tasks
+ * that are due, so any number of deadlines costs a single thread. Deadlines are rounded up to the next
+ * tick. New and cancelled timeouts never take a lock, the buckets are only touched by the wheel thread.
+ */
+final class TimerWheel
+{
+    private static final Log LOG = Log.findLog();
+
+    private final String threadName;
+    private final long tickNanos;
+    private final int mask;
+    private final List<ArrayDeque<Timeout>> buckets;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+    private Thread worker = null;
+    private volatile boolean stopped = false;
+    private volatile long startTime = 0L;
+
+    TimerWheel(final String threadName, final long tickMillis, final int wheelSize)
+    {
+        Preconditions.checkArgument(tickMillis > 0L, "tick must be positive, but is %s", tickMillis);
+        Preconditions.checkArgument(wheelSize > 0 && Integer.bitCount(wheelSize) == 1, "wheel size must be a power of two, but is %s", wheelSize);
+        this.threadName = threadName;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.mask = wheelSize - 1;
+        this.buckets = Lists.newArrayListWithCapacity(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new ArrayDeque<Timeout>());
+        }
+    }
+
+    /**
+     * Runs the task on the wheel thread once the delay has passed, unless the returned timeout is cancelled
+     * before. Tasks must be short, they delay all other tasks of the wheel.
+     */
+    Timeout schedule(final Runnable task, final long delayMillis)
+    {
+        start();
+        final Timeout timeout = new Timeout(task, System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0L, delayMillis)));
+        if (!stopped) {
+            pending.add(timeout);
+        }
+        return timeout;
+    }
+
+    synchronized void stop()
+    {
+        stopped = true;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+        pending.clear();
+    }
+
+    private synchronized void start()
+    {
+        if (worker != null || stopped) {
+            return;
+        }
+        startTime = System.nanoTime();
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run()
+            {
+                advance();
+            }
+        }, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void advance()
+    {
+        long tick = 0L;
+        while (!stopped) {
+            final long sleepNanos = startTime + (tick + 1L) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0L) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                }
+                catch (InterruptedException ie) {
+                    if (stopped) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+
+            transferPending(tick);
+            expire(buckets.get((int) (tick & mask)));
+            tick++;
+        }
+    }
+
+    private void transferPending(final long tick)
+    {
+        for (Timeout timeout = pending.poll(); timeout != null; timeout = pending.poll()) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            // Round up, a timeout never runs before its deadline.
+            final long dueTick = Math.max(tick, (timeout.deadline + tickNanos - 1L) / tickNanos - 1L);
+            timeout.rounds = (dueTick - tick) / buckets.size();
+            buckets.get((int) (dueTick & mask)).add(timeout);
+        }
+    }
+
+    private void expire(final ArrayDeque<Timeout> bucket)
+    {
+        for (final Iterator<Timeout> it = bucket.iterator(); it.hasNext(); ) {
+            final Timeout timeout = it.next();
+            if (timeout.cancelled) {
+                it.remove();
+            }
+            else if (timeout.rounds > 0L) {
+                timeout.rounds--;
+            }
+            else {
+                it.remove();
+                try {
+                    timeout.task.run();
+                }
+                catch (RuntimeException re) {
+                    LOG.error(re, "Timer task %s failed", timeout.task);
+                }
+            }
+        }
+    }
+
+    static final class Timeout
+    {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds = 0L;
+        private volatile boolean cancelled = false;
+
+        private Timeout(final Runnable task, final long deadline)
+        {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        void cancel()
+        {
+            cancelled = true;
+        }
+
+        boolean isCancelled()
+        {
+            return cancelled;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.JobListener;
+import org.quartz.SchedulerException;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.nesscomputing.logging.Log;
+
+/**
+ * Tracks running {@link QuartzWorkflow}s and submits the stages whose dependencies have finished.
+ */
+class WorkflowListener implements JobListener
+{
+    private static final Log LOG = Log.findLog();
+
+    static final String NAME = "ness-quartz-workflow";
+
+    private final QuartzMetrics quartzMetrics;
+    private final ConcurrentMap<JobKey, Run> runs = Maps.newConcurrentMap();
+
+    WorkflowListener(final QuartzMetrics quartzMetrics)
+    {
+        this.quartzMetrics = quartzMetrics;
+    }
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    Run register(final QuartzWorkflow workflow, final String runId)
+    {
+        return new Run(workflow, runId);
+    }
+
+    @Override
+    public void jobToBeExecuted(final JobExecutionContext context)
+    {
+    }
+
+    @Override
+    public void jobExecutionVetoed(final JobExecutionContext context)
+    {
+        final Run run = runs.remove(context.getJobDetail().getKey());
+        if (run != null) {
+            run.finished(context.getJobDetail().getKey(), 0L, false);
+        }
+    }
+
+    @Override
+    public void jobWasExecuted(final JobExecutionContext context, final JobExecutionException jobException)
+    {
+        // A fire that was moved by the rate limiter is not the end of the stage.
+        if (context.get(QuartzJobWrapper.DEFERRED_KEY) != null) {
+            return;
+        }
+
+        final Run run = runs.remove(context.getJobDetail().getKey());
+        if (run == null) {
+            return;
+        }
+
+        for (final AdHocQuartzJob job : run.finished(context.getJobDetail().getKey(), context.getJobRunTime(), jobException == null)) {
+            try {
+                job.submit(context.getScheduler());
+            }
+            catch (SchedulerException se) {
+                run.abort(se);
+                return;
+            }
+        }
+    }
+
+    /**
+     * State of a single run of a workflow.
+     */
+    class Run
+    {
+        private final String name;
+        private final Map<String, AdHocQuartzJob> stages;
+        private final Map<JobKey, String> stagesByKey = Maps.newHashMap();
+        private final Map<String, Set<String>> dependencies = Maps.newHashMap();
+        private final Map<String, List<String>> dependents = Maps.newHashMap();
+        private final Map<String, Integer> pending = Maps.newHashMap();
+        private final Map<String, Long> runtimes = Maps.newLinkedHashMap();
+        private final SettableFuture<QuartzWorkflow.Result> result = SettableFuture.create();
+
+        private long startTime = 0L;
+        private int running = 0;
+        private boolean failed = false;
+        private boolean complete = false;
+
+        private Run(final QuartzWorkflow workflow, final String runId)
+        {
+            this.name = workflow.getName();
+            this.stages = Maps.newLinkedHashMap();
+
+            for (final Map.Entry<String, AdHocQuartzJob> stage : workflow.getStages().entrySet()) {
+                final String stageName = stage.getKey();
+                // Every run gets its own jobs, so runs of the same workflow do not rename each other's stages.
+                final AdHocQuartzJob job = stage.getValue().copy().name(name + "-" + stageName + "-" + runId).group(name);
+                stages.put(stageName, job);
+                stagesByKey.put(new JobKey(job.getName(), job.getGroup()), stageName);
+
+                final Set<String> stageDependencies = workflow.getDependencies(stageName);
+                dependencies.put(stageName, stageDependencies);
+                pending.put(stageName, stageDependencies.size());
+                dependents.put(stageName, Lists.<String>newArrayList());
+                for (final String dependency : stageDependencies) {
+                    dependents.get(dependency).add(stageName);
+                }
+            }
+        }
+
+        /**
+         * Registers the stages of the run and returns the jobs without dependencies.
+         */
+        synchronized List<AdHocQuartzJob> start()
+        {
+            startTime = System.currentTimeMillis();
+            for (final JobKey jobKey : stagesByKey.keySet()) {
+                runs.put(jobKey, this);
+            }
+
+            final List<AdHocQuartzJob> roots = Lists.newArrayList();
+            for (final Map.Entry<String, Integer> entry : pending.entrySet()) {
+                if (entry.getValue() == 0) {
+                    roots.add(stages.get(entry.getKey()));
+                }
+            }
+            running = roots.size();
+            return roots;
+        }
+
+        ListenableFuture<QuartzWorkflow.Result> getResult()
+        {
+            return result;
+        }
+
+        /**
+         * Records a finished stage and returns the jobs that can be started now.
+         */
+        synchronized List<AdHocQuartzJob> finished(final JobKey jobKey, final long runtime, final boolean successful)
+        {
+            final String stageName = stagesByKey.get(jobKey);
+            final List<AdHocQuartzJob> next = Lists.newArrayList();
+            running--;
+            runtimes.put(stageName, runtime);
+
+            if (!successful) {
+                LOG.warn("Stage %s of workflow %s failed, not starting any further stages", stageName, name);
+                failed = true;
+            }
+            else if (!failed) {
+                for (final String dependent : dependents.get(stageName)) {
+                    final int remaining = pending.get(dependent) - 1;
+                    pending.put(dependent, remaining);
+                    if (remaining == 0) {
+                        next.add(stages.get(dependent));
+                    }
+                }
+                running += next.size();
+            }
+
+            if (running == 0) {
+                complete(null);
+            }
+            return next;
+        }
+
+        synchronized void abort(final Throwable t)
+        {
+            LOG.error(t, "Could not submit stage of workflow %s", name);
+            failed = true;
+            complete(t);
+        }
+
+        private void complete(final Throwable t)
+        {
+            if (complete) {
+                return;
+            }
+            complete = true;
+
+            for (final JobKey jobKey : stagesByKey.keySet()) {
+                runs.remove(jobKey);
+            }
+
+            if (t != null) {
+                result.setException(t);
+                return;
+            }
+
+            // Longest chain of runtimes, stages are in topological order.
+            final Map<String, Long> finishTimes = Maps.newHashMap();
+            final Map<String, String> predecessors = Maps.newHashMap();
+            String last = null;
+            for (final Map.Entry<String, Long> stage : runtimes.entrySet()) {
+                long start = 0L;
+                String predecessor = null;
+                for (final String dependency : dependencies.get(stage.getKey())) {
+                    final Long dependencyFinish = finishTimes.get(dependency);
+                    if (dependencyFinish != null && (predecessor == null || dependencyFinish > start)) {
+                        start = dependencyFinish;
+                        predecessor = dependency;
+                    }
+                }
+                if (predecessor != null) {
+                    predecessors.put(stage.getKey(), predecessor);
+                }
+                finishTimes.put(stage.getKey(), start + stage.getValue());
+                if (last == null || finishTimes.get(stage.getKey()) >= finishTimes.get(last)) {
+                    last = stage.getKey();
+                }
+            }
+
+            final List<String> criticalPath = Lists.newLinkedList();
+            for (String stage = last; stage != null; stage = predecessors.get(stage)) {
+                criticalPath.add(0, stage);
+            }
+
+            final Map<String, Duration> stageRuntimes = Maps.newLinkedHashMap();
+            for (final Map.Entry<String, Long> stage : runtimes.entrySet()) {
+                stageRuntimes.put(stage.getKey(), new Duration(stage.getValue()));
+            }
+
+            final long makespan = System.currentTimeMillis() - startTime;
+            final long criticalPathTime = last == null ? 0L : finishTimes.get(last);
+
+            final QuartzWorkflow.Result workflowResult = new QuartzWorkflow.Result(name, !failed && runtimes.size() == stages.size(), new Duration(makespan), criticalPath, new Duration(criticalPathTime), stageRuntimes);
+
+            if (quartzMetrics != null) {
+                quartzMetrics.timer("ness.quartz.workflow", "makespan", name).update(TimeUnit.MILLISECONDS.toNanos(makespan));
+                quartzMetrics.timer("ness.quartz.workflow", "critical-path", name).update(TimeUnit.MILLISECONDS.toNanos(criticalPathTime));
+            }
+
+            LOG.info("Finished %s", workflowResult);
+            result.set(workflowResult);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.inject.Inject;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * Records into a yammer metrics 2.x registry, with the same metric names as before the metrics SPI existed.
+ */
+public class YammerQuartzMetrics implements QuartzMetrics
+{
+    private final MetricsRegistry metricsRegistry;
+
+    @Inject
+    public YammerQuartzMetrics(final MetricsRegistry metricsRegistry)
+    {
+        this.metricsRegistry = metricsRegistry;
+    }
+
+    @Override
+    public Timer timer(final String group, final String type, final String name)
+    {
+        final com.yammer.metrics.core.Timer timer = metricsRegistry.newTimer(new MetricName(group, type, name), TimeUnit.MILLISECONDS, TimeUnit.MINUTES);
+        return new Timer() {
+            @Override
+            public void update(final long nanos)
+            {
+                timer.update(nanos, TimeUnit.NANOSECONDS);
+            }
+
+            @Override
+            public long getCount()
+            {
+                return timer.count();
+            }
+
+            @Override
+            public double getSumMillis()
+            {
+                return timer.sum();
+            }
+
+            @Override
+            public double getQuantileMillis(final double quantile)
+            {
+                return timer.getSnapshot().getValue(quantile);
+            }
+        };
+    }
+
+    @Override
+    public Meter meter(final String group, final String type, final String name)
+    {
+        final com.yammer.metrics.core.Meter meter = metricsRegistry.newMeter(new MetricName(group, type, name), type, TimeUnit.MINUTES);
+        return new Meter() {
+            @Override
+            public void mark()
+            {
+                meter.mark();
+            }
+
+            @Override
+            public long getCount()
+            {
+                return meter.count();
+            }
+        };
+    }
+
+    @Override
+    public Histogram histogram(final String group, final String type, final String name)
+    {
+        final com.yammer.metrics.core.Histogram histogram = metricsRegistry.newHistogram(new MetricName(group, type, name), false);
+        return new Histogram() {
+            @Override
+            public void update(final long value)
+            {
+                histogram.update(value);
+            }
+
+            @Override
+            public long getCount()
+            {
+                return histogram.count();
+            }
+
+            @Override
+            public double getQuantile(final double quantile)
+            {
+                return histogram.getSnapshot().getValue(quantile);
+            }
+        };
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestAdHocJmxExporter
+{
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    private ObjectName classBean = null;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz", "adhoc");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(AdHocJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        classBean = new ObjectName(AdHocJmxExporter.getClassBeanName(AdHocJob.class.getName()));
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        Assert.assertFalse(mbeanServer.isRegistered(classBean));
+    }
+
+    @Test
+    public void testAddedAndDeleted() throws Exception
+    {
+        AdHocQuartzJob.forClass(AdHocJob.class).name("first").delay(Duration.standardHours(1)).submit(scheduler);
+        AdHocQuartzJob.forClass(AdHocJob.class).name("second").delay(Duration.standardHours(1)).submit(scheduler);
+
+        // The cap is one, so only the first job gets a bean of its own.
+        Assert.assertTrue(mbeanServer.isRegistered(getJobBean("first")));
+        Assert.assertFalse(mbeanServer.isRegistered(getJobBean("second")));
+        Assert.assertEquals(2, mbeanServer.getAttribute(classBean, "Queued"));
+
+        scheduler.deleteJob(new JobKey("first"));
+        Assert.assertFalse(mbeanServer.isRegistered(getJobBean("first")));
+        Assert.assertEquals(1, mbeanServer.getAttribute(classBean, "Queued"));
+
+        AdHocQuartzJob.forClass(AdHocJob.class).name("third").delay(Duration.standardHours(1)).submit(scheduler);
+        Assert.assertTrue(mbeanServer.isRegistered(getJobBean("third")));
+        Assert.assertEquals(2, mbeanServer.getAttribute(classBean, "Queued"));
+    }
+
+    @Test
+    public void testExecuted() throws Exception
+    {
+        AdHocQuartzJob.forClass(AdHocJob.class).name("now").submit(scheduler);
+
+        // The job is deleted after it was executed, which removes its bean.
+        for (int i = 0; i < 100 && ((Long) mbeanServer.getAttribute(classBean, "Executions") == 0L || mbeanServer.isRegistered(getJobBean("now"))); i++) {
+            Thread.sleep(20L);
+        }
+
+        Assert.assertEquals(1L, mbeanServer.getAttribute(classBean, "Executions"));
+        Assert.assertEquals(0L, mbeanServer.getAttribute(classBean, "Failures"));
+        Assert.assertEquals(1L, mbeanServer.getAttribute(classBean, "ThroughputPerMinute"));
+        Assert.assertEquals(0, mbeanServer.getAttribute(classBean, "Queued"));
+        Assert.assertFalse(mbeanServer.isRegistered(getJobBean("now")));
+    }
+
+    private ObjectName getJobBean(final String name) throws Exception
+    {
+        return new ObjectName("ness.quartz.job:type=adhoc, name=" + ObjectName.quote(new JobKey(name).toString()));
+    }
+
+    public static class AdHocJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context)
+        {
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestCancellation
+{
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Before
+    public void setUp()
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(PollingJob.class);
+                    binder.bind(SleepingJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testCancelPlainJob() throws Exception
+    {
+        PollingJob.reset();
+        AdHocQuartzJob.forClass(PollingJob.class).name("polling").submit(scheduler);
+        Assert.assertTrue(PollingJob.STARTED.await(10, TimeUnit.SECONDS));
+
+        Assert.assertTrue(scheduler.interrupt(new JobKey("polling")));
+        Assert.assertTrue(PollingJob.DONE.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(CancellationToken.Reason.INTERRUPTED, PollingJob.reason);
+    }
+
+    @Test
+    public void testTimeout() throws Exception
+    {
+        PollingJob.reset();
+        AdHocQuartzJob.forClass(PollingJob.class).name("timeout").timeout(Duration.millis(200L)).submit(scheduler);
+
+        Assert.assertTrue(PollingJob.DONE.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(CancellationToken.Reason.TIMED_OUT, PollingJob.reason);
+    }
+
+    @Test
+    public void testInterruptThread() throws Exception
+    {
+        SleepingJob.DONE = new CountDownLatch(1);
+        AdHocQuartzJob.forClass(SleepingJob.class).name("sleeping").timeout(Duration.millis(200L)).interruptThread(true).submit(scheduler);
+
+        Assert.assertTrue(SleepingJob.DONE.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(SleepingJob.interrupted);
+    }
+
+    public static class PollingJob implements Job
+    {
+        static volatile CountDownLatch STARTED;
+        static volatile CountDownLatch DONE;
+        static volatile CancellationToken.Reason reason;
+
+        static void reset()
+        {
+            STARTED = new CountDownLatch(1);
+            DONE = new CountDownLatch(1);
+            reason = null;
+        }
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            final CancellationToken token = CancellationToken.forContext(context);
+            STARTED.countDown();
+            try {
+                while (!token.isCancelled()) {
+                    Thread.sleep(10L);
+                }
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            reason = token.getReason();
+            DONE.countDown();
+        }
+    }
+
+    public static class SleepingJob implements Job
+    {
+        static volatile CountDownLatch DONE;
+        static volatile boolean interrupted = false;
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            try {
+                Thread.sleep(10000L);
+            }
+            catch (InterruptedException ie) {
+                interrupted = true;
+            }
+            DONE.countDown();
+        }
+    }
+}
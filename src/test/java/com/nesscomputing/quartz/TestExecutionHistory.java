@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.URI;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestExecutionHistory
+{
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Inject
+    private ExecutionHistory executionHistory;
+
+    private static ExecutionHistory getHistory(final int size, final int jobs)
+    {
+        return new ExecutionHistory(new NessQuartzConfig() {
+            @Override
+            public int getHistorySize()
+            {
+                return size;
+            }
+
+            @Override
+            public int getHistoryJobs()
+            {
+                return jobs;
+            }
+
+            @Override
+            public String getNodeId()
+            {
+                return "node-1";
+            }
+        });
+    }
+
+    @Test
+    public void testRingBuffer()
+    {
+        final ExecutionHistory history = getHistory(3, 10);
+        final JobKey jobKey = new JobKey("ring");
+        for (int i = 0; i < 5; i++) {
+            history.record(jobKey, new Date(i), new Date(i), i, ExecutionHistory.Outcome.SUCCESS, null);
+        }
+
+        final List<ExecutionHistory.Execution> executions = history.getExecutions(jobKey);
+        Assert.assertEquals(3, executions.size());
+        Assert.assertEquals(4L, executions.get(0).getDurationMillis());
+        Assert.assertEquals(2L, executions.get(2).getDurationMillis());
+        Assert.assertEquals("node-1", executions.get(0).getNodeId());
+    }
+
+    @Test
+    public void testBoundedJobs()
+    {
+        final ExecutionHistory history = getHistory(3, 2);
+        for (int i = 0; i < 10; i++) {
+            history.record(new JobKey("job-" + i), new Date(), new Date(), 1L, ExecutionHistory.Outcome.SUCCESS, null);
+        }
+        Assert.assertTrue(history.getExecutions(new JobKey("job-0")).isEmpty());
+        Assert.assertEquals(1, history.getExecutions(new JobKey("job-9")).size());
+    }
+
+    @Test
+    public void testDisabled()
+    {
+        final ExecutionHistory history = getHistory(0, 10);
+        history.record(new JobKey("off"), new Date(), new Date(), 1L, ExecutionHistory.Outcome.SUCCESS, null);
+        Assert.assertTrue(history.getExecutions(new JobKey("off")).isEmpty());
+    }
+
+    @Test
+    public void testRecorded() throws Exception
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(FailingJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        try {
+            AdHocQuartzJob.forClass(FailingJob.class).name("failing").submit(scheduler);
+            Assert.assertTrue(FailingJob.DONE.await(10, TimeUnit.SECONDS));
+
+            List<ExecutionHistory.Execution> executions = executionHistory.getExecutions(new JobKey("failing"));
+            for (int i = 0; i < 100 && executions.isEmpty(); i++) {
+                Thread.sleep(10L);
+                executions = executionHistory.getExecutions(new JobKey("failing"));
+            }
+
+            Assert.assertEquals(1, executions.size());
+            Assert.assertEquals(ExecutionHistory.Outcome.FAILED, executions.get(0).getOutcome());
+            Assert.assertNotNull(executions.get(0).getFireTime());
+            Assert.assertTrue(executions.get(0).getError().contains("broken"));
+        }
+        finally {
+            lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        }
+    }
+
+    public static class FailingJob implements Job
+    {
+        static final CountDownLatch DONE = new CountDownLatch(1);
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            DONE.countDown();
+            throw new JobExecutionException("broken");
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+import org.quartz.CronExpression;
+import org.quartz.Trigger;
+import org.quartz.spi.OperableTrigger;
+
+import com.nesscomputing.quartz.TestQuartzJobBuilder.DummyJob;
+
+public class TestFireSmoothing
+{
+    @Test
+    public void testOffsetIsStable()
+    {
+        final long offset = FireSmoothing.getOffset("job", "node-1", 60000L);
+        Assert.assertTrue(offset >= 0L && offset < 60000L);
+        Assert.assertEquals(offset, FireSmoothing.getOffset("job", "node-1", 60000L));
+        Assert.assertEquals(0L, FireSmoothing.getOffset("job", "node-1", 0L));
+    }
+
+    @Test
+    public void testOffsetsSpread()
+    {
+        boolean spread = false;
+        final long offset = FireSmoothing.getOffset("job", "node-0", 60000L);
+        for (int i = 1; i < 10; i++) {
+            spread |= FireSmoothing.getOffset("job", "node-" + i, 60000L) != offset;
+        }
+        Assert.assertTrue(spread);
+    }
+
+    @Test
+    public void testSimpleTrigger()
+    {
+        final QuartzJobBinder job = new QuartzJobBinder(null, DummyJob.class).name("simple").delay(Duration.standardMinutes(1)).jitter(Duration.standardSeconds(30));
+        job.defaultJitter(null, "node-1");
+
+        final long offset = FireSmoothing.getOffset("simple", "node-1", 30000L);
+        final long before = System.currentTimeMillis();
+        final Trigger trigger = job.getTrigger();
+        final long after = System.currentTimeMillis();
+
+        Assert.assertTrue(trigger.getStartTime().getTime() >= before + 60000L + offset);
+        Assert.assertTrue(trigger.getStartTime().getTime() <= after + 60000L + offset);
+    }
+
+    @Test
+    public void testCronTrigger() throws Exception
+    {
+        final QuartzJobBinder job = new QuartzJobBinder(null, DummyJob.class).name("cron").cronExpression("0 * * * * ?");
+        job.defaultJitter(Duration.standardSeconds(45), "node-1");
+
+        final long offset = FireSmoothing.getOffset("cron", "node-1", 45000L);
+        final OperableTrigger trigger = (OperableTrigger) job.getTrigger();
+        final Date firstFireTime = trigger.computeFirstFireTime(null);
+
+        final Date unshifted = new CronExpression("0 * * * * ?").getNextValidTimeAfter(new DateTime(firstFireTime).minusMinutes(1).toDate());
+        Assert.assertEquals(offset, firstFireTime.getTime() - unshifted.getTime());
+    }
+
+    @Test
+    public void testExplicitJitterWins()
+    {
+        final QuartzJobBinder job = new QuartzJobBinder(null, DummyJob.class).name("explicit").jitter(Duration.standardSeconds(10));
+        job.defaultJitter(Duration.standardHours(1), "node-1");
+        Assert.assertEquals(FireSmoothing.getOffset("explicit", "node-1", 10000L), job.getFireOffset());
+    }
+
+    @Test
+    public void testShiftedTimeZoneRawOffset()
+    {
+        final TimeZone zone = FireSmoothing.shift(TimeZone.getTimeZone("UTC"), 1000L);
+        zone.setRawOffset(3600000);
+        Assert.assertEquals(3600000, zone.getRawOffset());
+    }
+
+    @Test
+    public void testClusterMonitor()
+    {
+        final QuartzMetrics.Histogram histogram = new LockFreeQuartzMetrics().histogram("test", "test", "fire-cluster-size");
+        final FireSmoothing.ClusterMonitor clusterMonitor = new FireSmoothing.ClusterMonitor(histogram);
+
+        clusterMonitor.fired(10000L);
+        clusterMonitor.fired(10500L);
+        clusterMonitor.fired(10999L);
+        Assert.assertEquals(0L, histogram.getCount());
+
+        // The cluster of second 10 is reported with the first fire of a later second.
+        clusterMonitor.fired(11000L);
+        Assert.assertEquals(1L, histogram.getCount());
+        Assert.assertEquals(3.0, histogram.getQuantile(0.5), 0.5);
+
+        clusterMonitor.flush();
+        Assert.assertEquals(2L, histogram.getCount());
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+
+import com.google.common.collect.Lists;
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestIncrementalQuartzJob
+{
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Before
+    public void setUp()
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(CountingJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testResume() throws Exception
+    {
+        final JobKey jobKey = new JobKey("counting");
+
+        CountingJob.DONE = new CountDownLatch(1);
+        AdHocQuartzJob.forClass(CountingJob.class).name("counting").submit(scheduler);
+        Assert.assertTrue(CountingJob.DONE.await(10, TimeUnit.SECONDS));
+
+        // Interrupted after the chunk ending at 40.
+        Assert.assertEquals(40, CountingJob.PROCESSED.size());
+        Assert.assertEquals(40, scheduler.getJobDetail(jobKey).getJobDataMap().get(JobDataCheckpointStore.CURSOR_KEY));
+
+        CountingJob.DONE = new CountDownLatch(1);
+        scheduler.triggerJob(jobKey);
+        Assert.assertTrue(CountingJob.DONE.await(10, TimeUnit.SECONDS));
+
+        // Every element exactly once, checkpoint gone.
+        Assert.assertEquals(100, CountingJob.PROCESSED.size());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(i, CountingJob.PROCESSED.get(i).intValue());
+        }
+        Assert.assertFalse(scheduler.getJobDetail(jobKey).getJobDataMap().containsKey(JobDataCheckpointStore.CURSOR_KEY));
+    }
+
+    public static class CountingJob extends IncrementalQuartzJob<Integer>
+    {
+        static final List<Integer> PROCESSED = Lists.newCopyOnWriteArrayList();
+        static volatile CountDownLatch DONE;
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            try {
+                super.execute(context);
+            }
+            finally {
+                DONE.countDown();
+            }
+        }
+
+        @Override
+        protected Integer processChunk(final JobExecutionContext context, final Integer cursor, final int chunkSize) throws Exception
+        {
+            final int start = cursor == null ? 0 : cursor;
+            if (start >= 100) {
+                return null;
+            }
+
+            final int end = Math.min(100, start + chunkSize);
+            for (int i = start; i < end; i++) {
+                PROCESSED.add(i);
+            }
+
+            if (end == 40 && PROCESSED.size() == 40) {
+                interrupt();
+            }
+            return end;
+        }
+
+        @Override
+        protected int getChunkSize()
+        {
+            return 10;
+        }
+    }
+}
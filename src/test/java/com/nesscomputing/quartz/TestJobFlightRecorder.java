@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Scheduler;
+
+import com.google.common.collect.Sets;
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.TestQuartzJobBuilder.DummyJob;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestJobFlightRecorder
+{
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Inject
+    private JobFlightRecorder jobFlightRecorder;
+
+    private Class<?> recordingClass = null;
+
+    @Before
+    public void setUp()
+    {
+        try {
+            recordingClass = Class.forName("jdk.jfr.Recording");
+        }
+        catch (ClassNotFoundException cnfe) {
+            Assume.assumeNoException(cnfe);
+        }
+
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz", "jfr");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(DummyJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        if (lifecycle != null) {
+            lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        }
+    }
+
+    @Test
+    public void testEvents() throws Exception
+    {
+        Assert.assertTrue(jobFlightRecorder.isEnabled());
+
+        final Object recording = recordingClass.getConstructor().newInstance();
+        recordingClass.getMethod("enable", String.class).invoke(recording, JobFlightRecorder.INSTANTIATION_EVENT);
+        recordingClass.getMethod("enable", String.class).invoke(recording, JobFlightRecorder.EXECUTION_EVENT);
+        recordingClass.getMethod("enable", String.class).invoke(recording, JobFlightRecorder.SCHEDULING_EVENT);
+        recordingClass.getMethod("start").invoke(recording);
+
+        AdHocQuartzJob.forClass(DummyJob.class).name("recorded").submit(scheduler);
+        Thread.sleep(500L);
+
+        recordingClass.getMethod("stop").invoke(recording);
+        final File file = File.createTempFile("ness-quartz", ".jfr");
+        file.deleteOnExit();
+        recordingClass.getMethod("dump", Path.class).invoke(recording, file.toPath());
+        recordingClass.getMethod("close").invoke(recording);
+
+        final Set<String> eventNames = Sets.newHashSet();
+        final List<?> events = (List<?>) Class.forName("jdk.jfr.consumer.RecordingFile").getMethod("readAllEvents", Path.class).invoke(null, file.toPath());
+        for (final Object event : events) {
+            final Object eventType = event.getClass().getMethod("getEventType").invoke(event);
+            final String jobKey = (String) event.getClass().getMethod("getString", String.class).invoke(event, "jobKey");
+            if ("DEFAULT.recorded".equals(jobKey)) {
+                eventNames.add((String) eventType.getClass().getMethod("getName").invoke(eventType));
+            }
+            if (JobFlightRecorder.EXECUTION_EVENT.equals(eventType.getClass().getMethod("getName").invoke(eventType))) {
+                Assert.assertEquals("SUCCESS", event.getClass().getMethod("getString", String.class).invoke(event, "outcome"));
+            }
+        }
+
+        Assert.assertEquals(Sets.newHashSet(JobFlightRecorder.INSTANTIATION_EVENT, JobFlightRecorder.EXECUTION_EVENT, JobFlightRecorder.SCHEDULING_EVENT), eventNames);
+    }
+
+    @Test
+    public void testNotRecording() throws Exception
+    {
+        Assert.assertNull(jobFlightRecorder.beginExecution());
+    }
+}
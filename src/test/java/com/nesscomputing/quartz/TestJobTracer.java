@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.InMemoryJobTracer.RecordedSpan;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestJobTracer
+{
+    private static volatile CountDownLatch latch = null;
+
+    private final InMemoryJobTracer jobTracer = new InMemoryJobTracer();
+
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Before
+    public void setUp()
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(JobTracer.class).toInstance(jobTracer);
+                    binder.bind(ParentJob.class);
+                    binder.bind(ChildJob.class);
+                    binder.bind(FailingJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testPropagation() throws Exception
+    {
+        latch = new CountDownLatch(1);
+        final String rootContext = InMemoryJobTracer.newRootContext();
+
+        AdHocQuartzJob.forClass(ParentJob.class).name("parent").traceContext(rootContext).submit(scheduler);
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100L);
+
+        final List<RecordedSpan> spans = jobTracer.getSpans();
+        Assert.assertEquals(2, spans.size());
+        final RecordedSpan parent = spans.get(0).getJobKey().getName().equals("parent") ? spans.get(0) : spans.get(1);
+        final RecordedSpan child = parent == spans.get(0) ? spans.get(1) : spans.get(0);
+
+        Assert.assertEquals(new JobKey("parent"), parent.getJobKey());
+        Assert.assertEquals(new JobKey("child"), child.getJobKey());
+        Assert.assertEquals(rootContext.substring(3, 35), parent.getTraceId());
+        Assert.assertEquals(rootContext.substring(36, 52), parent.getParentSpanId());
+        Assert.assertEquals(parent.getTraceId(), child.getTraceId());
+        Assert.assertEquals(parent.getSpanId(), child.getParentSpanId());
+        Assert.assertEquals(ExecutionHistory.Outcome.SUCCESS, parent.getOutcome());
+        Assert.assertEquals(ExecutionHistory.Outcome.SUCCESS, child.getOutcome());
+        Assert.assertTrue(parent.getQueueDelayMillis() >= 0L);
+    }
+
+    @Test
+    public void testFailed() throws Exception
+    {
+        AdHocQuartzJob.forClass(FailingJob.class).name("failing").submit(scheduler);
+
+        for (int i = 0; i < 100 && jobTracer.getSpans().isEmpty(); i++) {
+            Thread.sleep(20L);
+        }
+
+        final List<RecordedSpan> spans = jobTracer.getSpans();
+        Assert.assertEquals(1, spans.size());
+        Assert.assertNull(spans.get(0).getParentSpanId());
+        Assert.assertEquals(ExecutionHistory.Outcome.FAILED, spans.get(0).getOutcome());
+        Assert.assertTrue(spans.get(0).getError() instanceof JobExecutionException);
+    }
+
+    public static class ParentJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            try {
+                AdHocQuartzJob.forClass(ChildJob.class).name("child").submit(context.getScheduler());
+            }
+            catch (SchedulerException se) {
+                throw new JobExecutionException(se);
+            }
+        }
+    }
+
+    public static class ChildJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context)
+        {
+            latch.countDown();
+        }
+    }
+
+    public static class FailingJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            throw new JobExecutionException("failed");
+        }
+    }
+}
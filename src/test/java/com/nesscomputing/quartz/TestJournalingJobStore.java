@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobBuilder;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.JobPersistenceException;
+import org.quartz.SimpleScheduleBuilder;
+import org.quartz.TriggerBuilder;
+import org.quartz.TriggerKey;
+import org.quartz.impl.matchers.GroupMatcher;
+import org.quartz.simpl.CascadingClassLoadHelper;
+import org.quartz.spi.ClassLoadHelper;
+import org.quartz.spi.OperableTrigger;
+import org.quartz.spi.SchedulerSignaler;
+
+import com.google.common.io.Files;
+import com.nesscomputing.quartz.TestQuartzJobBuilder.DummyJob;
+
+public class TestJournalingJobStore
+{
+    private File directory = null;
+    private ClassLoadHelper loadHelper = null;
+
+    @Before
+    public void setUp()
+    {
+        directory = Files.createTempDir();
+        loadHelper = new CascadingClassLoadHelper();
+        loadHelper.initialize();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        Assert.assertNotNull(directory);
+        for (File file : directory.listFiles()) {
+            Assert.assertTrue(file.delete());
+        }
+        Assert.assertTrue(directory.delete());
+        directory = null;
+    }
+
+    @Test
+    public void testReplay() throws Exception
+    {
+        JournalingJobStore store = createStore();
+        store.storeJobAndTrigger(jobDetail("kept", DummyJob.class), trigger("kept-trigger", "kept"));
+        store.storeJobAndTrigger(jobDetail("removed", DummyJob.class), trigger("removed-trigger", "removed"));
+        store.removeJob(JobKey.jobKey("removed"));
+        store.replaceTrigger(TriggerKey.triggerKey("kept-trigger"), trigger("replaced-trigger", "kept"));
+        store.shutdown();
+
+        store = createStore();
+        Assert.assertTrue(store.checkExists(JobKey.jobKey("kept")));
+        Assert.assertFalse(store.checkExists(JobKey.jobKey("removed")));
+        Assert.assertFalse(store.checkExists(TriggerKey.triggerKey("kept-trigger")));
+        Assert.assertTrue(store.checkExists(TriggerKey.triggerKey("replaced-trigger")));
+        store.shutdown();
+    }
+
+    @Test
+    public void testSnapshot() throws Exception
+    {
+        JournalingJobStore store = createStore();
+        for (int i = 0; i < 100; i++) {
+            store.storeJobAndTrigger(jobDetail("job-" + i, DummyJob.class), trigger("trigger-" + i, "job-" + i));
+        }
+        store.compact();
+        for (int i = 0; i < 50; i++) {
+            store.removeJob(JobKey.jobKey("job-" + i));
+        }
+        store.shutdown();
+
+        Assert.assertTrue(new File(directory, "snapshot.dat").exists());
+
+        store = createStore();
+        final Set<JobKey> jobKeys = store.getJobKeys(GroupMatcher.jobGroupStartsWith(""));
+        Assert.assertEquals(50, jobKeys.size());
+        Assert.assertTrue(jobKeys.contains(JobKey.jobKey("job-99")));
+        Assert.assertFalse(jobKeys.contains(JobKey.jobKey("job-0")));
+        store.shutdown();
+    }
+
+    @Test
+    public void testBoundJobsAreNotJournaled() throws Exception
+    {
+        final QuartzJobBinder binder = new QuartzJobBinder(null, DummyJob.class).name("bound");
+
+        final JobDetail jobDetail = binder.getJobDetail();
+
+        JournalingJobStore store = createStore();
+        store.storeJobAndTrigger(jobDetail, boundTrigger(binder, jobDetail));
+        store.shutdown();
+
+        store = createStore();
+        Assert.assertFalse(store.checkExists(JobKey.jobKey("bound")));
+        store.shutdown();
+    }
+
+    @Test
+    public void testBoundJobReschedulesAreJournaled() throws Exception
+    {
+        final QuartzJobBinder binder = new QuartzJobBinder(null, DummyJob.class).name("rescheduled");
+        final JobDetail jobDetail = binder.getJobDetail();
+
+        JournalingJobStore store = createStore();
+        store.storeJobAndTrigger(jobDetail, boundTrigger(binder, jobDetail));
+
+        final OperableTrigger rescheduled = (OperableTrigger) TriggerBuilder.newTrigger()
+            .forJob(jobDetail.getKey())
+            .startAt(new DateTime().plusDays(1).toDate())
+            .withSchedule(SimpleScheduleBuilder.repeatHourlyForever())
+            .build();
+        final TriggerKey boundKey = TriggerKey.triggerKey("rescheduled");
+        Assert.assertTrue(store.replaceTrigger(boundKey, rescheduled));
+        store.shutdown();
+
+        for (int i = 0; i < 2; i++) {
+            store = createStore();
+            Assert.assertFalse(store.checkExists(rescheduled.getKey()));
+
+            // Registered again on every start, just like SchedulerProvider does.
+            store.storeJobAndTrigger(jobDetail, boundTrigger(binder, jobDetail));
+            Assert.assertFalse(store.checkExists(boundKey));
+            Assert.assertEquals(rescheduled.getStartTime(), store.retrieveTrigger(rescheduled.getKey()).getStartTime());
+            Assert.assertEquals(1, store.getTriggersForJob(jobDetail.getKey()).size());
+
+            // The second start reads the override from the snapshot.
+            store.compact();
+            store.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnserializableJobIsNotStored() throws Exception
+    {
+        final JobDetail jobDetail = jobDetail("unserializable", DummyJob.class);
+        jobDetail.getJobDataMap().put("data", new Object());
+
+        final JournalingJobStore store = createStore();
+        Assert.assertTrue(store.supportsPersistence());
+        try {
+            store.storeJobAndTrigger(jobDetail, trigger("unserializable-trigger", "unserializable"));
+            Assert.fail();
+        }
+        catch (JobPersistenceException jpe) {
+            // expected
+        }
+        Assert.assertFalse(store.checkExists(JobKey.jobKey("unserializable")));
+        Assert.assertFalse(store.checkExists(TriggerKey.triggerKey("unserializable-trigger")));
+        store.shutdown();
+    }
+
+    @Test
+    public void testFireTimesAreJournaled() throws Exception
+    {
+        JournalingJobStore store = createStore();
+        final OperableTrigger trigger = trigger("fired-trigger", "fired");
+        final Date firstFireTime = trigger.computeFirstFireTime(null);
+        store.storeJobAndTrigger(jobDetail("fired", DummyJob.class), trigger);
+
+        final List<OperableTrigger> triggers = store.acquireNextTriggers(firstFireTime.getTime(), 1, 0L);
+        Assert.assertEquals(1, triggers.size());
+        store.triggersFired(triggers);
+        store.commit();
+        store.shutdown();
+
+        store = createStore();
+        Assert.assertTrue(store.retrieveTrigger(TriggerKey.triggerKey("fired-trigger")).getNextFireTime().after(firstFireTime));
+        store.shutdown();
+    }
+
+    private JournalingJobStore createStore()
+    {
+        final JournalingJobStore store = new JournalingJobStore();
+        store.setJournalDirectory(directory.getAbsolutePath());
+        store.setJournalSize(1024L * 1024L);
+        store.initialize(loadHelper, (SchedulerSignaler) null);
+        return store;
+    }
+
+    private static OperableTrigger boundTrigger(final QuartzJobBinder binder, final JobDetail jobDetail)
+    {
+        final OperableTrigger trigger = (OperableTrigger) binder.getTrigger();
+        trigger.setJobKey(jobDetail.getKey());
+        return trigger;
+    }
+
+    private static JobDetail jobDetail(final String name, final Class<? extends Job> jobClass)
+    {
+        return JobBuilder.newJob(jobClass).withIdentity(name).storeDurably().build();
+    }
+
+    private static OperableTrigger trigger(final String name, final String jobName)
+    {
+        return (OperableTrigger) TriggerBuilder.newTrigger()
+            .withIdentity(name)
+            .forJob(jobName)
+            .startAt(new DateTime().plusHours(1).toDate())
+            .withSchedule(SimpleScheduleBuilder.repeatMinutelyForever())
+            .build();
+    }
+}
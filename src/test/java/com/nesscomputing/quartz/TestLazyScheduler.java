@@ -0,0 +1,214 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.Scheduler;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.Scopes;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.TestAdHocJob.Counter;
+import com.nesscomputing.quartz.TestAdHocJob.CounterJob;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestLazyScheduler
+{
+    private List<Module> modules;
+
+    @Before
+    public void setup()
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz", "lazy");
+
+        modules = Lists.newArrayList();
+        modules.add(new NessQuartzModule(config));
+        modules.add(new LifecycleModule());
+        modules.add(new TestingQuartzModule(config));
+    }
+
+    @After
+    public void teardown()
+    {
+        Assert.assertNotNull(modules);
+        modules = null;
+    }
+
+    @Test
+    public void testStartWhenDue() throws Exception
+    {
+        modules.add(new AbstractModule() {
+            @Override
+            public void configure()
+            {
+                bind(Counter.class).in(Scopes.SINGLETON);
+                bind(CounterJob.class);
+                QuartzJobBinder.bindQuartzJob(binder(), CounterJob.class).delay(Duration.standardSeconds(1)).enabled(true).register();
+            }
+        });
+
+        final Injector injector = Guice.createInjector(modules);
+        final Scheduler scheduler = injector.getInstance(Scheduler.class);
+        final Lifecycle lifecycle = injector.getInstance(Lifecycle.class);
+
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        Thread.sleep(200L);
+        Assert.assertFalse(LazyScheduler.isMaterialized(scheduler));
+
+        Thread.sleep(1500L);
+        Assert.assertTrue(LazyScheduler.isMaterialized(scheduler));
+        Assert.assertTrue(scheduler.isStarted());
+
+        Thread.sleep(1200L);
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        Assert.assertTrue(scheduler.isShutdown());
+        Assert.assertEquals(1L, injector.getInstance(Counter.class).getCount());
+    }
+
+    @Test
+    public void testFirstFireTime() throws Exception
+    {
+        modules.add(new AbstractModule() {
+            @Override
+            public void configure()
+            {
+                bind(FireTimes.class).in(Scopes.SINGLETON);
+                bind(FireTimeJob.class);
+                QuartzJobBinder.bindQuartzJob(binder(), FireTimeJob.class).name("delayed").delay(Duration.standardSeconds(1)).enabled(true).register();
+                QuartzJobBinder.bindQuartzJob(binder(), FireTimeJob.class).name("cron").cronExpression("0/2 * * * * ?").enabled(true).register();
+            }
+        });
+
+        final Injector injector = Guice.createInjector(modules);
+        final Scheduler scheduler = injector.getInstance(Scheduler.class);
+        final Lifecycle lifecycle = injector.getInstance(Lifecycle.class);
+
+        final long startTime = System.currentTimeMillis();
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+
+        Thread.sleep(2500L);
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        Assert.assertTrue(LazyScheduler.isMaterialized(scheduler));
+
+        final FireTimes fireTimes = injector.getInstance(FireTimes.class);
+        final Long delayedFireTime = fireTimes.getFirst("delayed");
+        Assert.assertNotNull(delayedFireTime);
+        Assert.assertTrue(delayedFireTime >= startTime + 1000L);
+        Assert.assertTrue(delayedFireTime < startTime + 1500L);
+
+        // A cron trigger may fire for the current second, so its first fire time can be slightly before the start.
+        final Long cronFireTime = fireTimes.getFirst("cron");
+        Assert.assertNotNull(cronFireTime);
+        Assert.assertTrue(cronFireTime >= startTime - 1000L);
+        Assert.assertTrue(cronFireTime <= startTime + 2000L);
+    }
+
+    @Test
+    public void testStartOnSubmit() throws Exception
+    {
+        modules.add(new AbstractModule() {
+            @Override
+            public void configure()
+            {
+                bind(Counter.class).in(Scopes.SINGLETON);
+                bind(CounterJob.class);
+            }
+        });
+
+        final Injector injector = Guice.createInjector(modules);
+        final Scheduler scheduler = injector.getInstance(Scheduler.class);
+        final Lifecycle lifecycle = injector.getInstance(Lifecycle.class);
+
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        Thread.sleep(200L);
+        Assert.assertFalse(LazyScheduler.isMaterialized(scheduler));
+        Assert.assertFalse(scheduler.isStarted());
+
+        AdHocQuartzJob.forClass(CounterJob.class).submit(scheduler);
+        Assert.assertTrue(LazyScheduler.isMaterialized(scheduler));
+
+        Thread.sleep(500L);
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        Assert.assertTrue(scheduler.isShutdown());
+        Assert.assertEquals(1L, injector.getInstance(Counter.class).getCount());
+    }
+
+    @Test
+    public void testNeverStarted() throws Exception
+    {
+        final Injector injector = Guice.createInjector(modules);
+        final Scheduler scheduler = injector.getInstance(Scheduler.class);
+        final Lifecycle lifecycle = injector.getInstance(Lifecycle.class);
+
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+
+        Assert.assertFalse(LazyScheduler.isMaterialized(scheduler));
+        Assert.assertTrue(scheduler.isShutdown());
+    }
+
+    public static class FireTimes
+    {
+        private final ConcurrentMap<String, Long> firstFireTimes = Maps.newConcurrentMap();
+
+        public void fired(final String name, final long fireTime)
+        {
+            firstFireTimes.putIfAbsent(name, fireTime);
+        }
+
+        public Long getFirst(final String name)
+        {
+            return firstFireTimes.get(name);
+        }
+    }
+
+    public static class FireTimeJob implements Job
+    {
+        private final FireTimes fireTimes;
+
+        @Inject
+        public FireTimeJob(final FireTimes fireTimes)
+        {
+            this.fireTimes = fireTimes;
+        }
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            fireTimes.fired(context.getJobDetail().getKey().getName(), context.getScheduledFireTime().getTime());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.Date;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.EasyMockSupport;
+import org.joda.time.Duration;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.CronTrigger;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+import org.quartz.SimpleTrigger;
+import org.quartz.Trigger;
+import org.quartz.TriggerKey;
+import org.skife.config.TimeSpan;
+
+import com.nesscomputing.quartz.TestQuartzJobBuilder.DummyJob;
+
+public class TestMisfireStormGuard extends EasyMockSupport
+{
+    private MisfireStormGuard guard = null;
+
+    @Before
+    public void setUp()
+    {
+        guard = new MisfireStormGuard(new NessQuartzConfig() {
+            @Override
+            public int getMisfireStormThreshold()
+            {
+                return 2;
+            }
+
+            @Override
+            public TimeSpan getMisfireStormSpread()
+            {
+                return new TimeSpan("1s");
+            }
+        });
+    }
+
+    @Test
+    public void testMisfirePolicies()
+    {
+        Assert.assertEquals(Trigger.MISFIRE_INSTRUCTION_SMART_POLICY,
+                            new QuartzJobBinder(null, DummyJob.class).repeat(Duration.standardMinutes(1)).getTrigger().getMisfireInstruction());
+        Assert.assertEquals(SimpleTrigger.MISFIRE_INSTRUCTION_RESCHEDULE_NEXT_WITH_REMAINING_COUNT,
+                            new QuartzJobBinder(null, DummyJob.class).repeat(Duration.standardMinutes(1)).misfirePolicy(MisfirePolicy.SKIP).getTrigger().getMisfireInstruction());
+        Assert.assertEquals(SimpleTrigger.MISFIRE_INSTRUCTION_FIRE_NOW,
+                            new QuartzJobBinder(null, DummyJob.class).misfirePolicy(MisfirePolicy.FIRE_NOW).getTrigger().getMisfireInstruction());
+        Assert.assertEquals(CronTrigger.MISFIRE_INSTRUCTION_DO_NOTHING,
+                            new QuartzJobBinder(null, DummyJob.class).cronExpression("0 * * * * ?").misfirePolicy(MisfirePolicy.SKIP).getTrigger().getMisfireInstruction());
+        Assert.assertEquals(Trigger.MISFIRE_INSTRUCTION_IGNORE_MISFIRE_POLICY,
+                            new QuartzJobBinder(null, DummyJob.class).cronExpression("0 * * * * ?").misfirePolicy(MisfirePolicy.CATCH_UP).getTrigger().getMisfireInstruction());
+    }
+
+    @Test
+    public void testNoStorm() throws Exception
+    {
+        final Trigger trigger = getTrigger("single");
+        guard.triggerMisfired(trigger);
+        guard.triggerMisfired(trigger);
+
+        final JobExecutionContext context = createMock(JobExecutionContext.class);
+        EasyMock.expect(context.getScheduledFireTime()).andReturn(new Date()).anyTimes();
+        EasyMock.expect(context.getFireTime()).andReturn(new Date()).anyTimes();
+        replayAll();
+
+        Assert.assertFalse(guard.vetoJobExecution(trigger, context));
+        Assert.assertEquals(2L, guard.getMisfireCount(new JobKey("single")));
+        verifyAll();
+    }
+
+    @Test
+    public void testStorm() throws Exception
+    {
+        final Trigger first = getTrigger("first");
+        final Trigger second = getTrigger("second");
+        final Trigger third = getTrigger("third");
+        guard.triggerMisfired(first);
+        guard.triggerMisfired(second);
+        guard.triggerMisfired(third);
+
+        final Capture<Trigger> capture = new Capture<Trigger>();
+        final Scheduler scheduler = createMock(Scheduler.class);
+        final JobExecutionContext context = createMock(JobExecutionContext.class);
+        EasyMock.expect(context.getScheduler()).andReturn(scheduler).anyTimes();
+        EasyMock.expect(scheduler.checkExists(new TriggerKey(MisfireStormGuard.CATCH_UP_TRIGGER_PREFIX + "second", JobKey.DEFAULT_GROUP))).andReturn(false).once();
+        EasyMock.expect(scheduler.scheduleJob(EasyMock.capture(capture))).andReturn(new Date()).once();
+        EasyMock.expect(scheduler.checkExists(new TriggerKey(MisfireStormGuard.CATCH_UP_TRIGGER_PREFIX + "third", JobKey.DEFAULT_GROUP))).andReturn(true).once();
+        replayAll();
+
+        final long now = System.currentTimeMillis();
+
+        // The first catch-up fire runs, the next one is moved, the third is coalesced into a pending catch-up.
+        Assert.assertFalse(guard.vetoJobExecution(first, context));
+        Assert.assertTrue(guard.vetoJobExecution(second, context));
+        Assert.assertTrue(guard.vetoJobExecution(third, context));
+        verifyAll();
+
+        Assert.assertEquals(new JobKey("second"), capture.getValue().getJobKey());
+        Assert.assertTrue(capture.getValue().getStartTime().getTime() >= now + 1000L);
+        Assert.assertEquals(1L, guard.getMisfireCount(new JobKey("third")));
+        Assert.assertEquals(3, guard.getMisfireCounts().size());
+    }
+
+    @Test
+    public void testCountsAreBounded()
+    {
+        final MisfireStormGuard boundedGuard = new MisfireStormGuard(new NessQuartzConfig() {
+            @Override
+            public int getMisfireJobs()
+            {
+                return 2;
+            }
+        });
+
+        for (int i = 0; i < 10; i++) {
+            boundedGuard.triggerMisfired(getTrigger("adhoc-" + i));
+        }
+
+        Assert.assertTrue(boundedGuard.getMisfireCounts().size() <= 2);
+        Assert.assertEquals(10L, boundedGuard.getTotalMisfireCount());
+    }
+
+    private static Trigger getTrigger(final String name)
+    {
+        final QuartzJobBinder job = new QuartzJobBinder(null, DummyJob.class).name(name).repeat(Duration.standardMinutes(1));
+        return job.getTrigger().getTriggerBuilder().forJob(name).build();
+    }
+}
@@ -0,0 +1,225 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestParallelQuartzJob
+{
+    private static final List<Integer> INPUT = ImmutableList.copyOf(ContiguousSet.create(Range.closed(1, 1000), DiscreteDomain.integers()));
+
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Before
+    public void setUp()
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(SumJob.class);
+                    binder.bind(CancelledJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testSum() throws Exception
+    {
+        SumJob.reset(-1);
+        AdHocQuartzJob.forClass(SumJob.class).submit(scheduler);
+
+        Assert.assertTrue(SumJob.DONE.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(500500L, SumJob.sum);
+        Assert.assertEquals(0, SumJob.failures);
+    }
+
+    @Test
+    public void testPartialFailure() throws Exception
+    {
+        SumJob.reset(500);
+        AdHocQuartzJob.forClass(SumJob.class).submit(scheduler);
+
+        Assert.assertTrue(SumJob.DONE.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, SumJob.failures);
+        Assert.assertEquals(500500L - sum(491, 500), SumJob.sum);
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        final AdHocQuartzJob job = AdHocQuartzJob.forClass(CancelledJob.class).name("cancelled");
+        job.submit(scheduler);
+
+        Assert.assertTrue(CancelledJob.STARTED.await(10, TimeUnit.SECONDS));
+        Assert.assertTrue(scheduler.interrupt(new JobKey("cancelled")));
+
+        // The running chunks notice, the others are never started.
+        Thread.sleep(500L);
+        Assert.assertTrue(CancelledJob.processed < INPUT.size());
+        Assert.assertFalse(CancelledJob.merged);
+    }
+
+    private static long sum(final int from, final int to)
+    {
+        long sum = 0L;
+        for (int i = from; i <= to; i++) {
+            sum += i;
+        }
+        return sum;
+    }
+
+    public static class SumJob extends ParallelQuartzJob<Integer, Long>
+    {
+        static volatile CountDownLatch DONE;
+        static volatile int failAt;
+        static volatile long sum;
+        static volatile int failures;
+
+        static void reset(final int failAt)
+        {
+            SumJob.DONE = new CountDownLatch(1);
+            SumJob.failAt = failAt;
+            SumJob.sum = 0L;
+            SumJob.failures = -1;
+        }
+
+        @Override
+        protected List<Integer> getInput(final JobExecutionContext context)
+        {
+            return INPUT;
+        }
+
+        @Override
+        protected int getChunkSize()
+        {
+            return 10;
+        }
+
+        @Override
+        protected int getMaxFailedChunks()
+        {
+            return 1;
+        }
+
+        @Override
+        protected Long processChunk(final List<Integer> chunk) throws Exception
+        {
+            long chunkSum = 0L;
+            for (final Integer value : chunk) {
+                if (value == failAt) {
+                    throw new IllegalStateException("failed at " + value);
+                }
+                chunkSum += value;
+            }
+            return chunkSum;
+        }
+
+        @Override
+        protected void merge(final JobExecutionContext context, final List<Long> results, final List<Throwable> chunkFailures)
+        {
+            long total = 0L;
+            for (final Long result : results) {
+                total += result;
+            }
+            sum = total;
+            failures = chunkFailures.size();
+            DONE.countDown();
+        }
+    }
+
+    public static class CancelledJob extends ParallelQuartzJob<Integer, Integer>
+    {
+        static final CountDownLatch STARTED = new CountDownLatch(1);
+        static volatile int processed = 0;
+        static volatile boolean merged = false;
+
+        @Override
+        protected List<Integer> getInput(final JobExecutionContext context)
+        {
+            return INPUT;
+        }
+
+        @Override
+        protected int getChunkSize()
+        {
+            return 1;
+        }
+
+        @Override
+        protected Integer processChunk(final List<Integer> chunk) throws Exception
+        {
+            STARTED.countDown();
+            while (!isCancelled()) {
+                Thread.sleep(10L);
+            }
+            processed++;
+            return chunk.get(0);
+        }
+
+        @Override
+        protected void merge(final JobExecutionContext context, final List<Integer> results, final List<Throwable> failures) throws JobExecutionException
+        {
+            merged = true;
+        }
+    }
+}
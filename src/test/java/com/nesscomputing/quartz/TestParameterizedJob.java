@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.JobDetail;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerMetaData;
+import org.quartz.Trigger;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestParameterizedJob
+{
+    private Injector injector = null;
+
+    @Before
+    public void setup()
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz");
+
+        injector = Guice.createInjector(
+                        new NessQuartzModule(config),
+                        new LifecycleModule(),
+                        new TestingQuartzModule(config),
+                        new AbstractModule() {
+                            @Override
+                            public void configure() {
+                                bind(ParameterJob.class);
+                            }
+                        }
+        );
+
+        ParameterJob.PARAMETERS.set(null);
+    }
+
+    @After
+    public void teardown()
+    {
+        Assert.assertNotNull(injector);
+        injector = null;
+    }
+
+    @Test
+    public void testParametersAreNotCopied() throws Exception
+    {
+        final Scheduler scheduler = injector.getInstance(Scheduler.class);
+        final Lifecycle lifecycle = injector.getInstance(Lifecycle.class);
+
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+
+        final Parameters parameters = new Parameters("hello");
+        AdHocQuartzJob.forClass(ParameterJob.class).parameters(parameters).delay(Duration.millis(100)).submit(scheduler);
+
+        Thread.sleep(500L);
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+
+        Assert.assertSame(parameters, ParameterJob.PARAMETERS.get());
+    }
+
+    @Test
+    public void testCodecForPersistentStore() throws Exception
+    {
+        final Scheduler scheduler = EasyMock.createMock(Scheduler.class);
+        final SchedulerMetaData metaData = EasyMock.createMock(SchedulerMetaData.class);
+        final Capture<JobDetail> jobDetailCapture = new Capture<JobDetail>();
+
+        EasyMock.expect(scheduler.getMetaData()).andReturn(metaData).once();
+        EasyMock.expect(metaData.isJobStoreSupportsPersistence()).andReturn(true).once();
+        EasyMock.expect(scheduler.scheduleJob(EasyMock.capture(jobDetailCapture), EasyMock.anyObject(Trigger.class))).andReturn(null).once();
+        EasyMock.replay(scheduler, metaData);
+
+        AdHocQuartzJob.forClass(ParameterJob.class).parameters(new Parameters("world"), new ParametersCodec()).submit(scheduler);
+
+        EasyMock.verify(scheduler, metaData);
+
+        final JobDetail jobDetail = jobDetailCapture.getValue();
+        Assert.assertEquals("world", jobDetail.getJobDataMap().get(JobParameters.PARAMETERS_KEY));
+        Assert.assertEquals(ParametersCodec.class.getName(), jobDetail.getJobDataMap().get(JobParameters.CODEC_KEY));
+
+        final Object parameters = JobParameters.retrieve(jobDetail.getJobDataMap(), Guice.createInjector());
+        Assert.assertEquals("world", ((Parameters) parameters).getValue());
+    }
+
+    public static class Parameters
+    {
+        private final String value;
+
+        public Parameters(final String value)
+        {
+            this.value = value;
+        }
+
+        public String getValue()
+        {
+            return value;
+        }
+    }
+
+    public static class ParametersCodec implements JobParameterCodec<Parameters>
+    {
+        @Override
+        public Serializable encode(final Parameters parameters)
+        {
+            return parameters.getValue();
+        }
+
+        @Override
+        public Parameters decode(final Serializable encoded)
+        {
+            return new Parameters((String) encoded);
+        }
+    }
+
+    public static class ParameterJob implements ParameterizedJob<Parameters>
+    {
+        private static final AtomicReference<Parameters> PARAMETERS = new AtomicReference<Parameters>();
+
+        private Parameters parameters = null;
+
+        @Override
+        public void setParameters(final Parameters parameters)
+        {
+            this.parameters = parameters;
+        }
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            PARAMETERS.set(parameters);
+        }
+    }
+}
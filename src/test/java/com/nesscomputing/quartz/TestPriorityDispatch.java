@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.Date;
+
+import org.easymock.Capture;
+import org.easymock.EasyMock;
+import org.easymock.EasyMockSupport;
+import org.joda.time.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+import org.quartz.JobExecutionContext;
+import org.quartz.Scheduler;
+import org.quartz.Trigger;
+import org.quartz.Trigger.CompletedExecutionInstruction;
+import org.quartz.spi.OperableTrigger;
+
+import com.nesscomputing.quartz.TestQuartzJobBuilder.DummyJob;
+
+public class TestPriorityDispatch extends EasyMockSupport
+{
+    @Test
+    public void testPriority()
+    {
+        final QuartzJobBinder job = new QuartzJobBinder(null, DummyJob.class).name("prio").priority(8);
+        Assert.assertEquals(8, job.getTrigger().getPriority());
+        Assert.assertEquals(Trigger.DEFAULT_PRIORITY, new QuartzJobBinder(null, DummyJob.class).name("plain").getTrigger().getPriority());
+    }
+
+    @Test
+    public void testAging() throws Exception
+    {
+        final PriorityDispatchListener listener = new PriorityDispatchListener(1000L, 5, null);
+        final OperableTrigger trigger = getFiredTrigger(new QuartzJobBinder(null, DummyJob.class).name("aging").repeat(Duration.standardMinutes(1)));
+
+        // Waited 3.5 seconds, gains three points.
+        final Trigger agedTrigger = complete(listener, trigger, 3500L);
+        Assert.assertEquals(Trigger.DEFAULT_PRIORITY + 3, agedTrigger.getPriority());
+        Assert.assertTrue(agedTrigger.getJobDataMap().isEmpty());
+        Assert.assertEquals(trigger.getNextFireTime(), agedTrigger.getStartTime());
+
+        // Waited a long time, capped.
+        final Trigger cappedTrigger = complete(listener, fire(agedTrigger), 60000L);
+        Assert.assertEquals(Trigger.DEFAULT_PRIORITY + 5, cappedTrigger.getPriority());
+
+        // On time again, back to the original priority.
+        Assert.assertEquals(Trigger.DEFAULT_PRIORITY, complete(listener, fire(cappedTrigger), 0L).getPriority());
+    }
+
+    @Test
+    public void testUnchangedPriorityKept() throws Exception
+    {
+        final PriorityDispatchListener listener = new PriorityDispatchListener(1000L, 5, null);
+        final Trigger agedTrigger = complete(listener, getFiredTrigger(new QuartzJobBinder(null, DummyJob.class).name("steady").repeat(Duration.standardMinutes(1))), 3500L);
+
+        // Waited as long as before, the trigger keeps its aged priority and is not replaced.
+        resetAll();
+        final Scheduler scheduler = createMock(Scheduler.class);
+        final JobExecutionContext context = createMock(JobExecutionContext.class);
+        EasyMock.expect(context.getScheduler()).andReturn(scheduler).anyTimes();
+        EasyMock.expect(context.getScheduledFireTime()).andReturn(new Date(0L)).anyTimes();
+        EasyMock.expect(context.getFireTime()).andReturn(new Date(3200L)).anyTimes();
+        replayAll();
+
+        listener.triggerComplete(fire(agedTrigger), context, CompletedExecutionInstruction.NOOP);
+        verifyAll();
+    }
+
+    @Test
+    public void testOneShotIgnored() throws Exception
+    {
+        final PriorityDispatchListener listener = new PriorityDispatchListener(1000L, 5, null);
+        final OperableTrigger trigger = getFiredTrigger(new QuartzJobBinder(null, DummyJob.class).name("once"));
+
+        final Scheduler scheduler = createMock(Scheduler.class);
+        final JobExecutionContext context = createMock(JobExecutionContext.class);
+        EasyMock.expect(context.getScheduler()).andReturn(scheduler).anyTimes();
+        EasyMock.expect(context.getScheduledFireTime()).andReturn(new Date(0L)).anyTimes();
+        EasyMock.expect(context.getFireTime()).andReturn(new Date(60000L)).anyTimes();
+        replayAll();
+
+        listener.triggerComplete(trigger, context, CompletedExecutionInstruction.NOOP);
+        verifyAll();
+    }
+
+    private static OperableTrigger getFiredTrigger(final QuartzJobBinder job)
+    {
+        return fire(job.getTrigger());
+    }
+
+    private static OperableTrigger fire(final Trigger trigger)
+    {
+        final OperableTrigger firedTrigger = (OperableTrigger) trigger;
+        firedTrigger.computeFirstFireTime(null);
+        firedTrigger.triggered(null);
+        return firedTrigger;
+    }
+
+    private Trigger complete(final PriorityDispatchListener listener, final Trigger trigger, final long wait) throws Exception
+    {
+        resetAll();
+        final Date scheduled = new Date();
+        final Capture<Trigger> capture = new Capture<Trigger>();
+
+        final Scheduler scheduler = createMock(Scheduler.class);
+        final JobExecutionContext context = createMock(JobExecutionContext.class);
+        EasyMock.expect(context.getScheduler()).andReturn(scheduler).anyTimes();
+        EasyMock.expect(context.getScheduledFireTime()).andReturn(scheduled).anyTimes();
+        EasyMock.expect(context.getFireTime()).andReturn(new Date(scheduled.getTime() + wait)).anyTimes();
+        EasyMock.expect(scheduler.rescheduleJob(EasyMock.eq(trigger.getKey()), EasyMock.capture(capture))).andReturn(new Date()).once();
+        replayAll();
+
+        listener.triggerComplete(trigger, context, CompletedExecutionInstruction.NOOP);
+        verifyAll();
+
+        final Trigger result = capture.getValue();
+        Assert.assertEquals(trigger.getKey(), result.getKey());
+        return result;
+    }
+}
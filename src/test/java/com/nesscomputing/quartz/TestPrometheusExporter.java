@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Scheduler;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.TestQuartzJobBuilder.DummyJob;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestPrometheusExporter
+{
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Inject
+    private PrometheusExporter exporter;
+
+    @Inject
+    private RunningJobsIndex runningJobsIndex;
+
+    @Inject
+    private MisfireStormGuard misfireStormGuard;
+
+    @Before
+    public void setUp()
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz", "prometheus");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(DummyJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testRender() throws Exception
+    {
+        AdHocQuartzJob.forClass(DummyJob.class).name("rendered").submit(scheduler);
+        for (int i = 0; i < 100 && runningJobsIndex.getTotalCompleted() == 0L; i++) {
+            Thread.sleep(20L);
+        }
+
+        final String text = exporter.render();
+        Assert.assertTrue(text, text.contains("# TYPE ness_quartz_running_jobs gauge\nness_quartz_running_jobs 0\n"));
+        Assert.assertTrue(text, text.contains("# TYPE ness_quartz_executions_total counter\nness_quartz_executions_total 1\n"));
+        Assert.assertTrue(text, text.contains("ness_quartz_thread_pool_size 3\n"));
+        Assert.assertTrue(text, text.contains("ness_quartz_standby 0\n"));
+
+        // Ad-hoc jobs are aggregated by class.
+        Assert.assertTrue(text, text.contains("ness_quartz_job_runtime_seconds_count{job_class=\"" + DummyJob.class.getName() + "\"} "));
+        Assert.assertFalse(text, text.contains("rendered"));
+    }
+
+    @Test
+    public void testHttp() throws Exception
+    {
+        final PrometheusHttpListener listener = new PrometheusHttpListener(new InetSocketAddress("127.0.0.1", 0), exporter);
+        listener.start();
+        try {
+            exporter.refresh();
+
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + listener.getPort() + "/metrics").openConnection();
+            Assert.assertEquals(200, connection.getResponseCode());
+            Assert.assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"));
+            final InputStream is = connection.getInputStream();
+            try {
+                final String text = new String(ByteStreams.toByteArray(is), Charsets.UTF_8);
+                Assert.assertTrue(text, text.startsWith("# HELP ness_quartz_running_jobs"));
+            }
+            finally {
+                is.close();
+            }
+
+            final HttpURLConnection notFound = (HttpURLConnection) new URL("http://127.0.0.1:" + listener.getPort() + "/other").openConnection();
+            Assert.assertEquals(404, notFound.getResponseCode());
+        }
+        finally {
+            listener.stop();
+        }
+    }
+
+    @Test
+    public void testIncompleteRequestIsClosed() throws Exception
+    {
+        final PrometheusHttpListener listener = new PrometheusHttpListener(new InetSocketAddress("127.0.0.1", 0), exporter);
+        listener.start();
+        final Socket socket = new Socket("127.0.0.1", listener.getPort());
+        try {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write("GET /metrics HTTP/1.1\r\n".getBytes(Charsets.US_ASCII));
+            socket.getOutputStream().flush();
+
+            final long start = System.currentTimeMillis();
+            Assert.assertEquals(-1, socket.getInputStream().read());
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000L);
+        }
+        finally {
+            socket.close();
+            listener.stop();
+        }
+    }
+
+    @Test
+    public void testFile() throws Exception
+    {
+        final File file = File.createTempFile("ness-quartz", ".prom");
+        file.deleteOnExit();
+
+        final PrometheusExporter fileExporter = new PrometheusExporter(scheduler, runningJobsIndex, misfireStormGuard, new NessQuartzConfig() {
+            @Override
+            public String getPrometheusFile()
+            {
+                return file.getPath();
+            }
+        });
+
+        fileExporter.refresh();
+        final String text = new String(Files.readAllBytes(file.toPath()), Charsets.UTF_8);
+        Assert.assertTrue(text, text.startsWith("# HELP ness_quartz_running_jobs"));
+        Assert.assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Arrays;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobPersistenceException;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerListener;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestQuartzHealthCheck
+{
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Inject
+    private QuartzHealthCheck healthCheck;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz", "health");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(BusyJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+
+        // The scheduler starts on its own thread.
+        for (int i = 0; i < 100 && healthCheck.getSchedulerState() != QuartzHealthCheck.State.STARTED; i++) {
+            Thread.sleep(10L);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        Assert.assertEquals(QuartzHealthCheck.State.SHUT_DOWN, healthCheck.getSchedulerState());
+        Assert.assertFalse(healthCheck.isHealthy());
+    }
+
+    @Test
+    public void testHealthy() throws Exception
+    {
+        Assert.assertTrue(Arrays.toString(healthCheck.getProblems()), healthCheck.isHealthy());
+        Assert.assertEquals(QuartzHealthCheck.State.STARTED, healthCheck.getSchedulerState());
+
+        final ObjectName objectName = new ObjectName(QuartzJmxTrigger.HEALTH_KEY);
+        Assert.assertEquals(Boolean.TRUE, mbeanServer.getAttribute(objectName, "Healthy"));
+        Assert.assertEquals("STARTED", mbeanServer.getAttribute(objectName, "State"));
+
+        scheduler.standby();
+        Assert.assertFalse(healthCheck.isHealthy());
+        Assert.assertEquals(Boolean.FALSE, mbeanServer.getAttribute(objectName, "Healthy"));
+        Assert.assertEquals("STANDBY", mbeanServer.getAttribute(objectName, "State"));
+
+        scheduler.start();
+        Assert.assertTrue(healthCheck.isHealthy());
+    }
+
+    @Test
+    public void testSaturatedAndLagging() throws Exception
+    {
+        AdHocQuartzJob.forClass(BusyJob.class).name("busy").submit(scheduler);
+        AdHocQuartzJob.forClass(BusyJob.class).name("waiting").submit(scheduler);
+
+        for (int i = 0; i < 100 && !healthCheck.isSaturated(); i++) {
+            Thread.sleep(10L);
+        }
+        Assert.assertTrue(healthCheck.isSaturated());
+        Assert.assertEquals(1.0, healthCheck.getPoolUtilization(), 0.0);
+        Assert.assertFalse(healthCheck.isHealthy());
+
+        // The second job starts once the first is done, far later than the lag limit.
+        for (int i = 0; i < 100 && !healthCheck.isLagging(); i++) {
+            Thread.sleep(10L);
+        }
+        Assert.assertTrue(healthCheck.isLagging());
+        Assert.assertTrue(healthCheck.getMaxLagMillis() > 100L);
+        Assert.assertTrue(Arrays.toString(healthCheck.getProblems()), healthCheck.getProblems()[healthCheck.getProblems().length - 1].startsWith("trigger lag"));
+    }
+
+    @Test
+    public void testJobStore() throws Exception
+    {
+        for (final SchedulerListener listener : scheduler.getListenerManager().getSchedulerListeners()) {
+            listener.schedulerError("An error occurred while scanning for the next triggers to fire.", new JobPersistenceException("database is down"));
+        }
+        Assert.assertFalse(healthCheck.isJobStoreReachable());
+        Assert.assertFalse(healthCheck.isHealthy());
+        Assert.assertTrue(Arrays.toString(healthCheck.getProblems()), healthCheck.getProblems()[0].contains("database is down"));
+
+        // The next probe reaches the store again.
+        Thread.sleep(10L);
+        for (int i = 0; i < 100 && !healthCheck.isJobStoreReachable(); i++) {
+            Thread.sleep(10L);
+        }
+        Assert.assertTrue(healthCheck.isJobStoreReachable());
+        Assert.assertTrue(healthCheck.isHealthy());
+    }
+
+    public static class BusyJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            try {
+                Thread.sleep(300L);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
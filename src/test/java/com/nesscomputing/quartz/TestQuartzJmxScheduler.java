@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Scheduler;
+import org.quartz.Trigger.TriggerState;
+import org.quartz.TriggerKey;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.TestQuartzJobBuilder.DummyJob;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestQuartzJmxScheduler
+{
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    private ObjectName objectName = null;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(DummyJob.class);
+                    QuartzJobBinder.bindQuartzJob(binder, DummyJob.class).name("first").group("batch").delay(Duration.standardHours(1)).enabled(true).register();
+                    QuartzJobBinder.bindQuartzJob(binder, DummyJob.class).name("second").group("batch").delay(Duration.standardHours(1)).enabled(true).register();
+                    QuartzJobBinder.bindQuartzJob(binder, DummyJob.class).name("other").delay(Duration.standardHours(1)).enabled(true).register();
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        objectName = new ObjectName(QuartzJmxTrigger.SCHEDULER_KEY);
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testGroupOperations() throws Exception
+    {
+        Assert.assertEquals(2, mbeanServer.invoke(objectName, "pauseGroup", new Object [] { "batch" }, new String [] { String.class.getName() }));
+        Assert.assertEquals(TriggerState.PAUSED, scheduler.getTriggerState(new TriggerKey("first", "batch")));
+        Assert.assertEquals(TriggerState.PAUSED, scheduler.getTriggerState(new TriggerKey("second", "batch")));
+        Assert.assertEquals(TriggerState.NORMAL, scheduler.getTriggerState(new TriggerKey("other")));
+
+        Assert.assertEquals(2, mbeanServer.invoke(objectName, "resumeGroup", new Object [] { "batch" }, new String [] { String.class.getName() }));
+        Assert.assertEquals(TriggerState.NORMAL, scheduler.getTriggerState(new TriggerKey("first", "batch")));
+    }
+
+    @Test
+    public void testPatternOperations() throws Exception
+    {
+        Assert.assertEquals(2, mbeanServer.invoke(objectName, "pauseMatching", new Object [] { ".*\\.(first|other)" }, new String [] { String.class.getName() }));
+        Assert.assertEquals(TriggerState.PAUSED, scheduler.getTriggerState(new TriggerKey("first", "batch")));
+        Assert.assertEquals(TriggerState.NORMAL, scheduler.getTriggerState(new TriggerKey("second", "batch")));
+        Assert.assertEquals(TriggerState.PAUSED, scheduler.getTriggerState(new TriggerKey("other")));
+    }
+
+    @Test
+    public void testAggregates() throws Exception
+    {
+        Assert.assertEquals(0, mbeanServer.getAttribute(objectName, "RunningJobs"));
+        Assert.assertEquals(0.0, mbeanServer.getAttribute(objectName, "PoolUtilization"));
+        Assert.assertEquals(0L, mbeanServer.getAttribute(objectName, "Misfires"));
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class TestQuartzMetrics
+{
+    @Test
+    public void testLockFreeQuantiles()
+    {
+        final QuartzMetrics.Timer timer = new LockFreeQuartzMetrics().timer("group", "type", "timer");
+        for (int i = 1; i <= 1000; i++) {
+            timer.update(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+
+        Assert.assertEquals(1000L, timer.getCount());
+        Assert.assertEquals(500500.0, timer.getSumMillis(), 0.001);
+        Assert.assertEquals(500.0, timer.getQuantileMillis(0.5), 500.0 * 0.07);
+        Assert.assertEquals(990.0, timer.getQuantileMillis(0.99), 990.0 * 0.07);
+    }
+
+    @Test
+    public void testLockFreeSmallValues()
+    {
+        final QuartzMetrics.Histogram histogram = new LockFreeQuartzMetrics().histogram("group", "type", "histogram");
+        Assert.assertEquals(0.0, histogram.getQuantile(0.5), 0.0);
+        for (int i = 0; i < 10; i++) {
+            histogram.update(3L);
+        }
+        histogram.update(-1L);
+
+        Assert.assertEquals(11L, histogram.getCount());
+        Assert.assertEquals(3.0, histogram.getQuantile(0.5), 0.0);
+        Assert.assertEquals(0.0, histogram.getQuantile(0.0), 0.0);
+    }
+
+    @Test
+    public void testSameNameSameMetric()
+    {
+        final QuartzMetrics metrics = new LockFreeQuartzMetrics();
+        metrics.meter("group", "type", "meter").mark();
+        metrics.meter("group", "type", "meter").mark();
+
+        Assert.assertSame(metrics.meter("group", "type", "meter"), metrics.meter("group", "type", "meter"));
+        Assert.assertEquals(2L, metrics.meter("group", "type", "meter").getCount());
+        Assert.assertEquals(0L, metrics.meter("group", "type", "other").getCount());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testNameClash()
+    {
+        final QuartzMetrics metrics = new LockFreeQuartzMetrics();
+        metrics.meter("group", "type", "name");
+        metrics.timer("group", "type", "name");
+    }
+
+    @Test
+    public void testYammer()
+    {
+        final MetricsRegistry metricsRegistry = new MetricsRegistry();
+        final QuartzMetrics metrics = new YammerQuartzMetrics(metricsRegistry);
+
+        metrics.timer("ness.quartz.job", "statistics", "job").update(TimeUnit.MILLISECONDS.toNanos(20));
+        metrics.meter("ness.quartz.job", "deferrals", "job").mark();
+
+        final com.yammer.metrics.core.Timer timer = (com.yammer.metrics.core.Timer) metricsRegistry.allMetrics().get(new MetricName("ness.quartz.job", "statistics", "job"));
+        Assert.assertEquals(1L, timer.count());
+        Assert.assertEquals(20.0, metrics.timer("ness.quartz.job", "statistics", "job").getQuantileMillis(0.5), 0.001);
+        Assert.assertEquals(1L, metrics.meter("ness.quartz.job", "deferrals", "job").getCount());
+        metricsRegistry.shutdown();
+    }
+
+    @Test
+    public void testResolvesBuiltIn()
+    {
+        final ResolvedQuartzMetrics metrics = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure()
+            {
+                binder().requireExplicitBindings();
+                bind(ResolvedQuartzMetrics.class);
+            }
+        }).getInstance(ResolvedQuartzMetrics.class);
+
+        metrics.meter("group", "type", "meter").mark();
+        Assert.assertTrue(metrics.meter("group", "type", "meter") instanceof LockFreeQuartzMetrics.LockFreeMeter);
+    }
+
+    @Test
+    public void testResolvesBound()
+    {
+        final LockFreeQuartzMetrics bound = new LockFreeQuartzMetrics();
+        final MetricsRegistry metricsRegistry = new MetricsRegistry();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure()
+            {
+                binder().requireExplicitBindings();
+                bind(ResolvedQuartzMetrics.class);
+                bind(QuartzMetrics.class).toInstance(bound);
+                bind(MetricsRegistry.class).toInstance(metricsRegistry);
+            }
+        });
+
+        injector.getInstance(ResolvedQuartzMetrics.class).meter("group", "type", "meter").mark();
+        Assert.assertEquals(1L, bound.meter("group", "type", "meter").getCount());
+        Assert.assertTrue(metricsRegistry.allMetrics().isEmpty());
+        metricsRegistry.shutdown();
+    }
+
+    @Test
+    public void testResolvesYammer()
+    {
+        final MetricsRegistry metricsRegistry = new MetricsRegistry();
+        final Injector injector = Guice.createInjector(new AbstractModule() {
+            @Override
+            protected void configure()
+            {
+                binder().requireExplicitBindings();
+                bind(ResolvedQuartzMetrics.class);
+                bind(MetricsRegistry.class).toInstance(metricsRegistry);
+            }
+        });
+
+        injector.getInstance(ResolvedQuartzMetrics.class).meter("group", "type", "meter").mark();
+        Assert.assertTrue(metricsRegistry.allMetrics().containsKey(new MetricName("group", "type", "meter")));
+        metricsRegistry.shutdown();
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.Scheduler;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestQuartzWorkflow
+{
+    private static final List<String> EXECUTED = Lists.newCopyOnWriteArrayList();
+
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Before
+    public void setUp()
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(FirstJob.class);
+                    binder.bind(SlowJob.class);
+                    binder.bind(FastJob.class);
+                    binder.bind(LastJob.class);
+                    binder.bind(FailingJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        EXECUTED.clear();
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testDiamond() throws Exception
+    {
+        final QuartzWorkflow.Result result = QuartzWorkflow.newWorkflow("diamond")
+            .stage("first", FirstJob.class)
+            .stage("slow", SlowJob.class, "first")
+            .stage("fast", FastJob.class, "first")
+            .stage("last", LastJob.class, "slow", "fast")
+            .submit(scheduler)
+            .get(10, TimeUnit.SECONDS);
+
+        Assert.assertTrue(result.isSuccessful());
+        Assert.assertEquals("first", EXECUTED.get(0));
+        Assert.assertEquals("last", EXECUTED.get(3));
+        Assert.assertEquals(ImmutableList.of("first", "slow", "last"), result.getCriticalPath());
+        Assert.assertTrue(result.getCriticalPathTime().getMillis() >= 500L);
+        Assert.assertTrue(result.getMakespan().getMillis() >= result.getCriticalPathTime().getMillis());
+        Assert.assertEquals(4, result.getStageRuntimes().size());
+    }
+
+    @Test
+    public void testParallelStages() throws Exception
+    {
+        SlowJob.LATCH = new CountDownLatch(2);
+
+        final QuartzWorkflow.Result result = QuartzWorkflow.newWorkflow("parallel")
+            .stage("left", SlowJob.class)
+            .stage("right", SlowJob.class)
+            .submit(scheduler)
+            .get(10, TimeUnit.SECONDS);
+
+        // Both stages waited for each other, so they ran concurrently.
+        Assert.assertTrue(result.isSuccessful());
+        Assert.assertEquals(0L, SlowJob.LATCH.getCount());
+    }
+
+    @Test
+    public void testFailedStage() throws Exception
+    {
+        final QuartzWorkflow.Result result = QuartzWorkflow.newWorkflow("failing")
+            .stage("fail", FailingJob.class)
+            .stage("last", LastJob.class, "fail")
+            .submit(scheduler)
+            .get(10, TimeUnit.SECONDS);
+
+        Assert.assertFalse(result.isSuccessful());
+        Assert.assertFalse(EXECUTED.contains("last"));
+    }
+
+    @Test
+    public void testConcurrentRuns() throws Exception
+    {
+        final QuartzWorkflow workflow = QuartzWorkflow.newWorkflow("concurrent")
+            .stage("first", FirstJob.class)
+            .stage("last", LastJob.class, "first");
+
+        final ListenableFuture<QuartzWorkflow.Result> firstRun = workflow.submit(scheduler);
+        final ListenableFuture<QuartzWorkflow.Result> secondRun = workflow.submit(scheduler);
+
+        Assert.assertTrue(firstRun.get(10, TimeUnit.SECONDS).isSuccessful());
+        Assert.assertTrue(secondRun.get(10, TimeUnit.SECONDS).isSuccessful());
+        Assert.assertEquals(4, EXECUTED.size());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownDependency()
+    {
+        QuartzWorkflow.newWorkflow("broken").stage("last", LastJob.class, "first");
+    }
+
+    public static class FirstJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            EXECUTED.add("first");
+        }
+    }
+
+    public static class SlowJob implements Job
+    {
+        static volatile CountDownLatch LATCH = new CountDownLatch(0);
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            try {
+                LATCH.countDown();
+                LATCH.await(5, TimeUnit.SECONDS);
+                Thread.sleep(500L);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            EXECUTED.add("slow");
+        }
+    }
+
+    public static class FastJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            EXECUTED.add("fast");
+        }
+    }
+
+    public static class LastJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            EXECUTED.add("last");
+        }
+    }
+
+    public static class FailingJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            throw new JobExecutionException("fails");
+        }
+    }
+}
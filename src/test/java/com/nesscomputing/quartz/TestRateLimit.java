@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.joda.time.Duration;
+import org.junit.Assert;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+import org.quartz.TriggerKey;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestRateLimit
+{
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Test
+    public void testParse()
+    {
+        final RateLimit rateLimit = RateLimit.parse("10/1m");
+        Assert.assertEquals(10, rateLimit.getPermits());
+        Assert.assertEquals(Duration.standardMinutes(1), rateLimit.getPeriod());
+
+        final RateLimit copy = RateLimit.parse(rateLimit.toString());
+        Assert.assertEquals(10, copy.getPermits());
+        Assert.assertEquals(Duration.standardMinutes(1), copy.getPeriod());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testParseBroken()
+    {
+        RateLimit.parse("10");
+    }
+
+    @Test
+    public void testBurst()
+    {
+        final RateLimit.TokenBucket bucket = new RateLimit.TokenBucket(new RateLimit(3, Duration.standardHours(1)));
+        Assert.assertEquals(0L, bucket.tryAcquire());
+        Assert.assertEquals(0L, bucket.tryAcquire());
+        Assert.assertEquals(0L, bucket.tryAcquire());
+        Assert.assertTrue(bucket.tryAcquire() > 0L);
+
+        bucket.release();
+        Assert.assertEquals(0L, bucket.tryAcquire());
+    }
+
+    @Test
+    public void testIdle()
+    {
+        final RateLimit.TokenBucket bucket = new RateLimit.TokenBucket(new RateLimit(3, Duration.standardMinutes(1)));
+        Assert.assertEquals(0L, bucket.tryAcquire());
+
+        final long now = System.nanoTime();
+        Assert.assertFalse(bucket.isIdle(now));
+        Assert.assertTrue(bucket.isIdle(now + TimeUnit.MINUTES.toNanos(2)));
+    }
+
+    @Test
+    public void testGroupLimit()
+    {
+        final JobDataMap jobDataMap = new JobDataMap();
+        jobDataMap.put(RateLimit.GROUP_KEY, new RateLimit(1, Duration.standardHours(1)).toString());
+
+        final RateLimit.Buckets buckets = new RateLimit.Buckets();
+        Assert.assertEquals(0L, buckets.acquire(new JobKey("first", "test-group-limit"), jobDataMap));
+        Assert.assertTrue(buckets.acquire(new JobKey("second", "test-group-limit"), jobDataMap) > 0L);
+        Assert.assertEquals(0L, buckets.acquire(new JobKey("third", "other-group-limit"), jobDataMap));
+        Assert.assertEquals(2, buckets.size());
+
+        // Buckets are not shared between job factories.
+        Assert.assertEquals(0L, new RateLimit.Buckets().acquire(new JobKey("second", "test-group-limit"), jobDataMap));
+    }
+
+    @Test
+    public void testDeferred() throws Exception
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(LimitedJob.class);
+                    QuartzJobBinder.bindQuartzJob(binder, LimitedJob.class)
+                        .name("limited")
+                        .repeat(Duration.millis(100L))
+                        .rateLimit(1, Duration.standardHours(1))
+                        .register();
+                }
+            });
+
+        injector.injectMembers(this);
+
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+        Thread.sleep(1000L);
+
+        Assert.assertTrue(scheduler.checkExists(new TriggerKey(QuartzJobWrapper.DEFERRED_TRIGGER_PREFIX + "limited", JobKey.DEFAULT_GROUP)));
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+
+        Assert.assertEquals(1, LimitedJob.EXECUTIONS.get());
+    }
+
+    static class LimitedJob implements Job
+    {
+        static final AtomicInteger EXECUTIONS = new AtomicInteger();
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            EXECUTIONS.incrementAndGet();
+        }
+    }
+}
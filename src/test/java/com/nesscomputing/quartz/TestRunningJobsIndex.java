@@ -0,0 +1,75 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.quartz.JobKey;
+
+public class TestRunningJobsIndex
+{
+    @Test
+    public void testCounts()
+    {
+        final RunningJobsIndex index = new RunningJobsIndex();
+        final JobKey jobKey = new JobKey("counted");
+
+        Assert.assertFalse(index.isRunning(jobKey));
+        index.started(jobKey, 0L);
+        index.started(jobKey, 0L);
+        Assert.assertEquals(2, index.getRunningCount(jobKey));
+
+        index.finished(jobKey, 0L);
+        Assert.assertTrue(index.isRunning(jobKey));
+        index.finished(jobKey, 0L);
+        Assert.assertFalse(index.isRunning(jobKey));
+
+        // Counters are reusable after they dropped to zero.
+        index.started(jobKey, 0L);
+        Assert.assertEquals(1, index.getRunningCount(jobKey));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception
+    {
+        final RunningJobsIndex index = new RunningJobsIndex();
+        final JobKey jobKey = new JobKey("concurrent");
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final CountDownLatch done = new CountDownLatch(8);
+
+        for (int i = 0; i < 8; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 10000; j++) {
+                        index.started(jobKey, 0L);
+                        index.finished(jobKey, 0L);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+        Assert.assertEquals(0, index.getRunningCount(jobKey));
+    }
+}
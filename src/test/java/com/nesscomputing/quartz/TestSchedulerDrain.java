@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.URI;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.Scheduler;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestSchedulerDrain
+{
+    private static final CountDownLatch STARTED = new CountDownLatch(2);
+
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Test
+    public void testDrain() throws Exception
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz", "drain");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(CheckpointingJob.class);
+                    binder.bind(StubbornJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+
+        AdHocQuartzJob.forClass(CheckpointingJob.class).submit(scheduler);
+        AdHocQuartzJob.forClass(StubbornJob.class).submit(scheduler);
+        Assert.assertTrue(STARTED.await(10, TimeUnit.SECONDS));
+
+        final long start = System.currentTimeMillis();
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        final long stopTime = System.currentTimeMillis() - start;
+
+        Assert.assertTrue(CheckpointingJob.drained);
+        Assert.assertTrue(StubbornJob.DONE.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(CancellationToken.Reason.INTERRUPTED, StubbornJob.reason);
+        Assert.assertTrue("Shutdown took " + stopTime + "ms", stopTime >= 1000L && stopTime < 5000L);
+    }
+
+    public static class CheckpointingJob implements Job, DrainAware
+    {
+        static volatile boolean drained = false;
+
+        private volatile boolean draining = false;
+
+        @Override
+        public void drain()
+        {
+            draining = true;
+        }
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            STARTED.countDown();
+            try {
+                while (!draining) {
+                    Thread.sleep(10L);
+                }
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            drained = true;
+        }
+    }
+
+    public static class StubbornJob implements Job
+    {
+        static final CountDownLatch DONE = new CountDownLatch(1);
+        static volatile CancellationToken.Reason reason = null;
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            final CancellationToken token = CancellationToken.forContext(context);
+            STARTED.countDown();
+            try {
+                while (!token.isCancelled()) {
+                    Thread.sleep(10L);
+                }
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            reason = token.getReason();
+            DONE.countDown();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.joda.time.Duration;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.multibindings.Multibinder;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestSlaWatchdog
+{
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    private static final List<SlaViolation> VIOLATIONS = new CopyOnWriteArrayList<SlaViolation>();
+
+    private final List<Notification> notifications = new CopyOnWriteArrayList<Notification>();
+
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Inject
+    private SlaWatchdog slaWatchdog;
+
+    @Inject
+    private ResolvedQuartzMetrics quartzMetrics;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        VIOLATIONS.clear();
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz", "sla");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(SleepingJob.class);
+                    binder.bind(FailingJob.class);
+                    binder.bind(TestQuartzJobBuilder.DummyJob.class);
+                    Multibinder.newSetBinder(binder, SlaListener.class).addBinding().to(RecordingSlaListener.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+
+        mbeanServer.addNotificationListener(new ObjectName(SlaWatchdog.OBJECT_NAME), new NotificationListener() {
+            @Override
+            public void handleNotification(final Notification notification, final Object handback)
+            {
+                notifications.add(notification);
+            }
+        }, null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+        Assert.assertFalse(mbeanServer.isRegistered(new ObjectName(SlaWatchdog.OBJECT_NAME)));
+    }
+
+    @Test
+    public void testRuntime() throws Exception
+    {
+        AdHocQuartzJob.forClass(SleepingJob.class).name("overrunning").maxRuntime(Duration.millis(50L)).submit(scheduler);
+
+        waitForViolations(1);
+        Assert.assertEquals(SlaViolation.Kind.RUNTIME, VIOLATIONS.get(0).getKind());
+        Assert.assertEquals(new JobKey("overrunning"), VIOLATIONS.get(0).getJobKey());
+        Assert.assertTrue(VIOLATIONS.get(0).getActualMillis() > 50L);
+
+        // The notification is sent after the listeners were called.
+        for (int i = 0; i < 100 && notifications.isEmpty(); i++) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(1, notifications.size());
+        Assert.assertEquals("ness.quartz.sla-runtime", notifications.get(0).getType());
+        Assert.assertEquals(1L, mbeanServer.getAttribute(new ObjectName(SlaWatchdog.OBJECT_NAME), "Violations"));
+        Assert.assertEquals(1L, quartzMetrics.meter("ness.quartz.job", "sla-runtime", "overrunning").getCount());
+    }
+
+    @Test
+    public void testStartLag() throws Exception
+    {
+        // The only worker thread is busy, so the second job starts late.
+        AdHocQuartzJob.forClass(SleepingJob.class).name("blocking").submit(scheduler);
+        Thread.sleep(50L);
+        AdHocQuartzJob.forClass(TestQuartzJobBuilder.DummyJob.class).name("late").maxStartLag(Duration.millis(50L)).submit(scheduler);
+
+        // Reported while the job still waits, not only once it starts.
+        waitForViolations(1);
+        Assert.assertEquals(SlaViolation.Kind.START_LAG, VIOLATIONS.get(0).getKind());
+        Assert.assertEquals(new JobKey("late"), VIOLATIONS.get(0).getJobKey());
+        Assert.assertTrue(slaWatchdog.getViolations(new JobKey("blocking")) == 0L);
+
+        Thread.sleep(SleepingJob.SLEEP + 100L);
+        Assert.assertEquals(1, VIOLATIONS.size());
+        Assert.assertEquals(1L, slaWatchdog.getViolations(new JobKey("late")));
+    }
+
+    @Test
+    public void testSuccessGap() throws Exception
+    {
+        AdHocQuartzJob.forClass(FailingJob.class).name("failing").repeat(Duration.millis(20L)).maxSuccessGap(Duration.millis(100L)).submit(scheduler);
+        AdHocQuartzJob.forClass(TestQuartzJobBuilder.DummyJob.class).name("succeeding").repeat(Duration.millis(20L)).maxSuccessGap(Duration.millis(100L)).submit(scheduler);
+
+        Thread.sleep(350L);
+        scheduler.pauseAll();
+
+        final long failing = slaWatchdog.getViolations(new JobKey("failing"));
+        Assert.assertTrue("violations: " + failing, failing >= 2L && failing <= 4L);
+        Assert.assertEquals(0L, slaWatchdog.getViolations(new JobKey("succeeding")));
+        for (final SlaViolation violation : VIOLATIONS) {
+            Assert.assertEquals(SlaViolation.Kind.SUCCESS_GAP, violation.getKind());
+        }
+        Assert.assertEquals(3, slaWatchdog.getWatchedJobs());
+    }
+
+    @Test
+    public void testConfigured() throws Exception
+    {
+        final JobSla sla = JobSla.fromJobData(scheduler.getJobDetail(new JobKey("sla-configured")).getJobDataMap());
+        Assert.assertNotNull(sla);
+        Assert.assertEquals(60000L, sla.getMaxStartLagMillis());
+        Assert.assertEquals(10000L, sla.getMaxRuntimeMillis());
+        Assert.assertEquals(0L, sla.getMaxSuccessGapMillis());
+        Assert.assertNull(JobSla.fromJobData(new org.quartz.JobDataMap()));
+    }
+
+    @Test
+    public void testTimerWheel() throws Exception
+    {
+        final TimerWheel timerWheel = new TimerWheel("test-wheel", 5L, 4);
+        final List<String> fired = new CopyOnWriteArrayList<String>();
+        final long start = System.currentTimeMillis();
+
+        // More ticks than the wheel has buckets, the timeout must wait for its round.
+        timerWheel.schedule(new Recorder(fired, "late", start, 60L), 60L);
+        timerWheel.schedule(new Recorder(fired, "early", start, 10L), 10L);
+        final TimerWheel.Timeout cancelled = timerWheel.schedule(new Recorder(fired, "cancelled", start, 20L), 20L);
+        cancelled.cancel();
+
+        Thread.sleep(150L);
+        timerWheel.stop();
+        Assert.assertEquals(2, fired.size());
+        Assert.assertEquals("early", fired.get(0));
+        Assert.assertEquals("late", fired.get(1));
+    }
+
+    private void waitForViolations(final int count) throws InterruptedException
+    {
+        for (int i = 0; i < 100 && VIOLATIONS.size() < count; i++) {
+            Thread.sleep(10L);
+        }
+        Assert.assertEquals(count, VIOLATIONS.size());
+    }
+
+    private static class Recorder implements Runnable
+    {
+        private final List<String> fired;
+        private final String name;
+        private final long start;
+        private final long delay;
+
+        Recorder(final List<String> fired, final String name, final long start, final long delay)
+        {
+            this.fired = fired;
+            this.name = name;
+            this.start = start;
+            this.delay = delay;
+        }
+
+        @Override
+        public void run()
+        {
+            Assert.assertTrue(System.currentTimeMillis() - start >= delay);
+            fired.add(name);
+        }
+    }
+
+    public static class RecordingSlaListener implements SlaListener
+    {
+        @Override
+        public void slaViolated(final SlaViolation violation)
+        {
+            VIOLATIONS.add(violation);
+        }
+    }
+
+    public static class SleepingJob implements Job
+    {
+        static final long SLEEP = 300L;
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            try {
+                Thread.sleep(SLEEP);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static class FailingJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            throw new JobExecutionException("failed");
+        }
+    }
+
+    public static class ConfiguredSlaJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+        }
+    }
+}
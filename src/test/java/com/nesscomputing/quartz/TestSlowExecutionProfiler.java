@@ -0,0 +1,148 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.net.URI;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestSlowExecutionProfiler
+{
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Inject
+    private SlowExecutionProfiler slowExecutionProfiler;
+
+    @Before
+    public void setUp()
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz", "slow");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(SlowJob.class);
+                    binder.bind(TestQuartzJobBuilder.DummyJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testSlowJob() throws Exception
+    {
+        AdHocQuartzJob.forClass(SlowJob.class).name("slow").submit(scheduler);
+        AdHocQuartzJob.forClass(TestQuartzJobBuilder.DummyJob.class).name("fast").submit(scheduler);
+
+        final JobKey slowKey = new JobKey("slow");
+        for (int i = 0; i < 100 && slowExecutionProfiler.getSlowExecutions(slowKey) == 0L; i++) {
+            Thread.sleep(20L);
+        }
+        Thread.sleep(400L);
+
+        Assert.assertEquals(1L, slowExecutionProfiler.getSlowExecutions(slowKey));
+        Assert.assertTrue(slowExecutionProfiler.getSamples(slowKey) > 1L);
+
+        final List<String> profile = slowExecutionProfiler.getProfile(slowKey);
+        Assert.assertFalse(profile.isEmpty());
+        Assert.assertTrue(profile.get(0), profile.get(0).startsWith(SlowJob.class.getName() + ".execute;"));
+        Assert.assertTrue(profile.get(0), profile.get(0).contains("java.lang.Thread.sleep"));
+
+        Assert.assertEquals(0L, slowExecutionProfiler.getSlowExecutions(new JobKey("fast")));
+        Assert.assertTrue(slowExecutionProfiler.getProfile(new JobKey("fast")).isEmpty());
+
+        slowExecutionProfiler.clear(slowKey);
+        Assert.assertTrue(slowExecutionProfiler.getProfile(slowKey).isEmpty());
+    }
+
+    @Test
+    public void testBoundedProfile()
+    {
+        final StackProfile profile = new StackProfile(3);
+        final StackTraceElement [] frames = new StackTraceElement [] {
+            new StackTraceElement("C", "c", null, -1),
+            new StackTraceElement("B", "b", null, -1),
+            new StackTraceElement("A", "a", null, -1),
+        };
+        profile.add(frames, 3);
+        profile.add(frames, 3);
+        profile.add(new StackTraceElement [] { frames[1], frames[2] }, 2);
+
+        // The tree is full, the new inner frame is counted at its caller.
+        profile.add(new StackTraceElement [] { new StackTraceElement("D", "d", null, -1), frames[1], frames[2] }, 3);
+
+        // Only the innermost frame is used, it does not fit into the tree either.
+        profile.add(frames, 1);
+
+        final List<String> folded = profile.toFolded();
+        Assert.assertEquals(3, folded.size());
+        Assert.assertTrue(folded.contains("A.a;B.b;C.c 2"));
+        Assert.assertTrue(folded.contains("A.a;B.b 2"));
+        Assert.assertTrue(folded.contains("[root] 1"));
+        Assert.assertEquals(5L, profile.getSamples());
+    }
+
+    public static class SlowJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            try {
+                Thread.sleep(300L);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (C) 2012 Ness Computing, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.nesscomputing.quartz;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.JobKey;
+import org.quartz.Scheduler;
+
+import com.google.inject.Binder;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.nesscomputing.config.Config;
+import com.nesscomputing.lifecycle.Lifecycle;
+import com.nesscomputing.lifecycle.LifecycleStage;
+import com.nesscomputing.lifecycle.guice.LifecycleModule;
+import com.nesscomputing.quartz.internal.TestingQuartzModule;
+
+public class TestThreadResources
+{
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+
+    @Inject
+    private Lifecycle lifecycle;
+
+    @Inject
+    private Scheduler scheduler;
+
+    @Inject
+    private QuartzJmxTrigger quartzJmxTrigger;
+
+    @Before
+    public void setUp()
+    {
+        final Config config = Config.getConfig(URI.create("classpath:/test-config"), "quartz");
+
+        final Injector injector = Guice.createInjector(
+            new LifecycleModule(),
+            new TestingQuartzModule(config),
+            new NessQuartzModule(config),
+            new Module() {
+                @Override
+                public void configure(final Binder binder)
+                {
+                    binder.bind(AllocatingJob.class);
+                    binder.bind(SleepingJob.class);
+                }
+            });
+
+        injector.injectMembers(this);
+        lifecycle.executeTo(LifecycleStage.START_STAGE);
+    }
+
+    @After
+    public void tearDown()
+    {
+        lifecycle.executeTo(LifecycleStage.STOP_STAGE);
+    }
+
+    @Test
+    public void testAccounting() throws Exception
+    {
+        Assume.assumeTrue(ThreadResources.getCpuNanos() >= 0L && ThreadResources.getAllocatedBytes() >= 0L);
+
+        AdHocQuartzJob.forClass(AllocatingJob.class).name("allocating").submit(scheduler);
+        AdHocQuartzJob.forClass(SleepingJob.class).name("sleeping").submit(scheduler);
+
+        // Ad-hoc jobs record into the statistics of their job class.
+        final JobKey allocatingKey = new JobKey(AllocatingJob.class.getName(), GuiceJobFactory.AD_HOC_GROUP);
+        final JobKey sleepingKey = new JobKey(SleepingJob.class.getName(), GuiceJobFactory.AD_HOC_GROUP);
+        for (int i = 0; i < 100 && (getRuntimeCount(allocatingKey) == 0L || getRuntimeCount(sleepingKey) == 0L); i++) {
+            Thread.sleep(20L);
+        }
+
+        final QuartzJmxTrigger.QuartzJmxWrapper allocating = quartzJmxTrigger.newJobBean(allocatingKey);
+        Assert.assertTrue(allocating.getAllocatedBytes() >= AllocatingJob.BYTES);
+        Assert.assertTrue(allocating.getMedianAllocatedBytes() >= AllocatingJob.BYTES * 0.8);
+
+        final QuartzJmxTrigger.QuartzJmxWrapper sleeping = quartzJmxTrigger.newJobBean(sleepingKey);
+        Assert.assertTrue(sleeping.getAllocatedBytes() < AllocatingJob.BYTES);
+        Assert.assertTrue(sleeping.getCpuTimeMillis() < 100L);
+        Assert.assertTrue(sleeping.getCpuShare() < 0.5);
+
+        final String [] topAllocating = (String []) mbeanServer.getAttribute(new ObjectName(QuartzJmxTrigger.SCHEDULER_KEY), "TopAllocatingJobs");
+        Assert.assertTrue(Arrays.toString(topAllocating), topAllocating[0].startsWith(allocatingKey + ": "));
+    }
+
+    @Test
+    public void testUnavailableSkipped()
+    {
+        final QuartzJobStatistics stats = new QuartzJobStatistics(new LockFreeQuartzMetrics(), new JobKey("unavailable"));
+        stats.registerResources(-1L, 100L);
+        stats.registerResources(TimeUnit.MILLISECONDS.toNanos(5), -1L);
+
+        Assert.assertEquals(1L, stats.getCpuTime().getCount());
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(5), stats.getTotalCpuNanos());
+        Assert.assertEquals(1L, stats.getAllocations().getCount());
+        Assert.assertEquals(100L, stats.getTotalAllocatedBytes());
+
+        Assert.assertEquals(-1L, ThreadResources.delta(-1L, 10L));
+        Assert.assertEquals(0L, ThreadResources.delta(10L, 5L));
+        Assert.assertEquals(5L, ThreadResources.delta(5L, 10L));
+    }
+
+    private long getRuntimeCount(final JobKey jobKey)
+    {
+        final QuartzJobStatistics stats = GuiceJobFactory.getJobStatistics(jobKey);
+        return stats == null ? 0L : stats.getRuntime().getCount();
+    }
+
+    public static class AllocatingJob implements Job
+    {
+        static final int BYTES = 64 * 1024 * 1024;
+
+        static volatile byte [] sink;
+
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            for (int i = 0; i < BYTES / 4096; i++) {
+                sink = new byte [4096];
+            }
+        }
+    }
+
+    public static class SleepingJob implements Job
+    {
+        @Override
+        public void execute(final JobExecutionContext context) throws JobExecutionException
+        {
+            try {
+                Thread.sleep(200L);
+            }
+            catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}